@@ -0,0 +1,274 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *    Resizes a pool between AdaptiveMinConnections and MaxConnections
+ *    from what its borrowers saw over the last AdaptivePeriod.
+ *    <p>
+ *    The pool grows, by a quarter at a time, while the mean borrow
+ *    wait is above AdaptiveWaitThreshold, borrows time out or threads
+ *    are still queued.  It doesn't grow if the database looks
+ *    saturated: connects are failing, or leases are taking twice as
+ *    long as they do when nobody is waiting, which means more
+ *    connections would only slow every query down.  When nobody is
+ *    waiting the pool shrinks, a step at a time, towards half again as
+ *    many connections as were busy on average.
+ *    <p>
+ *    Every resize, and every time growth is held back, is recorded in
+ *    the pool's metrics and as a JFR event.
+ */
+class AdaptiveSizer
+    implements
+        Runnable
+{
+    private final static Logger logger = Logger.getLogger( AdaptiveSizer.class );
+
+    //
+    //    Leases this much slower than the baseline mean the database
+    //    is saturated.
+    //
+    private final static double    SATURATION_RATIO = 2.0;
+
+    //
+    //    How much of each quiet period's mean lease time goes into the
+    //    baseline.
+    //
+    private final static double    BASELINE_WEIGHT  = 0.2;
+
+    private final ConnectionPool           _pool;
+    private final ConnectionPoolMetrics    _metrics;
+    private final ConnectionInfo           _info;
+
+    //
+    //    The metrics as of the last run, to work out the last period's
+    //    share.  Only ever touched on the housekeeping thread.
+    //
+    private long      _lastRun;
+    private long      _borrows;
+    private long      _borrowWait;
+    private long      _borrowTimeouts;
+    private long      _leases;
+    private long      _leaseTime;
+    private long      _creationFailures;
+
+    //
+    //    Mean lease time in milliseconds while nobody waits, or 0 until
+    //    there's been such a period.
+    //
+    private double    _baselineLease;
+
+
+    AdaptiveSizer( final ConnectionPool           pool,
+                   final ConnectionPoolMetrics    metrics,
+                   final ConnectionInfo           info )
+    {
+        _pool    = pool;
+        _metrics = metrics;
+        _info    = info;
+        _lastRun = System.currentTimeMillis();
+    }
+
+
+    /**
+     *    @return the size to start the pool at, enough for the
+     *            connections it will open up front
+     */
+    int getInitialSize()
+    {
+        ConnectionPoolConfig    config = _info.getPoolConfig();
+
+        return clamp( Math.max( config.getAdaptiveMinConnections(),
+                                Math.max( config.getInitialSize(), config.getMinIdle() ) ) );
+    }
+
+
+    private int getFloor()
+    {
+        return Math.max( 1, _info.getPoolConfig().getAdaptiveMinConnections() );
+    }
+
+
+    /**
+     *    @return MaxConnections, or 0 for no ceiling
+     */
+    private int getCeiling()
+    {
+        return _pool.getMaxConnectionsLimit();
+    }
+
+
+    private int clamp( final int    size )
+    {
+        int    ceiling = getCeiling();
+        int    clamped = Math.max( getFloor(), size );
+
+        return ceiling == 0 ? clamped : Math.min( ceiling, clamped );
+    }
+
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            resize();
+        }
+        catch ( Throwable    ex )
+        {
+            logger.error( "Can't resize pool for [" + _info.toShortString() + "]", ex );
+        }
+    }
+
+
+    void resize()
+    {
+        long    now              = System.currentTimeMillis();
+        long    borrows          = _metrics.getBorrowCount();
+        long    borrowWait       = _metrics.getBorrowWaitTotal();
+        long    borrowTimeouts   = _metrics.getBorrowTimeouts();
+        long    leases           = _metrics.getLeaseCount();
+        long    leaseTime        = _metrics.getLeaseTotal();
+        long    creationFailures = _metrics.getConnectionCreationFailures();
+
+        long    periodBorrows    = borrows - _borrows;
+        long    periodLeases     = leases - _leases;
+        long    periodTimeouts   = borrowTimeouts - _borrowTimeouts;
+        long    periodFailures   = creationFailures - _creationFailures;
+        long    elapsed          = Math.max( 1, now - _lastRun );
+
+        //
+        //    Means in milliseconds; the totals are in microseconds.
+        //
+        double    wait  = periodBorrows == 0 ? 0 : ( borrowWait - _borrowWait ) / 1000.0 / periodBorrows;
+        double    lease = periodLeases == 0 ? 0 : ( leaseTime - _leaseTime ) / 1000.0 / periodLeases;
+
+        //
+        //    Connections busy on average over the period (Little's law),
+        //    or right now if that's more, to count long leases still
+        //    out.
+        //
+        double    busy  = Math.max( ( leaseTime - _leaseTime ) / 1000.0 / elapsed,
+                                    _pool.getActiveCount() );
+
+        _lastRun          = now;
+        _borrows          = borrows;
+        _borrowWait       = borrowWait;
+        _borrowTimeouts   = borrowTimeouts;
+        _leases           = leases;
+        _leaseTime        = leaseTime;
+        _creationFailures = creationFailures;
+
+        int        size     = _pool.getMaxConnections();
+        int        waiting  = _pool.getWaitingCount();
+        boolean    pressure = wait > _info.getPoolConfig().getAdaptiveWaitThreshold()
+                              || periodTimeouts > 0
+                              || waiting > 0;
+
+        String    reason = String.format( "wait %.1f ms, %d timeouts, %d waiting, lease %.1f ms (baseline %.1f ms), %.1f busy",
+                                          wait,
+                                          periodTimeouts,
+                                          waiting,
+                                          lease,
+                                          _baselineLease,
+                                          busy );
+
+        if ( ! pressure )
+        {
+            if ( periodLeases > 0 )
+            {
+                _baselineLease = _baselineLease == 0
+                                 ? lease
+                                 : _baselineLease * ( 1 - BASELINE_WEIGHT ) + lease * BASELINE_WEIGHT;
+            }
+
+            int    target = clamp( (int) Math.ceil( busy * 1.5 ) + 1 );
+
+            if ( target < size )
+            {
+                resize( size, Math.max( target, size - Math.max( 1, ( size - target ) / 2 ) ), reason );
+            }
+
+            return;
+        }
+
+        if ( _pool.isCircuitOpen() || periodFailures > 0 )
+        {
+            held( size, "connects failing, " + reason );
+            return;
+        }
+
+        if ( _baselineLease > 0 && lease > _baselineLease * SATURATION_RATIO )
+        {
+            held( size, "database saturated, " + reason );
+            return;
+        }
+
+        int    grown = clamp( size + Math.max( 1, size / 4 ) );
+
+        if ( grown <= size )
+        {
+            held( size, "at MaxConnections, " + reason );
+            return;
+        }
+
+        resize( size, grown, reason );
+    }
+
+
+    private void resize( final int       from,
+                         final int       to,
+                         final String    reason )
+    {
+        if ( logger.isDebugEnabled() )
+        {
+            logger.debug( "Resizing pool for [" + _info.toShortString() + "] from "
+                          + from + " to " + to + ": " + reason );
+        }
+
+        _pool.resize( to );
+        record( from, to, reason );
+    }
+
+
+    private void held( final int       size,
+                       final String    reason )
+    {
+        if ( logger.isDebugEnabled() )
+        {
+            logger.debug( "Not growing pool for [" + _info.toShortString() + "]: " + reason );
+        }
+
+        record( size, size, reason );
+    }
+
+
+    private void record( final int       from,
+                         final int       to,
+                         final String    reason )
+    {
+        _metrics.recordResize( from, to, reason );
+
+        PoolResizeEvent    event = new PoolResizeEvent();
+
+        if ( event.shouldCommit() )
+        {
+            event.pool   = _info.toShortString();
+            event.from   = from;
+            event.to     = to;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+/**
+ *    How urgently a borrower needs a connection.  Waiting borrowers are
+ *    served highest priority first, and in the order they arrived
+ *    within a priority.
+ *
+ *    @see ConnectionPoolConfig#getMaxWaiting(BorrowPriority)
+ */
+public enum BorrowPriority
+{
+    /**
+     *    e.g. requests a user is waiting on.
+     */
+    HIGH,
+
+    NORMAL,
+
+    /**
+     *    e.g. reports and batch work, which can be turned away first.
+     */
+    LOW
+}
@@ -0,0 +1,117 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *    Tracks whether a database can be reached, from the outcome of
+ *    connection attempts.
+ *    <p>
+ *    Opens after CircuitBreakerThreshold connects in a row fail, and
+ *    closes on the next one that succeeds.  While it's open the pool
+ *    only tries to connect with single probes, backing off
+ *    exponentially between them.
+ */
+class CircuitBreaker
+{
+    private final AtomicInteger    _failures       = new AtomicInteger();
+    private final AtomicBoolean    _open           = new AtomicBoolean();
+    private final AtomicBoolean    _probeScheduled = new AtomicBoolean();
+    private volatile long          _openedAt;
+    private volatile long          _backoff;
+
+
+    boolean isOpen()
+    {
+        return _open.get();
+    }
+
+
+    /**
+     *    @return when the breaker opened, or 0 if it's closed
+     */
+    long getOpenedAt()
+    {
+        return isOpen() ? _openedAt : 0;
+    }
+
+
+    /**
+     *    @param threshold failures in a row that open the breaker, or
+     *                     0 to never open it
+     *    @return true if this failure opened the breaker
+     */
+    boolean recordFailure( final int    threshold )
+    {
+        int    failures = _failures.incrementAndGet();
+
+        if ( threshold <= 0 || failures < threshold )
+        {
+            return false;
+        }
+
+        if ( _open.compareAndSet( false, true ) )
+        {
+            _openedAt = System.currentTimeMillis();
+            _backoff  = 0;
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     *    @return true if this success closed the breaker
+     */
+    boolean recordSuccess()
+    {
+        _failures.set( 0 );
+
+        return _open.compareAndSet( true, false );
+    }
+
+
+    /**
+     *    Claims the right to schedule the next probe, so only one is
+     *    ever pending.
+     *
+     *    @return false if one is already scheduled
+     */
+    boolean startProbe()
+    {
+        return _probeScheduled.compareAndSet( false, true );
+    }
+
+
+    void probeStarted()
+    {
+        _probeScheduled.set( false );
+    }
+
+
+    /**
+     *    @return how long to wait before the next probe: the initial
+     *            backoff, then doubling up to the max
+     */
+    long nextBackoff( final long    initial,
+                      final long    max )
+    {
+        long    backoff = _backoff == 0 ? initial : Math.min( max, _backoff * 2 );
+
+        _backoff = backoff;
+
+        return backoff;
+    }
+}
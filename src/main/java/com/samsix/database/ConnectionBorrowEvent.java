@@ -0,0 +1,40 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ *    JFR event for a thread getting a connection from the pool.  The
+ *    event's duration is the time spent waiting.
+ */
+@Name( "com.samsix.database.ConnectionBorrow" )
+@Label( "Connection Borrow" )
+@Category( { "Database", "Connection Pool" } )
+@Description( "A thread waited for a connection from the pool" )
+class ConnectionBorrowEvent
+    extends
+        Event
+{
+    @Label( "Pool" )
+    String     pool;
+
+    @Label( "Connection Pack" )
+    int        packId;
+
+    @Label( "Timed Out" )
+    boolean    timedOut;
+}
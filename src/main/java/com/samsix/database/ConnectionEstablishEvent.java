@@ -0,0 +1,46 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ *    JFR event for opening a physical connection.  Connections are
+ *    opened on the pool's creator threads, so the stack trace says
+ *    nothing and isn't recorded.
+ */
+@Name( "com.samsix.database.ConnectionEstablish" )
+@Label( "Connection Establish" )
+@Category( { "Database", "Connection Pool" } )
+@Description( "A physical connection to the database was opened" )
+@StackTrace( false )
+class ConnectionEstablishEvent
+    extends
+        Event
+{
+    @Label( "URL" )
+    String     url;
+
+    @Label( "User" )
+    String     user;
+
+    @Label( "Connection Pack" )
+    int        packId;
+
+    @Label( "Succeeded" )
+    boolean    succeeded;
+}
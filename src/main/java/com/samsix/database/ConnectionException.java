@@ -10,6 +10,9 @@
 package com.samsix.database;
 
 
+import java.util.Date;
+
+
 
 @SuppressWarnings("serial")
 public final class ConnectionException
@@ -28,4 +31,22 @@ public final class ConnectionException
 
         return this;
     }
+
+
+    public DatabaseException databaseUnreachable( ConnectionInfo    info,
+                                                  long              since )
+    {
+        init( "Database [" + info.toShortString() + "] has been unreachable since ["
+              + new Date( since ) + "], not waiting for a connection." );
+
+        return this;
+    }
+
+
+    public DatabaseException poolClosed( ConnectionInfo    info )
+    {
+        init( "The connection pool for [" + info.toShortString() + "] has been shut down." );
+
+        return this;
+    }
 }
@@ -16,9 +16,28 @@ import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -46,9 +65,25 @@ public class ConnectionInfo
     private static Collection<ConnectionInfo>       _connectionInfos =
         Collections.synchronizedSet( new WeakHashSet<ConnectionInfo>() );
 
-    private transient ConnectionPool                _connectionPool;
+    private transient volatile ConnectionPool       _connectionPool;
 
-    private final int         _maxConnections;
+    //
+    //    Guards creating the pool.  A lock rather than a monitor so
+    //    virtual threads arriving together aren't pinned.
+    //
+    private final ReentrantLock                     _poolLock = new ReentrantLock();
+
+    //
+    //    Set once this info has let go of its share of the pool.
+    //
+    private final AtomicBoolean                     _poolReleased = new AtomicBoolean();
+
+    //
+    //    What the pool was registered under when it was acquired.
+    //
+    private transient volatile List<Object>         _poolKey;
+
+    private volatile int      _maxConnections;
     private final String      _password;
     private final String      _url;
     private final String      _userName;
@@ -58,6 +93,37 @@ public class ConnectionInfo
     private       String      _database;
     private       boolean     _useSSL = false;
 
+    //
+    //    Where connections come from when built from a DataSource
+    //    rather than a driver and URL.  Not serialized, since most
+    //    DataSources can't be.
+    //
+    private final transient DataSource    _dataSource;
+
+    //
+    //    The driver for the URL and the properties to connect with,
+    //    worked out once so opening a connection doesn't scan
+    //    DriverManager's drivers or rebuild the properties.
+    //
+    private transient volatile Driver        _jdbcDriver;
+    private transient volatile Properties    _connectionProperties;
+
+    private ConnectionPoolConfig    _poolConfig = new ConnectionPoolConfig();
+
+    //
+    //    Where the settings were read from, e.g. "Database.Primary", or
+    //    null if the info wasn't read from a ResourceReader.
+    //
+    private String                  _keyBase;
+
+    //
+    //    Read replicas of this database, each with its own pool, and
+    //    where the next read starts looking for a healthy one.
+    //
+    private final List<ConnectionInfo>    _replicas    = new CopyOnWriteArrayList<ConnectionInfo>();
+    private final AtomicInteger           _nextReplica = new AtomicInteger();
+    private       boolean                 _replica     = false;
+
 
     public ConnectionInfo( final String    driver,
                            final String    url,
@@ -68,6 +134,40 @@ public class ConnectionInfo
                            final String    dbServer,
                            final String    database )
     {
+        this( null, driver, url, userName, password, platform, maxConnections, dbServer, database );
+    }
+
+
+    /**
+     *    Connections are taken from the DataSource, which has to be set
+     *    up with the server, database and credentials; e.g. a
+     *    PGSimpleDataSource.
+     *
+     *    @param url only for identifying the database in logs and
+     *               metrics
+     *    @param userName likewise
+     */
+    public ConnectionInfo( final DataSource    dataSource,
+                           final String        url,
+                           final String        userName,
+                           final String        platform,
+                           final int           maxConnections )
+    {
+        this( dataSource, null, url, userName, null, platform, maxConnections, null, null );
+    }
+
+
+    private ConnectionInfo( final DataSource    dataSource,
+                            final String        driver,
+                            final String        url,
+                            final String        userName,
+                            final String        password,
+                            final String        platform,
+                            final int           maxConnections,
+                            final String        dbServer,
+                            final String        database )
+    {
+        _dataSource     = dataSource;
         _driver         = driver;
         _url            = url;
         _userName       = userName;
@@ -142,12 +242,16 @@ public class ConnectionInfo
             String    dbServer = reader.getString( keyBase + ".Server", activeInfo.getDbServerName() );
             String    dbName = reader.getString( keyBase + ".Database", dbType );
 
-            return postgresVersionOf( dbServer,
-                                      dbName,
-                                      getUserName( reader, keyBase, activeInfo.getUserName() ),
-                                      getPassword( reader, keyBase, activeInfo.getPassword() ),
-                                      reader.getInteger( keyBase + ".Port", null ),
-                                      getMaxConnections( reader, keyBase ) );
+            ConnectionInfo    info = postgresVersionOf( dbServer,
+                                                        dbName,
+                                                        getUserName( reader, keyBase, activeInfo.getUserName() ),
+                                                        getPassword( reader, keyBase, activeInfo.getPassword() ),
+                                                        reader.getInteger( keyBase + ".Port", null ),
+                                                        getMaxConnections( reader, keyBase ) );
+            info.configurePool( reader, keyBase );
+            info.configureReplicas( reader, keyBase );
+
+            return info;
         }
 
         return pValueOf( reader, dbType, null );
@@ -178,11 +282,94 @@ public class ConnectionInfo
                                              null,
                                              null );
         connectionInfo._useSSL = reader.getBoolean( keyBase + PROP_SUFFIX_SSL, false );
-        
+        connectionInfo.configurePool( reader, keyBase );
+        connectionInfo.configureReplicas( reader, keyBase );
+
         return connectionInfo;
     }
 
 
+    private void configurePool( final ResourceReader    reader,
+                                final String            keyBase )
+    {
+        _keyBase    = keyBase;
+        _poolConfig = ConnectionPoolConfig.valueOf( reader, keyBase );
+
+        if ( _poolConfig.isWarmUp() )
+        {
+            try
+            {
+                warmUp();
+            }
+            catch ( DatabaseException    ex )
+            {
+                //    Ignore, it's already logged
+            }
+        }
+    }
+
+
+    /**
+     *    Reads the replicas listed in e.g.
+     *    <pre>
+     *    Database.Primary.Replicas = Replica1, Replica2
+     *    </pre>
+     *    each from its own keys (Database.Replica1.Server, ...).
+     */
+    private void configureReplicas( final ResourceReader    reader,
+                                    final String            keyBase )
+    {
+        String    replicas = reader.getString( keyBase + ".Replicas", null );
+
+        if ( StringUtils.isBlank( replicas ) )
+        {
+            return;
+        }
+
+        for ( String    dbType : StringUtils.split( replicas, ", " ) )
+        {
+            ConnectionInfo    replica = replicaValueOf( reader, dbType, this );
+
+            if ( replica != null )
+            {
+                addReplica( replica );
+            }
+        }
+    }
+
+
+    /**
+     *    A postgres replica only needs its .Server; the database, user
+     *    name, password, port and MaxConnections default to the
+     *    primary's.  Anything else needs its own .Url.
+     */
+    private static ConnectionInfo replicaValueOf( final ResourceReader    reader,
+                                                  final String            dbType,
+                                                  final ConnectionInfo    primary )
+    {
+        String    keyBase = getResourceBaseKey( dbType );
+        String    server  = reader.getString( keyBase + ".Server", null );
+
+        if ( server == null
+             || ! Database.PLATFORM_POSTGRES.equals( primary.getPlatform() ) )
+        {
+            return pValueOf( reader, dbType, null );
+        }
+
+        ConnectionInfo    info = postgresVersionOf( server,
+                                                    reader.getString( keyBase + ".Database", primary.getDatabase() ),
+                                                    getUserName( reader, keyBase, primary.getUserName() ),
+                                                    getPassword( reader, keyBase, primary.getPassword() ),
+                                                    reader.getInteger( keyBase + ".Port", null ),
+                                                    reader.getInt( keyBase + ".MaxConnections",
+                                                                   primary.getMaxConnections() ) );
+        info._useSSL = reader.getBoolean( keyBase + PROP_SUFFIX_SSL, primary._useSSL );
+        info.configurePool( reader, keyBase );
+
+        return info;
+    }
+
+
     private static String getUserName( final ResourceReader    reader,
                                        final String            keyBase,
                                        final String            defaultUserName )
@@ -369,32 +556,262 @@ public class ConnectionInfo
             }
         }
 
-        _connectionPool = new ConnectionPool( this );
+        if ( _dataSource == null )
+        {
+            //
+            //    If no driver takes the URL yet, leave it to the first
+            //    connect to fail, the same as a database that's down.
+            //
+            try
+            {
+                getJDBCDriver();
+            }
+            catch ( SQLException    ex )
+            {
+                Database.sqlLog.warn( "No driver for [" + _url + "] yet", ex );
+            }
+        }
+
+        _poolKey        = ConnectionPoolRegistry.keyOf( this );
+        _connectionPool = ConnectionPoolRegistry.acquire( this, _poolKey );
+    }
+
+
+    /**
+     *    Lets go of this info's share of its pool, once.
+     *
+     *    @return true if nobody else shares the pool, so it's for us
+     *            to close
+     */
+    private boolean releasePool( final ConnectionPool    pool )
+    {
+        return _poolReleased.compareAndSet( false, true )
+               && ConnectionPoolRegistry.release( _poolKey, pool );
     }
 
 
+    /**
+     *    Drops the pool once it's been let go of, so the next borrow
+     *    gets a new one.
+     */
+    private void forgetPool( final ConnectionPool    pool )
+    {
+        _poolLock.lock();
+        try
+        {
+            if( _connectionPool == pool )
+            {
+                _connectionPool = null;
+                _poolReleased.set( false );
+            }
+        }
+        finally
+        {
+            _poolLock.unlock();
+        }
+    }
+
+
+    /**
+     *    Closes the pool, unless other infos for the same database
+     *    still share it.  The info can still be used afterwards; the
+     *    next borrow opens a new pool.
+     */
     public void shutdown()
     {
-        if( _connectionPool != null )
+        ConnectionPool    pool = _connectionPool;
+
+        if( pool != null )
         {
-            _connectionPool.shutdown();
+            if( releasePool( pool ) )
+            {
+                pool.shutdown();
+            }
+
+            forgetPool( pool );
         }
+
+        for( ConnectionInfo    replica : _replicas )
+        {
+            replica.shutdown();
+        }
+    }
+
+
+    /**
+     *    Shuts the pool down gracefully, waiting up to DrainTimeout for
+     *    leased connections to come back.  Replicas are drained too.
+     *    Connections still leased after that are closed, and their
+     *    borrowers get SQLExceptions.  As after shutdown(), the next
+     *    borrow opens a new pool.
+     *
+     *    @return true if every connection came back in time
+     *    @see ConnectionPool#drain(long)
+     */
+    public boolean drain()
+    {
+        return drain( getPoolConfig().getDrainTimeout() );
     }
 
 
+    /**
+     *    Drains the replicas at the same time as this pool, so it all
+     *    takes about <code>timeout</code> rather than that much per
+     *    pool.
+     *
+     *    @param timeout milliseconds to wait for leased connections
+     *    @return true if every connection came back in time
+     */
+    public boolean drain( final long    timeout )
+    {
+        List<Future<Boolean>>    replicaDrains = new ArrayList<Future<Boolean>>( _replicas.size() );
+
+        if( ! _replicas.isEmpty() )
+        {
+            ExecutorService    drainers
+                = Executors.newCachedThreadPool( new ConnectionPool.PoolThreadFactory( "DatabaseConnectionDrainer" ) );
+
+            for( final ConnectionInfo    replica : _replicas )
+            {
+                replicaDrains.add( drainers.submit( new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call()
+                    {
+                        return replica.drain( timeout );
+                    }
+                } ) );
+            }
+
+            drainers.shutdown();
+        }
+
+        boolean           drained = true;
+        ConnectionPool    pool    = _connectionPool;
+
+        if( pool != null )
+        {
+            if( releasePool( pool ) )
+            {
+                drained = pool.drain( timeout );
+            }
+
+            forgetPool( pool );
+        }
+
+        for( Future<Boolean>    replicaDrain : replicaDrains )
+        {
+            try
+            {
+                drained &= replicaDrain.get();
+            }
+            catch( ExecutionException    ex )
+            {
+                Database.sqlLog.warn( "Can't drain replica of [" + toShortString() + "]", ex.getCause() );
+                drained = false;
+            }
+            catch( InterruptedException    ex )
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return drained;
+    }
+
+
+    /**
+     *    Drains every pool, all at once, each waiting up to its own
+     *    DrainTimeout, and returns when they're all shut down, shared
+     *    or not.
+     */
     public static void shutdownAll()
     {
-        synchronized( _connectionInfos )
+        //
+        //    Copy them so nothing's locked while the pools close.  Each
+        //    pool is drained once however many infos share it, with the
+        //    DrainTimeout of the first.
+        //
+        Map<ConnectionPool,Long>    pools   = new LinkedHashMap<ConnectionPool,Long>();
+        List<ConnectionInfo>        infos   = new ArrayList<ConnectionInfo>();
+        long                        longest = 0;
+
+        for( Object    connectionInfo : _connectionInfos.toArray() )
         {
-            for( ConnectionInfo    connectionInfo : _connectionInfos )
+            //
+            //    Can be null if it's already been gc'd
+            //
+            if( connectionInfo == null )
             {
-                //
-                //    Can be null if it's already been gc'd
-                //
-                if( connectionInfo != null )
+                continue;
+            }
+
+            ConnectionInfo    info = (ConnectionInfo) connectionInfo;
+            ConnectionPool    pool = info._connectionPool;
+
+            info._poolReleased.set( true );
+            infos.add( info );
+
+            if( pool != null && ! pools.containsKey( pool ) )
+            {
+                pools.put( pool, info.getPoolConfig().getDrainTimeout() );
+                longest = Math.max( longest, info.getPoolConfig().getDrainTimeout() );
+            }
+        }
+
+        ExecutorService    drainers
+            = Executors.newCachedThreadPool( new ConnectionPool.PoolThreadFactory( "DatabaseConnectionDrainer" ) );
+
+        for( final Map.Entry<ConnectionPool,Long>    entry : pools.entrySet() )
+        {
+            drainers.execute( new Runnable()
+            {
+                @Override
+                public void run()
                 {
-                    connectionInfo.shutdown();
+                    entry.getKey().drain( entry.getValue() );
                 }
+            } );
+        }
+
+        drainers.shutdown();
+
+        try
+        {
+            //
+            //    Leave time for cancelling and closing after the
+            //    longest drain.
+            //
+            drainers.awaitTermination( longest + 10 * 1000, TimeUnit.MILLISECONDS );
+        }
+        catch( InterruptedException    ex )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        //
+        //    Close whatever didn't finish draining.
+        //
+        for( ConnectionPool    pool : pools.keySet() )
+        {
+            if( ! pool.isClosed() )
+            {
+                pool.shutdown();
+            }
+        }
+
+        for( ConnectionInfo    info : infos )
+        {
+            ConnectionPool    pool = info._connectionPool;
+
+            if( pool != null )
+            {
+                info.forgetPool( pool );
+            }
+            else
+            {
+                info._poolReleased.set( false );
             }
         }
     }
@@ -418,18 +835,235 @@ public class ConnectionInfo
     }
 
 
+    /**
+     *    Changes how many connections the pool may hold, without
+     *    restarting it.  Shrinking closes idle connections over the new
+     *    limit now and leased ones as they're returned, so no work in
+     *    flight is cut off.
+     *
+     *    @param maxConnections 0 for no limit
+     */
+    public void setMaxConnections( final int    maxConnections )
+    {
+        if ( maxConnections < 0 )
+        {
+            throw new IllegalArgumentException( "MaxConnections can't be negative: " + maxConnections );
+        }
+
+        _maxConnections = maxConnections;
+
+        ConnectionInfo    owner = getPoolOwner();
+
+        if ( owner != this )
+        {
+            owner._maxConnections = maxConnections;
+        }
+
+        ConnectionPool    pool = _connectionPool;
+
+        if ( pool != null )
+        {
+            pool.setMaxConnections( maxConnections );
+        }
+    }
+
+
+    /**
+     *    @return the info whose settings the pool runs on: the one that
+     *            created it, if it's shared with others
+     */
+    private ConnectionInfo getPoolOwner()
+    {
+        ConnectionPool    pool = _connectionPool;
+
+        return pool == null ? this : pool.getConnectionInfo();
+    }
+
+
+    /**
+     *    Re-reads MaxConnections, IdleTimeout and BorrowTimeout, for
+     *    this info and its replicas, from the keys it was first read
+     *    from, and applies them to the running pool.  Call it when the
+     *    reader's source has changed.  Other settings only take effect
+     *    on a new pool.
+     *    <p>
+     *    A shared pool runs on the settings of the info that created
+     *    it, so those are changed too.
+     */
+    public void reload( final ResourceReader    reader )
+    {
+        if ( _keyBase == null )
+        {
+            Database.sqlLog.warn( "Can't reload [" + toShortString()
+                                  + "], it wasn't read from a ResourceReader" );
+            return;
+        }
+
+        ConnectionPoolConfig    config        = getPoolConfig();
+        long                    idleTimeout   = reader.getInt( _keyBase + ".IdleTimeout",
+                                                               (int) config.getIdleTimeout() );
+        long                    borrowTimeout = reader.getInt( _keyBase + ".BorrowTimeout",
+                                                               (int) config.getBorrowTimeout() );
+
+        config.setIdleTimeout( idleTimeout );
+        config.setBorrowTimeout( borrowTimeout );
+
+        ConnectionInfo    owner = getPoolOwner();
+
+        if ( owner != this )
+        {
+            owner.getPoolConfig().setIdleTimeout( idleTimeout );
+            owner.getPoolConfig().setBorrowTimeout( borrowTimeout );
+        }
+
+        int    maxConnections = reader.getInt( _keyBase + ".MaxConnections", _maxConnections );
+
+        if ( maxConnections != _maxConnections )
+        {
+            setMaxConnections( maxConnections );
+        }
+
+        for ( ConnectionInfo    replica : _replicas )
+        {
+            replica.reload( reader );
+        }
+    }
+
+
     public String getPassword()
     {
         return _password;
     }
 
 
+    boolean isUseSSL()
+    {
+        return _useSSL;
+    }
+
+
+    DataSource getDataSource()
+    {
+        return _dataSource;
+    }
+
+
+    public ConnectionPoolConfig getPoolConfig()
+    {
+        return _poolConfig;
+    }
+
+
+    /**
+     *    Changes take effect when the pool is created, so set this
+     *    before the first connection is requested.
+     */
+    public void setPoolConfig( final ConnectionPoolConfig    poolConfig )
+    {
+        _poolConfig = poolConfig;
+    }
+
+
     public String getDriver()
     {
         return _driver;
     }
 
 
+    /**
+     *    Adds a read replica of this database.  Reads made through a
+     *    Database outside a transaction are spread over the replicas
+     *    that are no more than MaxReplicaLag behind.
+     */
+    public void addReplica( final ConnectionInfo    replica )
+    {
+        replica._replica = true;
+        _replicas.add( replica );
+    }
+
+
+    public List<ConnectionInfo> getReplicas()
+    {
+        return Collections.unmodifiableList( _replicas );
+    }
+
+
+    public boolean hasReplicas()
+    {
+        return ! _replicas.isEmpty();
+    }
+
+
+    public boolean isReplica()
+    {
+        return _replica;
+    }
+
+
+    /**
+     *    The replicas caught up to within MaxReplicaLag, in the order
+     *    reads should try them: round robin from the next one.  Empty
+     *    if none are.
+     */
+    public List<ConnectionInfo> getReadReplicas()
+    {
+        int    count = _replicas.size();
+
+        if ( count == 0 )
+        {
+            return Collections.emptyList();
+        }
+
+        List<ConnectionInfo>    replicas = new ArrayList<ConnectionInfo>( count );
+        long                    maxLag   = _poolConfig.getMaxReplicaLag();
+        int                     start    = _nextReplica.getAndIncrement();
+
+        for ( int ii = 0; ii < count; ii++ )
+        {
+            ConnectionInfo    replica;
+
+            try
+            {
+                replica = _replicas.get( Math.floorMod( start + ii, count ) );
+            }
+            catch ( IndexOutOfBoundsException    ex )
+            {
+                //    A replica was removed while we looked.
+                break;
+            }
+
+            long    lag = replica.getReplicationLag();
+
+            if ( lag >= 0 && lag <= maxLag )
+            {
+                replicas.add( replica );
+            }
+        }
+
+        return replicas;
+    }
+
+
+    /**
+     *    How far behind its primary this replica is in milliseconds,
+     *    -1 if that isn't known yet, or Long.MAX_VALUE if it couldn't
+     *    be checked.  Creates the pool, which starts the checks, if it
+     *    doesn't exist yet.
+     */
+    public long getReplicationLag()
+    {
+        try
+        {
+            return getConnectionPool().getReplicationLag();
+        }
+        catch ( DatabaseException    ex )
+        {
+            //    Ignore, it's already logged
+            return Long.MAX_VALUE;
+        }
+    }
+
+
     /**
      *    Get the database platform we are using.
      */
@@ -453,13 +1087,18 @@ public class ConnectionInfo
         {
             try
             {
-                synchronized( this )
+                _poolLock.lock();
+                try
                 {
                     if( _connectionPool == null )
                     {
                         init();
                     }
                 }
+                finally
+                {
+                    _poolLock.unlock();
+                }
             }
             catch ( Throwable    ex )
             {
@@ -482,12 +1121,55 @@ public class ConnectionInfo
     }
 
 
+    /**
+     *    Creates the pool now and starts opening its InitialSize (or
+     *    MinIdle) connections in the background, so the first requests
+     *    after startup don't pay for connecting.
+     *
+     *    @see #awaitWarmUp(long)
+     */
+    public void warmUp()
+        throws
+            DatabaseException
+    {
+        getConnectionPool().warmUp();
+    }
+
+
+    /**
+     *    Blocks until the connections started by {@link #warmUp()} are
+     *    open, e.g. before an application reports itself ready.
+     *
+     *    @param timeout The timeout value in milliseconds
+     *    @return false if the timeout expired first, or some of the
+     *            connections couldn't be opened
+     */
+    public boolean awaitWarmUp( final long    timeout )
+        throws
+            DatabaseException
+    {
+        return getConnectionPool().awaitWarmUp( timeout );
+    }
+
+
+    /**
+     *    Counts and timings for this info's pool, the same ones
+     *    published over JMX.  Creates the pool if it doesn't exist yet.
+     */
+    public ConnectionPoolMXBean getPoolMetrics()
+        throws
+            DatabaseException
+    {
+        return getConnectionPool().getMetrics();
+    }
+
+
     /**
      *    Checks out a connection from the _pool. If no free connection
      *    is available, a new connection is created unless the max
      *    number of connections has been reached. If a free connection
      *    has been closed by the database, it's removed from the _pool
-     *    and this method is called again recursively.
+     *    and the next free one is tried.
      *    <P>
      *    If no connection is available and the max number has been
      *    reached, this method waits the specified time for one to be
@@ -504,23 +1186,127 @@ public class ConnectionInfo
 
 
     /**
-     *    Checks in a connection to the _pool.
-     *    <p>
-     *    Notify other Threads that may be waiting for a connection.
+     *    Like {@link #getConnectionPack(long)}, counting the connection
+     *    against one of the pool's partitions.
+     *
+     *    @param partition null, or a partition the pool doesn't have,
+     *                     for the default partition
      */
-    public void releaseConnectionPack( final ConnectionPack    pack )
+    public ConnectionPack getConnectionPack( final String    partition,
+                                             final long      timeout )
+        throws
+            DatabaseException
+    {
+        return getConnectionPool().getConnectionPack( partition, timeout );
+    }
+
+
+    /**
+     *    Like {@link #getConnectionPack(String, long)}, never sharing a
+     *    connection the thread already holds if <code>independent</code>.
+     *
+     *    @see ConnectionPoolConfig#isShareThreadLeases()
+     */
+    public ConnectionPack getConnectionPack( final String     partition,
+                                             final long       timeout,
+                                             final boolean    independent )
+        throws
+            DatabaseException
+    {
+        return getConnectionPool().getConnectionPack( partition, timeout, independent );
+    }
+
+
+    /**
+     *    Like {@link #getConnectionPack(String, long, boolean)}, waiting
+     *    behind any borrowers of a higher priority.
+     *
+     *    @throws PoolOverloadException if too many borrowers of the
+     *                                  priority are already waiting
+     *    @see ConnectionPoolConfig#getMaxWaiting(BorrowPriority)
+     */
+    public ConnectionPack getConnectionPack( final String            partition,
+                                             final long              timeout,
+                                             final boolean           independent,
+                                             final BorrowPriority    priority )
+        throws
+            DatabaseException
+    {
+        return getConnectionPool().getConnectionPack( partition, timeout, independent, priority );
+    }
+
+
+    /**
+     *    Borrows a connection without blocking, for callers that can't
+     *    spare a thread to wait, e.g. on an event loop.  The future is
+     *    completed on <code>executor</code>.
+     *
+     *    @param partition null for the default partition
+     *    @see ConnectionPool#acquireAsync(String, long, Executor)
+     */
+    public CompletableFuture<ConnectionPack> acquireAsync( final String      partition,
+                                                           final long        timeout,
+                                                           final Executor    executor )
     {
         try
         {
-            getConnectionPool().releaseConnectionPack( pack );
+            return getConnectionPool().acquireAsync( partition, timeout, executor );
         }
-        catch( DatabaseException    ex )
+        catch ( DatabaseException    ex )
         {
-            //    Ignore, it's already logged
+            return CompletableFuture.failedFuture( ex );
         }
     }
 
 
+    /**
+     *    Like {@link #acquireAsync(String, long, Executor)}, waiting
+     *    behind any borrowers of a higher priority.  The future fails
+     *    with a PoolOverloadException if too many borrowers of the
+     *    priority are already waiting.
+     */
+    public CompletableFuture<ConnectionPack> acquireAsync( final String            partition,
+                                                           final BorrowPriority    priority,
+                                                           final long              timeout,
+                                                           final Executor          executor )
+    {
+        try
+        {
+            return getConnectionPool().acquireAsync( partition, priority, timeout, executor );
+        }
+        catch ( DatabaseException    ex )
+        {
+            return CompletableFuture.failedFuture( ex );
+        }
+    }
+
+
+    /**
+     *    Borrows a connection from the default partition without
+     *    blocking, waiting up to BorrowTimeout as Database does.  The
+     *    future is completed on the common ForkJoinPool.
+     */
+    public CompletableFuture<ConnectionPack> acquireAsync()
+    {
+        return acquireAsync( null, getPoolConfig().getBorrowTimeout(), ForkJoinPool.commonPool() );
+    }
+
+
+    /**
+     *    Checks in a connection to the _pool.
+     *    <p>
+     *    Notify other Threads that may be waiting for a connection.
+     */
+    /**
+     *    Gives the pack back to the pool it came from, even if that's
+     *    since been shut down and this info has a new one.
+     */
+    public void releaseConnectionPack( final ConnectionPack    pack )
+    {
+        pack.getPool().releaseConnectionPack( pack );
+    }
+
+
     public void cancelAllStatements()
         throws
             SQLException
@@ -550,19 +1336,56 @@ public class ConnectionInfo
     }
 
 
+    /**
+     *    @return the driver for the URL, looked up the first time
+     */
     public final Driver getJDBCDriver()
         throws
             SQLException
     {
-        return DriverManager.getDriver( _url );
+        Driver    driver = _jdbcDriver;
+
+        if ( driver == null )
+        {
+            driver = DriverManager.getDriver( _url );
+            _jdbcDriver = driver;
+        }
+
+        return driver;
     }
 
 
+    /**
+     *    Opens a new physical connection, from the DataSource if there
+     *    is one, otherwise from the driver for the URL.
+     */
     public final Connection getConnection()
         throws
             SQLException
     {
-        Properties    connectionProps = new Properties();
+        if ( _dataSource != null )
+        {
+            return _dataSource.getConnection();
+        }
+
+        return getJDBCDriver().connect( _url, getConnectionProperties() );
+    }
+
+
+    /**
+     *    @return the properties to connect with, built the first time.
+     *            Drivers copy them, so they're shared.
+     */
+    private Properties getConnectionProperties()
+    {
+        Properties    connectionProps = _connectionProperties;
+
+        if ( connectionProps != null )
+        {
+            return connectionProps;
+        }
+
+        connectionProps = new Properties();
 
         if( _userName != null )
         {
@@ -585,8 +1408,10 @@ public class ConnectionInfo
                 connectionProps.put( "sslfactory", "org.postgresql.ssl.NonValidatingFactory" );
             }
         }
-        
-        return getJDBCDriver().connect( _url, connectionProps );
+
+        _connectionProperties = connectionProps;
+
+        return connectionProps;
     }
 
 
@@ -612,6 +1437,8 @@ public class ConnectionInfo
                 .append( "User name",       getUserName() )
                 .append( "Driver",          getDriver() )
                 .append( "Max connections", getMaxConnections() )
+                .append( "Pool config",     getPoolConfig() )
+                .append( "Replicas",        _replicas.size() )
                 .append( "Platform",        getPlatform() )
                     .toString();
         }
@@ -11,15 +11,22 @@ package com.samsix.database;
 
 
 import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.log4j.Logger;
@@ -35,19 +42,89 @@ class ConnectionPack
 
     private final static AtomicInteger    _sequenceGenerator = new AtomicInteger();
 
+    //
+    //    Lease states.  The pool claims and returns packs by CAS'ing
+    //    between these so borrowers never need a shared lock.
+    //
+    static final int    STATE_NOT_IN_USE = 0;
+    static final int    STATE_IN_USE     = 1;
+    static final int    STATE_REMOVED    = -1;
+
     private final ConnectionInfo    _info;
-    private Connection              _connection;
-    private boolean                 _inUse;
-    private long                    _lastUse;
+
+    //
+    //    Set together once the connection's open, and cleared when
+    //    it's closed, possibly by the pool while a borrower is still
+    //    using the pack, so read each once.
+    //
+    private volatile Connection      _connection;
+    private volatile SessionState    _session;
+    private final AtomicInteger     _state = new AtomicInteger( STATE_IN_USE );
+    private volatile long           _lastUse;
+    private volatile long           _lastKeepalive;
+    private volatile long           _retireTime;
+
+    //
+    //    Who has the pack, for leak detection.  A pack that's been
+    //    claimed but not yet handed over (while it's validated, say)
+    //    isn't leased to anybody.
+    //
+    private volatile boolean        _leased;
+    private volatile long           _leaseTime;
+    private volatile String         _leaseThread;
+    private volatile Throwable      _leaseTrace;
+    private final AtomicBoolean     _leakReported = new AtomicBoolean();
+
+    //
+    //    The pool partition the current lease counts against.
+    //
+    private final AtomicReference<PoolPartition>    _partition = new AtomicReference<PoolPartition>();
+
+    //
+    //    How many borrowers share the current lease, and the thread
+    //    they share it on, when ShareThreadLeases is on.
+    //
+    private final AtomicInteger     _holders = new AtomicInteger();
+    private volatile Thread         _owner;
     private final int               _sequence = _sequenceGenerator.incrementAndGet();
 
-    private final Collection<SqlStatement>    _statements;
+    //
+    //    Open statements made on the connection.  Each one takes itself
+    //    out when it's closed, so this only holds what's live.
+    //
+    private final Set<SqlStatement>    _statements;
+
+    //
+    //    PreparedStatements kept open across leases, or null if
+    //    StatementCacheSize is 0.
+    //
+    private final StatementCache           _cache;
+    private final ConnectionPoolMetrics    _metrics;
+
+    //
+    //    The pool generation the connection was opened in, and
+    //    whether it's been seen to be lost.
+    //
+    private final ConnectionPool    _pool;
+    private final int               _generation;
+    private volatile boolean        _broken;
 
 
-    public ConnectionPack( final ConnectionInfo     info )
+    public ConnectionPack( final ConnectionInfo           info,
+                           final ConnectionPool           pool,
+                           final ConnectionPoolMetrics    metrics )
     {
         _info = info;
-        _statements = new HashSet<SqlStatement>();
+        _pool = pool;
+        _generation = pool.getGeneration();
+        _metrics = metrics;
+        _statements = ConcurrentHashMap.newKeySet();
+
+        int    cacheSize = info.getPoolConfig().getStatementCacheSize();
+
+        _cache = cacheSize > 0 ? new StatementCache( cacheSize ) : null;
+        _lastUse = System.currentTimeMillis();
+        _leaseTime = _lastUse;
 
         lease();
     }
@@ -59,31 +136,248 @@ class ConnectionPack
     }
 
 
+    ConnectionPool getPool()
+    {
+        return _pool;
+    }
+
+
     public void lease()
     {
-        _inUse = true;
+        _state.set( STATE_IN_USE );
     }
 
 
-    public void expireLease()
+    /**
+     *    Marks the pack as free again.
+     *
+     *    @return false if the pack was removed from its pool while
+     *            leased, in which case it must not be reused.
+     */
+    public boolean expireLease()
+    {
+        return recycle()
+               && _state.compareAndSet( STATE_IN_USE, STATE_NOT_IN_USE );
+    }
+
+
+    /**
+     *    Closes out the current lease but leaves the pack leased, for
+     *    when it is handed straight to the next borrower.  Statements
+     *    the borrower left open are forgotten, and cached ones go back
+     *    into the cache.
+     *
+     *    @return false if the pack was removed from its pool while
+     *            leased.
+     */
+    boolean recycle()
     {
-        _inUse   = false;
         _lastUse = System.currentTimeMillis();
-        synchronized ( _statements )
+        _leaseTime = _lastUse;
+        _leased = false;
+
+        //
+        //    Otherwise a cached statement that was never closed stays
+        //    checked out for good, and the cache grows past its size
+        //    with fresh copies of the same SQL.
+        //
+        for ( SqlStatement    sqlStatement : _statements )
+        {
+            sqlStatement.checkIn();
+        }
+
+        _statements.clear();
+
+        return _state.get() == STATE_IN_USE;
+    }
+
+
+    void setPartition( final PoolPartition    partition )
+    {
+        _partition.set( partition );
+    }
+
+
+    PoolPartition getPartition()
+    {
+        return _partition.get();
+    }
+
+
+    /**
+     *    Clears the partition so the lease is only taken off its count
+     *    once.
+     */
+    PoolPartition takePartition()
+    {
+        return _partition.getAndSet( null );
+    }
+
+
+    /**
+     *    Records a new borrower.
+     *
+     *    @param trace where it was borrowed, or null if not sampled
+     */
+    void startLease( final Throwable    trace )
+    {
+        _leaseTime   = System.currentTimeMillis();
+        _leased      = true;
+        _leaseThread = Thread.currentThread().getName();
+        _leaseTrace  = trace;
+        _leakReported.set( false );
+        _owner       = null;
+        _holders.set( 1 );
+    }
+
+
+    /**
+     *    Lets the current lease be shared on the borrowing thread.
+     */
+    void setOwner( final Thread    owner )
+    {
+        _owner = owner;
+    }
+
+
+    Thread getOwner()
+    {
+        return _owner;
+    }
+
+
+    /**
+     *    Adds a borrower to the current lease.
+     *
+     *    @return false if the lease has already ended
+     */
+    boolean share()
+    {
+        while ( true )
+        {
+            int    holders = _holders.get();
+
+            if ( holders <= 0 )
+            {
+                return false;
+            }
+
+            if ( _holders.compareAndSet( holders, holders + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     *    Takes a borrower off the current lease.
+     *
+     *    @return true if others still share it, so it mustn't go back
+     *            to the pool yet
+     */
+    boolean unshare()
+    {
+        while ( true )
         {
-            _statements.clear();
+            int    holders = _holders.get();
+
+            if ( holders <= 1 )
+            {
+                _holders.set( 0 );
+                _owner = null;
+                return false;
+            }
+
+            if ( _holders.compareAndSet( holders, holders - 1 ) )
+            {
+                return true;
+            }
         }
     }
 
 
+    long getLeaseTime()
+    {
+        return _leaseTime;
+    }
+
+
+    /**
+     *    @return true if a borrower has the pack, rather than the pool
+     *            having just claimed it
+     */
+    boolean isLeased()
+    {
+        return _leased;
+    }
+
+
+    String getLeaseThread()
+    {
+        return _leaseThread;
+    }
+
+
+    Throwable getLeaseTrace()
+    {
+        return _leaseTrace;
+    }
+
+
+    /**
+     *    @return true the first time it's called during a lease
+     */
+    boolean markLeakReported()
+    {
+        return _leakReported.compareAndSet( false, true );
+    }
+
+
+    boolean compareAndSetState( final int    expect,
+                                final int    update )
+    {
+        return _state.compareAndSet( expect, update );
+    }
+
+
+    /**
+     *    @return true if this call moved the pack into the removed state,
+     *            false if it had already been removed.
+     */
+    boolean markRemoved()
+    {
+        return _state.getAndSet( STATE_REMOVED ) != STATE_REMOVED;
+    }
+
+
+    /**
+     *    Closes the connection for good.  A borrower still holding the
+     *    pack, e.g. one whose leak was reclaimed, gets an SQLException
+     *    from then on rather than a new connection outside the pool.
+     */
     public void close()
         throws
             SQLException
     {
-        if ( _connection != null )
+        _state.set( STATE_REMOVED );
+
+        if ( _cache != null )
+        {
+            //
+            //    Closing the connection closes these.
+            //
+            _cache.clear();
+        }
+
+        Connection    connection = _connection;
+
+        _connection = null;
+        _session = null;
+
+        if ( connection != null )
         {
-            _connection.close();
-            _connection = null;
+            connection.close();
         }
 
         _statements.clear();
@@ -98,35 +392,32 @@ class ConnectionPack
 
     public void removeOldStatements()
     {
-        synchronized ( _statements )
+        Iterator<SqlStatement>    iter = _statements.iterator();
+
+        while ( iter.hasNext() )
         {
-            Iterator<SqlStatement>    iter = _statements.iterator();
+            SqlStatement sqlStatement = iter.next();
+            Statement statement = sqlStatement.statement.get();
 
-            while ( iter.hasNext() )
+            // remove expired statements
+            if ( statement == null )
             {
-                SqlStatement sqlStatement = iter.next();
-                Statement statement = sqlStatement.statement.get();
+                iter.remove();
+                continue;
+            }
 
-                // remove expired statements
-                if ( statement == null )
+            // remove closed statements
+            try
+            {
+                if( statement.isClosed() || statement.getConnection().isClosed() )
                 {
                     iter.remove();
-                    continue;
-                }
-
-                // remove closed statements
-                try
-                {
-                    if( statement.isClosed() || statement.getConnection().isClosed() )
-                    {
-                        iter.remove();
-                    }
-                }
-                catch( SQLException ex )
-                {
-                    logger.warn( "Failed to check if statement is closed", ex );
                 }
             }
+            catch( SQLException ex )
+            {
+                logger.warn( "Failed to check if statement is closed", ex );
+            }
         }
     }
 
@@ -135,13 +426,107 @@ class ConnectionPack
         throws
             SQLException
     {
-        if ( _connection == null )
+        Connection    connection = _connection;
+
+        if ( connection == null )
         {
             //    Not sure, seems right.  Not to worry?
             return true;
         }
 
-        return _connection.isClosed();
+        return connection.isClosed();
+    }
+
+
+    int getGeneration()
+    {
+        return _generation;
+    }
+
+
+    /**
+     *    @return true if a borrower's call found the connection lost
+     */
+    boolean isBroken()
+    {
+        return _broken;
+    }
+
+
+    /**
+     *    Marks the pack broken if the exception says the connection was
+     *    lost, and has the pool drop every connection opened before it
+     *    too: they went the same way if the database restarted or
+     *    failed over.
+     */
+    void checkFailure( final SQLException    ex )
+    {
+        //
+        //    Once the pool's taken the pack out, e.g. reclaimed it from
+        //    a leak, its connection being closed says nothing about the
+        //    others.
+        //
+        if ( _state.get() == STATE_REMOVED )
+        {
+            return;
+        }
+
+        if ( ConnectionPool.isConnectionLost( ex ) )
+        {
+            _broken = true;
+            _pool.invalidate( this, ex );
+        }
+    }
+
+
+    /**
+     *    Checks the connection is still alive, with a round trip to the
+     *    server unless the mode is NONE.
+     *
+     *    @param timeout in seconds
+     */
+    boolean validate( final ConnectionPoolConfig.ValidationMode    mode,
+                      final int                                    timeout,
+                      final String                                 query )
+    {
+        try
+        {
+            Connection    connection = _connection;
+
+            if ( connection == null || connection.isClosed() )
+            {
+                return false;
+            }
+
+            switch ( mode )
+            {
+                case IS_VALID:
+                    return connection.isValid( timeout );
+
+                case QUERY:
+                    Statement    statement = connection.createStatement();
+
+                    try
+                    {
+                        statement.setQueryTimeout( timeout );
+                        statement.execute( query );
+                    }
+                    finally
+                    {
+                        statement.close();
+                    }
+
+                    return true;
+
+                default:
+                    return true;
+            }
+        }
+        catch ( Throwable    ex )
+        {
+            logger.warn( "Connection failed validation: " + this, ex );
+            return false;
+        }
     }
 
 
@@ -149,18 +534,18 @@ class ConnectionPack
         throws
             SQLException
     {
-        synchronized ( _statements )
+        Iterator<SqlStatement>    iter = _statements.iterator();
+
+        while ( iter.hasNext() )
         {
-            for ( SqlStatement    sqlStatement : _statements )
+            Statement statement = iter.next().statement.get();
+
+            iter.remove();
+
+            if ( statement != null && ! statement.isClosed() )
             {
-                Statement statement = sqlStatement.statement.get();
-                if ( statement != null && ! statement.isClosed() )
-                {
-                    statement.cancel();
-                }
+                statement.cancel();
             }
-
-            _statements.clear();
         }
     }
 
@@ -189,15 +574,21 @@ class ConnectionPack
             resultSetType = ResultSet.TYPE_FORWARD_ONLY;
         }
 
-        Statement    statement;
-        statement = getConnection().createStatement( resultSetType,
-                                                     ResultSet.CONCUR_READ_ONLY );
-        synchronized ( _statements )
+        SessionState    session = connect();
+        Statement       statement;
+
+        try
         {
-            _statements.add( new SqlStatement( statement, sql ) );
+            statement = session.getDriverConnection().createStatement( resultSetType,
+                                                                       ResultSet.CONCUR_READ_ONLY );
+        }
+        catch ( SQLException    ex )
+        {
+            checkFailure( ex );
+            throw ex;
         }
 
-        return statement;
+        return register( session, statement, Statement.class, sql );
     }
 
 
@@ -217,14 +608,31 @@ class ConnectionPack
         //
         int resultSetType = scrollable ? ResultSet.TYPE_SCROLL_INSENSITIVE : ResultSet.TYPE_FORWARD_ONLY;
 
+        SessionState         session   = connect();
+        String               key       = "R" + resultSetType + ":" + sql;
         PreparedStatement    statement;
-        statement = getConnection().prepareStatement( sql, resultSetType, ResultSet.CONCUR_READ_ONLY );
-        synchronized ( _statements )
+        boolean              cached;
+
+        try
         {
-            _statements.add( new SqlStatement( statement, sql ) );
+            statement = checkOut( key );
+            cached    = statement != null;
+
+            if ( statement == null )
+            {
+                statement = session.getDriverConnection().prepareStatement( sql, resultSetType, ResultSet.CONCUR_READ_ONLY );
+                cached    = cache( key, statement );
+            }
+        }
+        catch ( SQLException    ex )
+        {
+            checkFailure( ex );
+            throw ex;
         }
 
-        return statement;
+        session.noteSql( sql );
+
+        return register( session, statement, PreparedStatement.class, sql, cached ? key : null );
     }
 
 
@@ -236,56 +644,244 @@ class ConnectionPack
         int autoGeneratedKeys = wantAutogeneratedKeys ? PreparedStatement.RETURN_GENERATED_KEYS
                                                       : PreparedStatement.NO_GENERATED_KEYS;
 
+        SessionState         session   = connect();
+        String               key       = "E" + autoGeneratedKeys + ":" + sql;
         PreparedStatement    statement;
-        statement = getConnection().prepareStatement( sql, autoGeneratedKeys );
-        synchronized ( _statements )
+        boolean              cached;
+
+        try
+        {
+            statement = checkOut( key );
+            cached    = statement != null;
+
+            if ( statement == null )
+            {
+                statement = session.getDriverConnection().prepareStatement( sql, autoGeneratedKeys );
+                cached    = cache( key, statement );
+            }
+        }
+        catch ( SQLException    ex )
+        {
+            checkFailure( ex );
+            throw ex;
+        }
+
+        session.noteSql( sql );
+
+        return register( session, statement, PreparedStatement.class, sql, cached ? key : null );
+    }
+
+
+    /**
+     *    @return the cached statement for the key, ready for new
+     *            parameters, or null if there isn't a free one
+     */
+    private PreparedStatement checkOut( final String    key )
+        throws
+            SQLException
+    {
+        if ( _cache == null )
+        {
+            return null;
+        }
+
+        PreparedStatement    statement = _cache.checkOut( key );
+
+        if ( statement == null )
         {
-            _statements.add( new SqlStatement( statement, sql ) );
+            _metrics.recordStatementCacheMiss();
+            return null;
         }
 
+        _metrics.recordStatementCacheHit();
+
+        statement.clearParameters();
+
         return statement;
     }
 
 
+    /**
+     *    Caches a statement just prepared, closing any it evicts.
+     *
+     *    @return false if it wasn't cached
+     */
+    private boolean cache( final String               key,
+                           final PreparedStatement    statement )
+    {
+        if ( _cache == null )
+        {
+            return false;
+        }
+
+        List<PreparedStatement>    evicted = new ArrayList<PreparedStatement>( 1 );
+        boolean                    cached  = _cache.add( key, statement, evicted );
+
+        for ( PreparedStatement    old : evicted )
+        {
+            _metrics.recordStatementCacheEviction();
+
+            try
+            {
+                old.close();
+            }
+            catch ( SQLException    ex )
+            {
+                logger.warn( "Can't close evicted statement", ex );
+            }
+        }
+
+        return cached;
+    }
+
+
+    private <T extends Statement> T register( final SessionState    session,
+                                              final T               statement,
+                                              final Class<T>        type,
+                                              final String          sql )
+    {
+        return register( session, statement, type, sql, null );
+    }
+
+
+    /**
+     *    Adds a statement to the open ones and wraps it so closing it
+     *    takes it back out.
+     *
+     *    @param cacheKey if the statement is cached, its key, so closing
+     *                    it checks it back in instead
+     */
+    private <T extends Statement> T register( final SessionState    session,
+                                              final T               statement,
+                                              final Class<T>        type,
+                                              final String          sql,
+                                              final String          cacheKey )
+    {
+        SqlStatement    sqlStatement = new SqlStatement( statement, sql, cacheKey );
+
+        _statements.add( sqlStatement );
+
+        return type.cast( SessionState.proxy( statement,
+                                              new StatementHandler( session, statement, sqlStatement ) ) );
+    }
+
+
     public void collectActiveSql( final Collection<String>    sql )
     {
-        synchronized ( _statements )
+        for ( SqlStatement sqlStatement : _statements )
         {
-            for ( SqlStatement sqlStatement : _statements )
+            Statement statement = sqlStatement.statement.get();
+            if ( statement != null )
             {
-                Statement statement = sqlStatement.statement.get();
-                if ( statement != null )
+                try
                 {
-                    try
+                    if( ! statement.isClosed() )
                     {
-                        if( ! statement.isClosed() )
+                        if( statement instanceof PreparedStatement )
                         {
-                            if( statement instanceof PreparedStatement )
-                            {
-                                sql.add( statement.toString() );
-                            }
-                            else
-                            {
-                                sql.add( sqlStatement.sql );
-                            }
+                            sql.add( statement.toString() );
+                        }
+                        else
+                        {
+                            sql.add( sqlStatement.sql );
                         }
-                    }
-                    catch( SQLException ex )
-                    {
-                        logger.warn( "Couldn't collect active sql", ex );
                     }
                 }
+                catch( SQLException ex )
+                {
+                    logger.warn( "Couldn't collect active sql", ex );
+                }
             }
         }
     }
 
 
+    /**
+     *    @return the connection as borrowers should see it, with any
+     *            changes they make to the session tracked so the pool
+     *            can put them back.
+     */
     public Connection getConnection()
         throws
             SQLException
     {
-        if ( _connection == null )
+        return connect().getConnection();
+    }
+
+
+    /**
+     *    Closes the cached statements and starts the cache afresh, for
+     *    when their server-side statements have been deallocated.
+     */
+    void clearStatementCache()
+    {
+        if ( _cache == null )
+        {
+            return;
+        }
+
+        for ( PreparedStatement    statement : _cache.clear() )
+        {
+            try
+            {
+                statement.close();
+            }
+            catch ( SQLException    ex )
+            {
+                logger.warn( "Can't close cached statement", ex );
+            }
+        }
+    }
+
+
+    /**
+     *    Puts back whatever the borrower changed about the session, so
+     *    the next borrower gets it as it was opened.
+     *
+     *    @return false if that failed and the connection can't be
+     *            trusted any more
+     */
+    boolean resetSession()
+    {
+        SessionState    session = _session;
+
+        if ( session == null )
+        {
+            return true;
+        }
+
+        try
+        {
+            session.reset();
+            return true;
+        }
+        catch ( Throwable    ex )
+        {
+            logger.warn( "Can't reset session: " + this, ex );
+            return false;
+        }
+    }
+
+
+    /**
+     *    @return the session on the driver's own connection, opening it
+     *            if need be
+     *    @throws SQLException if the pack has been closed
+     */
+    private SessionState connect()
+        throws
+            SQLException
+    {
+        SessionState    session = _session;
+
+        if ( session == null )
         {
+            if ( _state.get() == STATE_REMOVED )
+            {
+                throw new SQLException( "Connection pack [" + _sequence
+                                        + "] was closed by the pool", "08003" );
+            }
+
             if( logger.isDebugEnabled() )
             {
                 if( ( ! java.awt.GraphicsEnvironment.isHeadless() )
@@ -304,7 +900,45 @@ class ConnectionPack
                              new Exception( "StackTrace:" ) );
             }
 
-            _connection = _info.getConnection();
+            ConnectionEstablishEvent    event      = new ConnectionEstablishEvent();
+            Connection                  connection = null;
+
+            event.begin();
+
+            try
+            {
+                connection = _info.getConnection();
+            }
+            finally
+            {
+                event.end();
+
+                if ( event.shouldCommit() )
+                {
+                    event.url       = _info.getUrl();
+                    event.user      = _info.getUserName();
+                    event.packId    = _sequence;
+                    event.succeeded = connection != null;
+                    event.commit();
+                }
+            }
+
+            session = new SessionState( connection,
+                                        Database.PLATFORM_POSTGRES.equals( _info.getPlatform() ),
+                                        this );
+
+            _connection = connection;
+            _session = session;
+
+            if ( _state.get() == STATE_REMOVED )
+            {
+                //
+                //    Closed while we were opening it.
+                //
+                close();
+                throw new SQLException( "Connection pack [" + _sequence
+                                        + "] was closed by the pool", "08003" );
+            }
 
 //            if ( _connection instanceof PGConnection )
 //            {
@@ -323,7 +957,7 @@ class ConnectionPack
 //            }
         }
 
-        return _connection;
+        return session;
     }
 
 
@@ -333,9 +967,37 @@ class ConnectionPack
     }
 
 
+    long getLastKeepalive()
+    {
+        return _lastKeepalive;
+    }
+
+
+    void setLastKeepalive( final long    lastKeepalive )
+    {
+        _lastKeepalive = lastKeepalive;
+    }
+
+
+    /**
+     *    @param retireTime when the pool should close this connection,
+     *                      or 0 for never.
+     */
+    void setRetireTime( final long    retireTime )
+    {
+        _retireTime = retireTime;
+    }
+
+
+    boolean isRetired( final long    now )
+    {
+        return _retireTime != 0 && now >= _retireTime;
+    }
+
+
     public boolean isInUse()
     {
-        return _inUse;
+        return _state.get() == STATE_IN_USE;
     }
 
 
@@ -363,17 +1025,157 @@ class ConnectionPack
     //
     // ================================
 
+    /**
+     *    An open statement.  Only weakly held, so one that's dropped
+     *    without being closed can still be collected.
+     */
     private class SqlStatement
     {
         public final WeakReference<Statement> statement;
         public final String sql;
+        private final String           _cacheKey;
+        private final AtomicBoolean    _checkedIn = new AtomicBoolean();
 
 
         SqlStatement( final Statement    statement,
-                      final String       sql )
+                      final String       sql,
+                      final String       cacheKey )
         {
             this.statement = new WeakReference<Statement>( statement );
             this.sql = sql;
+            _cacheKey = cacheKey;
+        }
+
+
+        /**
+         *    Checks a cached statement back into the cache, only once
+         *    whether closed by its borrower or at the end of the lease.
+         *
+         *    @return false if the statement isn't cached and should be
+         *            closed
+         */
+        boolean checkIn()
+        {
+            if ( _cacheKey == null )
+            {
+                return false;
+            }
+
+            if ( ! _checkedIn.compareAndSet( false, true ) )
+            {
+                return true;
+            }
+
+            return _cache.checkIn( _cacheKey, (PreparedStatement) statement.get() );
+        }
+
+
+        boolean isCheckedIn()
+        {
+            return _checkedIn.get();
+        }
+    }
+
+
+    // ================================
+    //
+    //    StatementHandler class
+    //
+    // ================================
+
+    /**
+     *    Stands in for a statement handed out by the pack, taking it
+     *    out of the open statements when it's closed.  Closing a cached
+     *    statement checks it back into the cache, and this stand-in is
+     *    closed for good.  The SQL it runs and the result sets it gives
+     *    out are tracked by the session like its own statements'.
+     */
+    private class StatementHandler
+        implements
+            InvocationHandler
+    {
+        private final SessionState    _session;
+        private final Statement       _statement;
+        private final SqlStatement    _sqlStatement;
+
+
+        StatementHandler( final SessionState    session,
+                          final Statement       statement,
+                          final SqlStatement    sqlStatement )
+        {
+            _session      = session;
+            _statement    = statement;
+            _sqlStatement = sqlStatement;
+        }
+
+
+        @Override
+        public Object invoke( final Object      proxy,
+                              final Method      method,
+                              final Object[]    args )
+            throws
+                Throwable
+        {
+            String    name = method.getName();
+
+            if ( _sqlStatement.isCheckedIn() )
+            {
+                if ( "close".equals( name ) )
+                {
+                    return null;
+                }
+                if ( "isClosed".equals( name ) )
+                {
+                    return true;
+                }
+                if ( ! "toString".equals( name ) )
+                {
+                    throw new SQLException( "Statement is closed" );
+                }
+            }
+
+            if ( "close".equals( name ) )
+            {
+                _statements.remove( _sqlStatement );
+
+                if ( _sqlStatement.checkIn() )
+                {
+                    return null;
+                }
+            }
+            else if ( "getConnection".equals( name ) )
+            {
+                return _session.getConnection();
+            }
+            else if ( "equals".equals( name ) && args != null && args.length == 1 )
+            {
+                return proxy == args[0];
+            }
+            else if ( "hashCode".equals( name ) && args == null )
+            {
+                return System.identityHashCode( proxy );
+            }
+            else if ( "unwrap".equals( name ) && args != null && args.length == 1 )
+            {
+                if ( ( (Class<?>) args[0] ).isInstance( proxy ) )
+                {
+                    return proxy;
+                }
+
+                _session.untracked();
+            }
+            else if ( args != null
+                      && args.length > 0
+                      && args[0] instanceof String
+                      && ( name.startsWith( "execute" ) || "addBatch".equals( name ) ) )
+            {
+                //
+                //    A plain statement's SQL is only seen here.
+                //
+                _session.noteSql( (String) args[0] );
+            }
+
+            return _session.track( _session.call( _statement, method, args ), (Statement) proxy );
         }
     }
 }
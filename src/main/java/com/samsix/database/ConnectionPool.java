@@ -10,18 +10,41 @@
 package com.samsix.database;
 
 
+import java.lang.ref.WeakReference;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.log4j.Logger;
@@ -31,7 +54,86 @@ import org.apache.log4j.Logger;
  *    Creates new connections on demand, up to a max number if specified.
  *    <p>
  *    It also makes sure a connection is still open before it is
- *    returned to a client.
+ *    returned to a client.  Connections that have been idle longer
+ *    than the ValidationIdleThreshold are validated with a round trip
+ *    first, which catches sockets the network has silently dropped;
+ *    recently used ones go out without one.
+ *    <p>
+ *    Borrowing and returning are lock-free.  Every pack lives in one
+ *    copy-on-write list and is claimed by CAS'ing its lease state, and
+ *    each thread first tries the pack it returned last, so on the common
+ *    path a thread gets its own connection back without contending with
+ *    anybody.
+ *    <p>
+ *    Threads that have to wait queue up in FIFO order, and a released
+ *    pack is handed directly to the oldest of them, so a waiter can't
+ *    lose its pack to a thread that just arrived.  Each
+ *    {@link BorrowPriority} has its own line, served before the lines
+ *    below it, and a line can be limited to MaxWaiting borrowers:
+ *    past that, borrowers get a PoolOverloadException instead of
+ *    waiting.
+ *    {@link #acquireAsync(String, long, Executor)} queues in the same
+ *    line without a thread: the pack completes a CompletableFuture
+ *    instead of unparking anybody.
+ *    <p>
+ *    Physical connections are only ever opened on the pool's own
+ *    creator threads, never on a borrower's.  At most
+ *    MaxConcurrentCreates connects are in flight at once, optionally
+ *    throttled to MaxCreatesPerSecond, and each new connection goes
+ *    straight to the oldest waiter.  So a burst of borrowers after a
+ *    database restart queues up instead of all connecting at once.
+ *    <p>
+ *    The pool can be warmed up ahead of use.  One housekeeping thread
+ *    shared by all pools closes connections idle past IdleTimeout (but
+ *    keeps MinIdle open), retires connections past their jittered
+ *    MaxLifetime, and pings idle ones every KeepaliveTime.  Connections
+ *    are closed on a background thread, so nobody waits on a socket
+ *    close.
+ *    <p>
+ *    Housekeeping also reports packs leased for longer than
+ *    LeakDetectionThreshold, with a sampled stack trace of where they
+ *    were borrowed, and can forcibly take back ones that are never
+ *    returned.
+ *    <p>
+ *    When CircuitBreakerThreshold connects in a row fail, the pool
+ *    stops waiting for the database: borrowers that would have to wait
+ *    for a new connection get a ConnectionException straight away
+ *    while single probe connects, backing off exponentially, check
+ *    for it to come back.  Idle connections are still lent out.
+ *    <p>
+ *    The pool can be divided into named partitions, each guaranteed a
+ *    minimum number of connections and limited to a maximum, so e.g.
+ *    a batch job can't starve interactive users.  A partition borrows
+ *    whatever the others aren't holding in reserve.
+ *    <p>
+ *    With ShareThreadLeases on, a thread that borrows again while it
+ *    already has a connection, outside a transaction, shares the one
+ *    it has instead of taking a second, so nested code can't double a
+ *    request's connections or deadlock the pool against itself.
+ *    <p>
+ *    When a borrower's call fails with a SQLState saying the
+ *    connection was lost (08xxx, or the server shutting down) the
+ *    pool assumes the database restarted or failed over: it starts a
+ *    new generation, closes every idle connection from the old one at
+ *    once and drops leased ones as they come back, instead of letting
+ *    each dead connection fail a query of its own.
+ *    <p>
+ *    Whatever a borrower changed about the session (auto-commit,
+ *    isolation, settings, temp tables and so on) is put back when the
+ *    pack is returned, and only that, so returning an untouched pack
+ *    costs no round trips.  See {@link SessionState}.
+ *    <p>
+ *    With AdaptiveSizing the pool sizes itself between
+ *    AdaptiveMinConnections and MaxConnections: see
+ *    {@link AdaptiveSizer}.
+ *    <p>
+ *    {@link #drain(long)} shuts the pool down without killing queries
+ *    in flight: it stops lending, then waits up to a deadline for
+ *    leased connections to come back before cancelling what's left.
+ *    <p>
+ *    Counts and timings are published over JMX as a
+ *    {@link ConnectionPoolMXBean}, and borrows and releases are
+ *    recorded as JFR events when those are enabled.
  */
 public class ConnectionPool
 {
@@ -40,448 +142,2934 @@ public class ConnectionPool
     private final static int    ONE_SECOND   = 1000;            // in milliseconds
     private final static int    ONE_MINUTE   = 60 * ONE_SECOND; // in seconds
 
+    /**
+     *    The partition used by borrowers that don't name one.
+     */
+    public final static String    DEFAULT_PARTITION = "default";
+
+    //
+    //    Runs housekeeping for every pool.
+    //
+    private final static ScheduledExecutorService    _housekeeper =
+        Executors.newSingleThreadScheduledExecutor( new PoolThreadFactory( "DatabaseConnectionHousekeeper" ) );
+
+    //
+    //    Times out async borrows for every pool.  It never touches a
+    //    connection, so a deadline can't be held up by a slow database.
+    //
+    private final static ScheduledThreadPoolExecutor    _borrowTimer = createBorrowTimer();
+
+    //
+    //    Threads waiting for a pack, highest priority then oldest
+    //    first, and how many there are altogether.
+    //
+    private final WaiterQueue                      _waiters;
+    private final AtomicInteger                    _waiting = new AtomicInteger();
+
+    //
+    //    Bumped when a connection is found lost, to tell the packs
+    //    opened before then from those opened since.
+    //
+    private final AtomicInteger                    _generation = new AtomicInteger();
+
+    //
+    //    The lease each thread may share, with ShareThreadLeases on.
+    //
+    private final ThreadLocal<ConnectionPack>      _threadLease = new ThreadLocal<ConnectionPack>();
+
+    //
+    //    Every connection owned by the pool, free or leased.  Writes
+    //    (new and removed connections) are rare, reads are constant.
+    //
+    private final CopyOnWriteArrayList<ConnectionPack>    _connections;
+
+    //
+    //    Where the next scan for a free pack starts, moving round so
+    //    every pack gets used.
+    //
+    private final AtomicInteger    _scanStart = new AtomicInteger();
+
+    //
+    //    Connections open or being opened, counted against
+    //    MaxConnections.
+    //
+    private final AtomicInteger    _totalConnections = new AtomicInteger();
+
+    //
+    //    The most connections the pool may hold: MaxConnections, or
+    //    with adaptive sizing wherever the sizer last put it.  0 for no
+    //    limit.
+    //
+    private volatile int           _maxConnections;
+
+    //
+    //    MaxConnections as last set, the ceiling for adaptive sizing.
+    //
+    private volatile int           _maxConnectionsLimit;
+
+    //
+    //    Open and close physical connections in the background.
+    //
+    private final ThreadPoolExecutor    _creator;
+    private final ThreadPoolExecutor    _closer;
+    private final AtomicInteger         _pendingCreates = new AtomicInteger();
+
     //
-    //    Locking mechanism for notifying of new pack availability
+    //    Earliest time (System.nanoTime()) the next connect may start
+    //    when creation is rate limited.
     //
-    private final ReentrantLock    _lock = new ReentrantLock();
-    private final Condition        _availablePack = _lock.newCondition();
+    private final AtomicLong            _nextCreateTime = new AtomicLong( System.nanoTime() );
 
     //
-    //    The number of connections currently checked out.
+    //    The pack each thread released last.  Weak so a pool thread
+    //    doesn't pin a closed pack.
     //
-    private final LinkedList<ConnectionPack>      _freeConnections;
-    private final List<ConnectionPack>            _leasedConnections;
+    private final ThreadLocal<WeakReference<ConnectionPack>>    _lastUsed;
 
     /**
-     *    Timer to decide whether Connections should be released
-     *    from the _pool?
+     *    Our turn on the housekeeper, to decide whether Connections
+     *    should be released from the _pool.
      */
-    private final Timer             _reapTimer;
+    private final ScheduledFuture<?>    _housekeeping;
+
+    //
+    //    For a replica, how far behind its primary it is in
+    //    milliseconds: -1 until it's been checked, Long.MAX_VALUE if
+    //    the last check failed.  The checks are null for a primary,
+    //    and only one at a time is queued to run.
+    //
+    private volatile long               _replicationLag = -1;
+    private final ScheduledFuture<?>    _lagMonitoring;
+    private final AtomicBoolean         _lagCheckQueued = new AtomicBoolean();
+
+    //
+    //    Adaptive sizing, null unless it's turned on.
+    //
+    private final ScheduledFuture<?>    _sizing;
+
+    //
+    //    The connects started by warmUp(), completed once they've all
+    //    been submitted so awaitWarmUp() can't see them half made.
+    //
+    private final AtomicBoolean                               _warmUpStarted = new AtomicBoolean();
+    private final CompletableFuture<List<Future<Boolean>>>    _warmUpTasks
+        = new CompletableFuture<List<Future<Boolean>>>();
+
+    //
+    //    Counts leases to sample borrow stack traces.
+    //
+    private final AtomicLong            _leases = new AtomicLong();
+
+    private final ConnectionPoolMetrics    _metrics;
+
+    //
+    //    Opens when the database can't be reached, so borrowers fail
+    //    fast instead of waiting out their timeouts.
+    //
+    private final CircuitBreaker    _breaker = new CircuitBreaker();
+
+    //
+    //    Set once the pool stops lending, by drain() or shutdown().  The
+    //    latch opens when it has shut down, for anybody else draining
+    //    it at the same time.
+    //
+    private volatile boolean            _closing;
+    private final AtomicBoolean         _drainStarted = new AtomicBoolean();
+    private final CountDownLatch        _closed       = new CountDownLatch( 1 );
+
+    //
+    //    Named shares of the pool, each with a guaranteed minimum and a
+    //    maximum of leased connections, and how many are leased across
+    //    all of them.  Empty if the pool isn't partitioned, in which
+    //    case none of this is counted.
+    //
+    private final Map<String,PoolPartition>    _partitions;
+    private final PoolPartition                _defaultPartition;
+    private final AtomicInteger                _partitionLeases = new AtomicInteger();
 
     private final ConnectionInfo    _connectionInfo;
 
 
+    /**
+     *    Deadlines are mostly cancelled when a pack turns up first, so
+     *    those are dropped from the queue straight away.
+     */
+    private static ScheduledThreadPoolExecutor createBorrowTimer()
+    {
+        ScheduledThreadPoolExecutor    timer
+            = new ScheduledThreadPoolExecutor( 1, new PoolThreadFactory( "DatabaseBorrowTimer" ) );
+
+        timer.setRemoveOnCancelPolicy( true );
+
+        return timer;
+    }
+
+
     public ConnectionPool( final ConnectionInfo    connectionInfo )
     {
         _connectionInfo = connectionInfo;
 
-        _freeConnections   = new LinkedList<ConnectionPack>();
-        _leasedConnections = new ArrayList<ConnectionPack>();
+        _connections = new CopyOnWriteArrayList<ConnectionPack>();
+        _lastUsed    = new ThreadLocal<WeakReference<ConnectionPack>>();
+        _waiters     = new WaiterQueue();
+        _metrics     = new ConnectionPoolMetrics( this );
+        _partitions  = new HashMap<String,PoolPartition>();
+
+        for ( ConnectionPoolConfig.Partition    partition : connectionInfo.getPoolConfig().getPartitions() )
+        {
+            _partitions.put( partition.getName(),
+                             new PoolPartition( partition.getName(),
+                                                partition.getMin(),
+                                                partition.getMax() ) );
+        }
+
+        if ( ! _partitions.isEmpty() && ! _partitions.containsKey( DEFAULT_PARTITION ) )
+        {
+            _partitions.put( DEFAULT_PARTITION, new PoolPartition( DEFAULT_PARTITION, 0, 0 ) );
+        }
+
+        _defaultPartition = _partitions.get( DEFAULT_PARTITION );
+
+        //
+        //    Creator threads come and go with demand.
+        //
+        int    maxConcurrentCreates = Math.max( 1, connectionInfo.getPoolConfig().getMaxConcurrentCreates() );
+
+        _creator = new ThreadPoolExecutor( maxConcurrentCreates,
+                                           maxConcurrentCreates,
+                                           ONE_MINUTE,
+                                           TimeUnit.MILLISECONDS,
+                                           new LinkedBlockingQueue<Runnable>(),
+                                           new PoolThreadFactory( "DatabaseConnectionCreator" ) );
+        _creator.allowCoreThreadTimeOut( true );
+
+        _closer = new ThreadPoolExecutor( 1,
+                                          1,
+                                          ONE_MINUTE,
+                                          TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<Runnable>(),
+                                          new PoolThreadFactory( "DatabaseConnectionCloser" ) );
+        _closer.allowCoreThreadTimeOut( true );
 
         //
         //    Set up the reaper task.
         //
-        int    delay = 30 * ONE_SECOND;
+        long    delay = connectionInfo.getPoolConfig().getHousekeepingPeriod();
+
+        _housekeeping = _housekeeper.scheduleWithFixedDelay( new ConnectionReaper( this ),
+                                                             delay,
+                                                             delay,
+                                                             TimeUnit.MILLISECONDS );
+
+        _maxConnectionsLimit = connectionInfo.getMaxConnections();
+
+        if ( connectionInfo.getPoolConfig().isAdaptiveSizing() )
+        {
+            AdaptiveSizer    sizer  = new AdaptiveSizer( this, _metrics, connectionInfo );
+            long             period = connectionInfo.getPoolConfig().getAdaptivePeriod();
+
+            _maxConnections = sizer.getInitialSize();
+            _sizing         = _housekeeper.scheduleWithFixedDelay( sizer,
+                                                                   period,
+                                                                   period,
+                                                                   TimeUnit.MILLISECONDS );
+        }
+        else
+        {
+            _maxConnections = connectionInfo.getMaxConnections();
+            _sizing         = null;
+        }
+
+        if ( connectionInfo.isReplica() )
+        {
+            long    period = connectionInfo.getPoolConfig().getReplicaLagCheckPeriod();
+
+            _lagMonitoring = _housekeeper.scheduleWithFixedDelay( new ReplicationLagMonitor( this ),
+                                                                  0,
+                                                                  period,
+                                                                  TimeUnit.MILLISECONDS );
+        }
+        else
+        {
+            _lagMonitoring = null;
+        }
+
+        _metrics.register( connectionInfo );
+    }
+
+
+    /**
+     *    Checks in a connection to the _pool.
+     *    <p>
+     *    If threads are waiting, the pack goes straight to the one
+     *    that has waited longest.
+     */
+    public void releaseConnectionPack( final ConnectionPack    pack )
+    {
+        if ( pack.unshare() )
+        {
+            if ( logger.isDebugEnabled() )
+            {
+                logger.debug( "Releasing a share of pack [" + pack.getId() + "]" );
+            }
+
+            return;
+        }
+
+        if ( logger.isDebugEnabled() )
+        {
+            logger.debug( "Releasing pack [" + pack.getId() + "]" );
+        }
+
+        if ( _connectionInfo.getPoolConfig().isShareThreadLeases()
+             && _threadLease.get() == pack )
+        {
+            _threadLease.remove();
+        }
+
+        long    leased = System.currentTimeMillis() - pack.getLeaseTime();
+
+        _metrics.recordLease( leased );
+
+        ConnectionReleaseEvent    event = new ConnectionReleaseEvent();
+
+        if ( event.shouldCommit() )
+        {
+            event.pool          = _connectionInfo.toShortString();
+            event.packId        = pack.getId();
+            event.leaseDuration = leased;
+            event.commit();
+        }
+
+        recycleConnectionPack( pack );
+    }
+
+
+    /**
+     *    Puts a pack the pool handed out back, retiring it if it's
+     *    past its lifetime, its session can't be reset, or the pool has
+     *    been shrunk or is closing.
+     */
+    private void recycleConnectionPack( final ConnectionPack    pack )
+    {
+        boolean    partitioned = endLease( pack );
+
+        if ( ! pack.recycle() )
+        {
+            //
+            //    Removed from the pool while it was leased.
+            //
+            return;
+        }
+
+        if ( _closing
+             || isStale( pack )
+             || pack.isRetired( System.currentTimeMillis() )
+             || isOverSize()
+             || ! pack.resetSession() )
+        {
+            removeConnectionPack( pack );
+
+            if ( partitioned )
+            {
+                serveWaiters();
+            }
+
+            return;
+        }
+
+        if ( returnConnectionPack( pack ) )
+        {
+            WeakReference<ConnectionPack>    lastUsed = _lastUsed.get();
+            if ( lastUsed == null || lastUsed.get() != pack )
+            {
+                _lastUsed.set( new WeakReference<ConnectionPack>( pack ) );
+            }
+        }
+    }
+
+
+    /**
+     *    Hands a leased pack to the oldest waiter, or frees it.
+     *
+     *    @return true if the pack was freed into the pool
+     */
+    private boolean returnConnectionPack( final ConnectionPack    pack )
+    {
+        if ( handOff( pack ) )
+        {
+            return false;
+        }
+
+        if ( ! pack.compareAndSetState( ConnectionPack.STATE_IN_USE,
+                                        ConnectionPack.STATE_NOT_IN_USE ) )
+        {
+            return false;
+        }
+
+        //
+        //    A thread may have got in line after we looked and missed
+        //    the pack on its own last try.  Take the pack back and
+        //    hand it over.  Once is enough: anybody who gets in line
+        //    after this sees the pack free on their own last try.
+        //
+        if ( ! _waiters.isEmpty()
+             && pack.compareAndSetState( ConnectionPack.STATE_NOT_IN_USE,
+                                         ConnectionPack.STATE_IN_USE ) )
+        {
+            if ( handOff( pack ) )
+            {
+                return false;
+            }
+
+            pack.compareAndSetState( ConnectionPack.STATE_IN_USE,
+                                     ConnectionPack.STATE_NOT_IN_USE );
+        }
+
+        return true;
+    }
+
+
+    /**
+     *    Gives a leased pack to the oldest waiting thread whose
+     *    partition has room for it.
+     *
+     *    @return false if nobody was waiting for it
+     */
+    private boolean handOff( final ConnectionPack    pack )
+    {
+        for ( Waiter    waiter : _waiters )
+        {
+            PoolPartition    partition = waiter.getPartition();
+
+            if ( ! admit( partition ) )
+            {
+                continue;
+            }
+
+            //
+            //    Set before the offer: an asynchronous waiter's caller
+            //    may have the pack, and release it, straight away.
+            //
+            pack.setPartition( partition );
+
+            if ( _waiters.remove( waiter ) && waiter.offer( pack ) )
+            {
+                return true;
+            }
+
+            //
+            //    Still ours, so it mustn't count against the partition
+            //    when its lease ends.
+            //
+            pack.setPartition( null );
+            unadmit( partition );
+        }
+
+        return false;
+    }
+
+
+    /**
+     *    Gives free packs to waiters whose partitions were full, after
+     *    a lease ended without its pack being handed on.
+     */
+    private void serveWaiters()
+    {
+        for ( Waiter    waiter : _waiters )
+        {
+            ConnectionPack    pack;
+
+            try
+            {
+                pack = claimConnectionPack( waiter.getPartition() );
+            }
+            catch ( DatabaseException    ex )
+            {
+                return;
+            }
+
+            if ( pack == null )
+            {
+                continue;
+            }
+
+            if ( ! _waiters.remove( waiter ) || ! waiter.offer( pack ) )
+            {
+                endLease( pack );
+                returnConnectionPack( pack );
+            }
+        }
+    }
+
+
+    /**
+     *    Counts a lease against its partition.  A partition can lease
+     *    up to its maximum, as long as what's left of MaxConnections
+     *    still covers the minimums of the other partitions.
+     *
+     *    @param partition null if the pool isn't partitioned
+     *    @return false if the partition has to wait
+     */
+    private boolean admit( final PoolPartition    partition )
+    {
+        if ( partition == null )
+        {
+            return true;
+        }
+
+        if ( ! partition.acquire() )
+        {
+            return false;
+        }
+
+        int    leased         = _partitionLeases.incrementAndGet();
+        int    maxConnections = _maxConnections;
+
+        if ( maxConnections == 0 )
+        {
+            return true;
+        }
+
+        int    reserved = 0;
+
+        for ( PoolPartition    other : _partitions.values() )
+        {
+            if ( other != partition )
+            {
+                reserved += other.getUnusedReserve();
+            }
+        }
+
+        if ( leased + reserved <= maxConnections )
+        {
+            return true;
+        }
+
+        unadmit( partition );
+
+        return false;
+    }
+
+
+    private void unadmit( final PoolPartition    partition )
+    {
+        if ( partition != null )
+        {
+            partition.release();
+            _partitionLeases.decrementAndGet();
+        }
+    }
+
+
+    /**
+     *    Takes a pack's lease off its partition's count.  Safe to call
+     *    more than once.
+     *
+     *    @return true if the pack was leased from a partition
+     */
+    private boolean endLease( final ConnectionPack    pack )
+    {
+        PoolPartition    partition = pack.takePartition();
+
+        unadmit( partition );
+
+        return partition != null;
+    }
+
+
+    /**
+     *    @return null if the pool isn't partitioned
+     */
+    private PoolPartition getPartition( final String    name )
+    {
+        if ( _partitions.isEmpty() )
+        {
+            return null;
+        }
+
+        PoolPartition    partition = name == null ? null : _partitions.get( name );
+
+        return partition == null ? _defaultPartition : partition;
+    }
+
+
+    public Collection<String> getActiveSql()
+    {
+        Collection<String>    sql = new HashSet<String>();
+
+        for ( ConnectionPack    pack : _connections )
+        {
+            if ( pack.isInUse() )
+            {
+                pack.collectActiveSql( sql );
+            }
+        }
+
+        return sql;
+    }
+
+
+    public void cancelAllStatements()
+        throws
+            SQLException
+    {
+        for ( ConnectionPack    pack : _connections )
+        {
+            if ( pack.isInUse() )
+            {
+                pack.cancelAllStatements();
+            }
+        }
+    }
+
+
+    /**
+     *    Checks out a connection, waiting up to <code>timeout</code>
+     *    milliseconds in line behind any other waiting threads.
+     *
+     *    @return null if the timeout expired or the thread was
+     *            interrupted
+     */
+    public ConnectionPack getConnectionPack( final long    timeout )
+        throws
+            DatabaseException
+    {
+        return getConnectionPack( null, timeout );
+    }
+
+
+    /**
+     *    Checks out a connection for the named partition, waiting up
+     *    to <code>timeout</code> milliseconds if the partition has used
+     *    its share or no connection is free.
+     *
+     *    @param partitionName null, or a partition the pool doesn't
+     *                         have, for the default partition
+     *    @return null if the timeout expired or the thread was
+     *            interrupted
+     */
+    public ConnectionPack getConnectionPack( final String    partitionName,
+                                             final long      timeout )
+        throws
+            DatabaseException
+    {
+        return getConnectionPack( partitionName, timeout, false );
+    }
+
+
+    /**
+     *    Like {@link #getConnectionPack(String, long)}.  With
+     *    ShareThreadLeases on, a thread that already holds a connection
+     *    for the partition that isn't in a transaction gets that one
+     *    again, unless it asks for an <code>independent</code> one.
+     *    Each borrow, shared or not, must be released.
+     */
+    public ConnectionPack getConnectionPack( final String     partitionName,
+                                             final long       timeout,
+                                             final boolean    independent )
+        throws
+            DatabaseException
+    {
+        return getConnectionPack( partitionName, timeout, independent, BorrowPriority.NORMAL );
+    }
+
+
+    /**
+     *    Like {@link #getConnectionPack(String, long, boolean)}, waiting
+     *    in the line for the <code>priority</code>.
+     *
+     *    @throws PoolOverloadException if that line is full
+     */
+    public ConnectionPack getConnectionPack( final String            partitionName,
+                                             final long              timeout,
+                                             final boolean           independent,
+                                             final BorrowPriority    priority )
+        throws
+            DatabaseException
+    {
+        checkOpen();
+
+        PoolPartition    partition = getPartition( partitionName );
+        boolean          sharing   = ! independent
+                                     && _connectionInfo.getPoolConfig().isShareThreadLeases();
+
+        if ( sharing )
+        {
+            ConnectionPack    held = shareThreadLease( partition );
+
+            if ( held != null )
+            {
+                return held;
+            }
+        }
+
+        ConnectionBorrowEvent    event = new ConnectionBorrowEvent();
+        long                     start = System.nanoTime();
+
+        event.begin();
+
+        ConnectionPack    pack = borrowConnectionPack( partition, priority, timeout );
+
+        commitBorrowEvent( event, pack );
+
+        if ( pack == null )
+        {
+            //
+            //    We may have been turned away because the breaker
+            //    opened, or the pool closed, while we waited.
+            //
+            checkOpen();
+            checkCircuit();
+
+            _metrics.recordBorrowTimeout();
+            return null;
+        }
+
+        _metrics.recordBorrow( System.nanoTime() - start );
+        startLease( pack );
+
+        if ( sharing )
+        {
+            pack.setOwner( Thread.currentThread() );
+            _threadLease.set( pack );
+        }
+
+        return pack;
+    }
+
+
+    /**
+     *    @return the connection this thread already holds, with another
+     *            borrower added, or null if there isn't one it can
+     *            share
+     */
+    private ConnectionPack shareThreadLease( final PoolPartition    partition )
+    {
+        ConnectionPack    held   = _threadLease.get();
+        Thread            thread = Thread.currentThread();
+
+        if ( held == null )
+        {
+            return null;
+        }
+
+        if ( held.getOwner() != thread || ! held.isInUse() )
+        {
+            //
+            //    Released, or reclaimed, somewhere else.
+            //
+            _threadLease.remove();
+            return null;
+        }
+
+        if ( held.getPartition() != partition || ! isOutsideTransaction( held ) )
+        {
+            return null;
+        }
+
+        if ( ! held.share() )
+        {
+            _threadLease.remove();
+            return null;
+        }
+
+        if ( held.getOwner() != thread )
+        {
+            //
+            //    The lease ended and the pack went to somebody else
+            //    while we looked.
+            //
+            held.unshare();
+            _threadLease.remove();
+            return null;
+        }
+
+        _metrics.recordSharedLease();
+
+        return held;
+    }
+
+
+    private boolean isOutsideTransaction( final ConnectionPack    pack )
+    {
+        try
+        {
+            return pack.getConnection().getAutoCommit();
+        }
+        catch ( Throwable    ex )
+        {
+            return false;
+        }
+    }
+
+
+    private ConnectionPack borrowConnectionPack( final PoolPartition     partition,
+                                                 final BorrowPriority    priority,
+                                                 final long              timeout )
+        throws
+            DatabaseException
+    {
+        ConnectionPack     pack;
+
+        //
+        //    Don't jump the queue if other threads of the same or a
+        //    higher priority are already waiting.
+        //
+        if ( _waiters.isEmpty( priority ) )
+        {
+            pack = claimConnectionPack( partition );
+
+            if ( pack != null )
+            {
+                return pack;
+            }
+        }
+
+        //
+        //    Waiting means waiting for a new connection, so that's when
+        //    an open breaker fails us fast.  Idle ones are still handed
+        //    out above.
+        //
+        checkCircuit();
+
+        final long      deadline = System.nanoTime()
+                                   + TimeUnit.MILLISECONDS.toNanos( timeout );
+        final Waiter    waiter   = new Waiter( Thread.currentThread(), partition, priority );
+
+        //
+        //    Counted before it's in line, as in AsyncWaiter.enqueue(),
+        //    since a pack can reach it as soon as it is.
+        //
+        _waiting.incrementAndGet();
+
+        try
+        {
+            enqueue( waiter );
+
+            return awaitConnectionPack( waiter, deadline );
+        }
+        finally
+        {
+            _waiting.decrementAndGet();
+        }
+    }
+
+
+    /**
+     *    Gets the waiter in line, unless its priority's line is full.
+     */
+    private void enqueue( final Waiter    waiter )
+        throws
+            DatabaseException
+    {
+        BorrowPriority    priority = waiter.getPriority();
+        int               limit    = _connectionInfo.getPoolConfig().getMaxWaiting( priority );
+
+        if ( ! _waiters.add( waiter, limit ) )
+        {
+            _metrics.recordOverloadRejection();
+
+            throw new PoolOverloadException().tooManyWaiting( _connectionInfo, priority, limit );
+        }
+    }
+
+
+    private ConnectionPack awaitConnectionPack( final Waiter    waiter,
+                                                final long      deadline )
+        throws
+            DatabaseException
+    {
+        //
+        //    A pack may have been freed before the releaser could see
+        //    us in line, so look once more now that we are.
+        //
+        ConnectionPack    pack = claimConnectionPack( waiter.getPartition() );
+
+        if ( pack != null )
+        {
+            if ( waiter.cancel() )
+            {
+                _waiters.remove( waiter );
+                return pack;
+            }
+
+            //
+            //    Somebody handed us one as well.
+            //
+            recycleConnectionPack( pack );
+            return waiter.getPack();
+        }
+
+        //
+        //    Have a connection opened for us if there's room for one.
+        //
+        requestConnections();
+
+        boolean    interrupted = false;
+
+        while ( waiter.getPack() == null && ! waiter.isCancelled() )
+        {
+            long    remaining = deadline - System.nanoTime();
+
+            if ( remaining <= 0 )
+            {
+                break;
+            }
+
+            LockSupport.parkNanos( this, remaining );
+
+            if ( Thread.interrupted() )
+            {
+                interrupted = true;
+                break;
+            }
+        }
+
+        if ( interrupted )
+        {
+            //
+            //    Re-signal that the current thread has been interrupted
+            //
+            Thread.currentThread().interrupt();
+        }
+
+        if ( waiter.cancel() )
+        {
+            //
+            //    Timeout has expired
+            //
+            _waiters.remove( waiter );
+            return null;
+        }
+
+        return waiter.getPack();
+    }
+
+
+    /**
+     *    Checks out a connection without blocking the calling thread.
+     *    <p>
+     *    If no connection is free, the borrow waits in line with the
+     *    threads in {@link #getConnectionPack(String, long)}, but no
+     *    thread is parked for it: whoever frees or opens the pack it
+     *    gets completes the future, by handing it to
+     *    <code>executor</code> so the caller's continuation never runs
+     *    inside the pool.
+     *    <p>
+     *    The future fails with a ConnectionException if the timeout
+     *    expires, the database is unreachable or the pool is closed.
+     *    Cancelling it gives up the place in line.  The pack must be
+     *    released like any other.
+     *
+     *    @param partitionName null, or a partition the pool doesn't
+     *                         have, for the default partition
+     *    @param timeout milliseconds to wait for a connection
+     *    @param executor runs the completion, e.g. the caller's event
+     *                    loop
+     */
+    public CompletableFuture<ConnectionPack> acquireAsync( final String      partitionName,
+                                                           final long        timeout,
+                                                           final Executor    executor )
+    {
+        return acquireAsync( partitionName, BorrowPriority.NORMAL, timeout, executor );
+    }
+
+
+    /**
+     *    Like {@link #acquireAsync(String, long, Executor)}, waiting in
+     *    the line for the <code>priority</code>.  The future fails with
+     *    a PoolOverloadException if that line is full.
+     */
+    public CompletableFuture<ConnectionPack> acquireAsync( final String            partitionName,
+                                                           final BorrowPriority    priority,
+                                                           final long              timeout,
+                                                           final Executor          executor )
+    {
+        AsyncWaiter    waiter = new AsyncWaiter( getPartition( partitionName ), priority, executor );
+
+        try
+        {
+            checkOpen();
+
+            //
+            //    Don't jump the queue if others of the same or a higher
+            //    priority are already waiting.
+            //
+            if ( _waiters.isEmpty( priority ) )
+            {
+                ConnectionPack    pack = claimConnectionPack( waiter.getPartition() );
+
+                if ( pack != null )
+                {
+                    waiter.cancel();
+                    waiter.complete( pack, null );
+                    return waiter.getFuture();
+                }
+            }
+
+            checkCircuit();
+
+            waiter.enqueue( timeout );
+
+            //
+            //    A pack may have been freed before the releaser could
+            //    see us in line, so look once more now that we are.
+            //
+            ConnectionPack    pack = claimConnectionPack( waiter.getPartition() );
+
+            if ( pack != null )
+            {
+                if ( waiter.cancel() )
+                {
+                    _waiters.remove( waiter );
+                    waiter.complete( pack, null );
+                    return waiter.getFuture();
+                }
+
+                //
+                //    Somebody handed us one as well.
+                //
+                recycleConnectionPack( pack );
+                return waiter.getFuture();
+            }
+
+            requestConnections();
+        }
+        catch ( DatabaseException    ex )
+        {
+            if ( waiter.cancel() )
+            {
+                _waiters.remove( waiter );
+                waiter.complete( null, ex );
+            }
+        }
+
+        return waiter.getFuture();
+    }
+
+
+    /**
+     *    Checks out a free connection from the _pool without waiting.
+     *    <p>
+     *    New connections are only opened in the background for
+     *    threads waiting in {@link #getConnectionPack(long)}, so this
+     *    returns null if no connection is free right now.
+     *    <p>
+     *    If a free connection has been closed by the database, it's
+     *    removed from the _pool and the next free one is tried.
+     */
+    public ConnectionPack getConnectionPack()
+        throws
+            DatabaseException
+    {
+        //
+        //    Never opens a connection, so an open breaker doesn't stop
+        //    it taking an idle one.
+        //
+        checkOpen();
+
+        ConnectionBorrowEvent    event = new ConnectionBorrowEvent();
+        long                     start = System.nanoTime();
+
+        event.begin();
+
+        ConnectionPack    pack = claimConnectionPack( _defaultPartition );
+
+        commitBorrowEvent( event, pack );
+
+        if ( pack != null )
+        {
+            _metrics.recordBorrow( System.nanoTime() - start );
+            startLease( pack );
+        }
+
+        return pack;
+    }
+
+
+    /**
+     *    Refuses borrowers once the pool is draining or shut down.
+     */
+    private void checkOpen()
+        throws
+            DatabaseException
+    {
+        if ( _closing )
+        {
+            throw new ConnectionException().poolClosed( _connectionInfo );
+        }
+    }
+
+
+    /**
+     *    Fails fast while the database is unreachable.
+     */
+    private void checkCircuit()
+        throws
+            DatabaseException
+    {
+        if ( _breaker.isOpen() )
+        {
+            _metrics.recordCircuitRejection();
+
+            throw new ConnectionException().databaseUnreachable( _connectionInfo,
+                                                                 _breaker.getOpenedAt() );
+        }
+    }
+
+
+    private void commitBorrowEvent( final ConnectionBorrowEvent    event,
+                                    final ConnectionPack           pack )
+    {
+        event.end();
+
+        if ( event.shouldCommit() )
+        {
+            event.pool     = _connectionInfo.toShortString();
+            event.packId   = pack == null ? 0 : pack.getId();
+            event.timedOut = pack == null;
+            event.commit();
+        }
+    }
+
+
+    /**
+     *    Claims a free pack if the partition has room for it.
+     */
+    private ConnectionPack claimConnectionPack( final PoolPartition    partition )
+        throws
+            DatabaseException
+    {
+        if ( ! admit( partition ) )
+        {
+            return null;
+        }
+
+        ConnectionPack    pack = null;
+
+        try
+        {
+            pack = claimConnectionPack();
+        }
+        finally
+        {
+            if ( pack == null )
+            {
+                unadmit( partition );
+            }
+        }
+
+        if ( pack != null )
+        {
+            pack.setPartition( partition );
+        }
+
+        return pack;
+    }
+
+
+    private ConnectionPack claimConnectionPack()
+        throws
+            DatabaseException
+    {
+        ConnectionPack      pack;
+
+        try
+        {
+            while ( ( pack = claimFreeConnectionPack() ) != null )
+            {
+                if ( isUsable( pack ) )
+                {
+                    return pack;
+                }
+
+                if ( logger.isDebugEnabled() )
+                {
+                    logger.debug( "Removed bad connection from ["
+                                  + _connectionInfo.toShortString() + "]" );
+                }
+
+                removeConnectionPack( pack );
+            }
+        }
+        catch ( Throwable    ex )
+        {
+            throw new ConnectionPoolException().cantGetConnectionPack( ex );
+        }
+
+        return null;
+    }
+
+
+    /**
+     *    Notes who borrowed the pack and when, for leak detection.
+     *    Only every LeakTraceSampleRate'th lease pays for a stack
+     *    trace.
+     */
+    private void startLease( final ConnectionPack    pack )
+    {
+        ConnectionPoolConfig    config    = _connectionInfo.getPoolConfig();
+        Throwable               trace     = null;
+        int                     rate      = config.getLeakTraceSampleRate();
+
+        if ( config.getLeakDetectionThreshold() > 0
+             && rate > 0
+             && _leases.incrementAndGet() % rate == 0 )
+        {
+            trace = new Throwable( "Connection borrowed here" );
+        }
+
+        pack.startLease( trace );
+    }
+
+
+    /**
+     *    Reports packs leased longer than LeakDetectionThreshold, and
+     *    takes back ones leased longer than LeakReclaimThreshold.
+     */
+    private void detectLeak( final ConnectionPack          pack,
+                             final ConnectionPoolConfig    config,
+                             final long                    now )
+    {
+        long    threshold = config.getLeakDetectionThreshold();
+        long    leased    = now - pack.getLeaseTime();
+
+        //
+        //    A pack being validated or pinged is only claimed, and its
+        //    lease time is still from the last borrower.
+        //
+        if ( threshold <= 0 || ! pack.isLeased() || leased <= threshold )
+        {
+            return;
+        }
+
+        if ( pack.markLeakReported() )
+        {
+            _metrics.recordLeakDetected();
+
+            logger.warn( "Possible connection leak: pack [" + pack.getId()
+                         + "] has been leased for " + leased + " ms by thread ["
+                         + pack.getLeaseThread() + "]"
+                         + ( pack.getLeaseTrace() == null
+                             ? ", enable LeakTraceSampleRate to see where"
+                             : "" ),
+                         pack.getLeaseTrace() );
+        }
+
+        long    reclaim = config.getLeakReclaimThreshold();
+
+        if ( reclaim > 0 && leased > reclaim && pack.isInUse() )
+        {
+            logger.warn( "Reclaiming leaked connection pack [" + pack.getId() + "]" );
+            _metrics.recordLeakReclaimed();
+
+            try
+            {
+                pack.cancelAllStatements();
+            }
+            catch ( Throwable    ex )
+            {
+                logger.warn( "Can't cancel statements on leaked pack", ex );
+            }
+
+            removeConnectionPack( pack );
+        }
+    }
+
+
+    /**
+     *    Checks a pack that was just claimed from the pool.
+     */
+    private boolean isUsable( final ConnectionPack    pack )
+    {
+        ConnectionPoolConfig    config = _connectionInfo.getPoolConfig();
+        long                    now    = System.currentTimeMillis();
+        long                    idle   = now - pack.getLastUse();
+
+        if ( pack.isRetired( now ) || isStale( pack ) )
+        {
+            return false;
+        }
+
+        if ( idle < config.getValidationIdleThreshold() )
+        {
+            try
+            {
+                if ( ! pack.isClosed() )
+                {
+                    return true;
+                }
+            }
+            catch ( Throwable    ex )
+            {
+                //    Treat it as closed.
+            }
+        }
+        else if ( pack.validate( config.getValidationMode(),
+                                 config.getValidationTimeout(),
+                                 config.getValidationQuery() ) )
+        {
+            return true;
+        }
+
+        _metrics.recordValidationFailure();
+
+        return false;
+    }
+
+
+    /**
+     *    Claims a free pack, preferring the one this thread released
+     *    last.
+     *
+     *    @return null if every pack is leased
+     */
+    private ConnectionPack claimFreeConnectionPack()
+    {
+        WeakReference<ConnectionPack>    lastUsed = _lastUsed.get();
+
+        if ( lastUsed != null )
+        {
+            ConnectionPack    pack = lastUsed.get();
+
+            if ( pack != null
+                 && pack.compareAndSetState( ConnectionPack.STATE_NOT_IN_USE,
+                                             ConnectionPack.STATE_IN_USE ) )
+            {
+                return pack;
+            }
+        }
+
+        //
+        //    Always scanning from the front concentrates use on the
+        //    first few packs, so the ones at the back go idle and get
+        //    reaped even while the application is busy.  So each scan
+        //    starts one further on and wraps round.
+        //
+        int    count = _connections.size();
+        int    start = _scanStart.getAndIncrement();
+
+        for ( int    ii = 0; ii < count; ii++ )
+        {
+            ConnectionPack    pack;
+
+            try
+            {
+                pack = _connections.get( Math.floorMod( start + ii, count ) );
+            }
+            catch ( IndexOutOfBoundsException    ex )
+            {
+                //
+                //    A pack was removed while we looked.  Start again
+                //    rather than miss one that's free.
+                //
+                return claimFreeConnectionPack();
+            }
+
+            if ( pack.compareAndSetState( ConnectionPack.STATE_NOT_IN_USE,
+                                          ConnectionPack.STATE_IN_USE ) )
+            {
+                return pack;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     *    Counts a new connection against MaxConnections.
+     *
+     *    @return false if the pool is full
+     */
+    private boolean reserveConnection()
+    {
+        final int    maxConnections = _maxConnections;
+
+        while ( true )
+        {
+            int    total = _totalConnections.get();
+
+            if ( maxConnections != 0 && total >= maxConnections )
+            {
+                return false;
+            }
+
+            if ( _totalConnections.compareAndSet( total, total + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     *    Opens connections in the background until there's one on the
+     *    way for every waiting thread, or the pool is full.
+     */
+    private void requestConnections()
+    {
+        if ( _breaker.isOpen() )
+        {
+            return;
+        }
+
+        //
+        //    Worked out once up front: a create can finish, and stop
+        //    being pending, before the waiter it was for stops being
+        //    counted as waiting, so checking again after each submit
+        //    would open one too many.
+        //
+        int    needed = _waiting.get() - _pendingCreates.get();
+
+        for ( ; needed > 0; needed-- )
+        {
+            if ( submitConnection() == null )
+            {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     *    Reserves room for a connection and has a creator thread open
+     *    it.
+     *
+     *    @return null if the pool is full
+     */
+    private Future<Boolean> submitConnection()
+    {
+        if ( _closing || ! reserveConnection() )
+        {
+            return null;
+        }
+
+        _pendingCreates.incrementAndGet();
+
+        try
+        {
+            return _creator.submit( new ConnectionCreator() );
+        }
+        catch ( Throwable    ex )
+        {
+            //
+            //    Rejected because we're shutting down.
+            //
+            _pendingCreates.decrementAndGet();
+            _totalConnections.decrementAndGet();
+            return null;
+        }
+    }
+
+
+    /**
+     *    Opens a reserved connection and hands it to the oldest waiter,
+     *    or leaves it free in the pool.  Runs on a creator thread.
+     *
+     *    @return false if the connection couldn't be opened
+     */
+    boolean createConnection()
+    {
+        ConnectionPack    pack = null;
+
+        try
+        {
+            awaitCreatePermit();
+
+            if ( logger.isDebugEnabled() )
+            {
+                logger.debug( "Getting new connection ..." );
+            }
+
+            long    start = System.nanoTime();
+
+            pack = new ConnectionPack( _connectionInfo, this, _metrics );
+            pack.getConnection();
+            pack.setRetireTime( getRetireTime() );
+
+            _metrics.recordCreation( System.nanoTime() - start );
+        }
+        catch ( Throwable    ex )
+        {
+            logger.error( "Can't open connection for ["
+                          + _connectionInfo + "]",
+                          ex );
+
+            _metrics.recordCreationFailure();
+            _totalConnections.decrementAndGet();
+            _pendingCreates.decrementAndGet();
+
+            connectionFailed();
+            return false;
+        }
+
+        _pendingCreates.decrementAndGet();
+
+        if ( _breaker.recordSuccess() )
+        {
+            logger.warn( "Reconnected to [" + _connectionInfo.toShortString()
+                         + "], closing the circuit breaker" );
+        }
+
+        _connections.add( pack );
+        recycleConnectionPack( pack );
+
+        return true;
+    }
+
+
+    /**
+     *    Retries for anybody still waiting, until enough connects in a
+     *    row have failed to open the breaker.  Then everybody waiting
+     *    is turned away and probes take over.  With the breaker off,
+     *    waiters just wait out their timeouts as before.
+     */
+    private void connectionFailed()
+    {
+        int    threshold = _connectionInfo.getPoolConfig().getCircuitBreakerThreshold();
+
+        if ( _breaker.recordFailure( threshold ) )
+        {
+            logger.error( "Can't reach [" + _connectionInfo.toShortString()
+                          + "] after " + threshold + " tries, failing borrowers"
+                          + " fast until it's back" );
+
+            Waiter    waiter;
+
+            while ( ( waiter = _waiters.poll() ) != null )
+            {
+                waiter.turnAway();
+            }
+        }
+
+        if ( _breaker.isOpen() )
+        {
+            scheduleProbe();
+        }
+        else if ( threshold > 0 )
+        {
+            requestConnections();
+        }
+    }
+
+
+    private void scheduleProbe()
+    {
+        if ( ! _breaker.startProbe() )
+        {
+            return;
+        }
+
+        ConnectionPoolConfig    config = _connectionInfo.getPoolConfig();
+        long                    delay  = _breaker.nextBackoff( config.getCircuitBreakerInitialBackoff(),
+                                                               config.getCircuitBreakerMaxBackoff() );
+
+        try
+        {
+            _housekeeper.schedule( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    probe();
+                }
+            },
+            delay,
+            TimeUnit.MILLISECONDS );
+        }
+        catch ( Throwable    ex )
+        {
+            //
+            //    Rejected because we're shutting down.
+            //
+            _breaker.probeStarted();
+        }
+    }
+
+
+    /**
+     *    Tries one connect while the breaker is open.  If it works the
+     *    breaker closes and the new connection joins the pool.
+     */
+    private void probe()
+    {
+        _breaker.probeStarted();
+
+        if ( _creator.isShutdown() || ! _breaker.isOpen() )
+        {
+            return;
+        }
+
+        if ( submitConnection() == null )
+        {
+            //
+            //    No room; try again later.
+            //
+            scheduleProbe();
+        }
+    }
+
+
+    /**
+     *    When a connection opened now should be retired.  Up to 2.5% is
+     *    knocked off MaxLifetime at random so connections opened
+     *    together don't all expire together.
+     */
+    private long getRetireTime()
+    {
+        long    maxLifetime = _connectionInfo.getPoolConfig().getMaxLifetime();
+
+        if ( maxLifetime <= 0 )
+        {
+            return 0;
+        }
+
+        long    jitter = (long) ( Math.random() * maxLifetime / 40 );
+
+        return System.currentTimeMillis() + maxLifetime - jitter;
+    }
+
+
+    /**
+     *    Spaces connects out to at most MaxCreatesPerSecond.
+     */
+    private void awaitCreatePermit()
+        throws
+            InterruptedException
+    {
+        int    maxCreatesPerSecond = _connectionInfo.getPoolConfig().getMaxCreatesPerSecond();
+
+        if ( maxCreatesPerSecond <= 0 )
+        {
+            return;
+        }
+
+        long    interval = TimeUnit.SECONDS.toNanos( 1 ) / maxCreatesPerSecond;
+
+        while ( true )
+        {
+            long    now  = System.nanoTime();
+            long    next = _nextCreateTime.get();
+            long    slot = next - now > 0 ? next : now;
+
+            if ( _nextCreateTime.compareAndSet( next, slot + interval ) )
+            {
+                TimeUnit.NANOSECONDS.sleep( slot - now );
+                return;
+            }
+        }
+    }
+
+
+    /**
+     *    Starts opening the configured InitialSize (or MinIdle, if
+     *    larger) connections in the background.  Only the first call
+     *    does anything.
+     */
+    public void warmUp()
+    {
+        if ( ! _warmUpStarted.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        List<Future<Boolean>>    tasks = Collections.emptyList();
+
+        try
+        {
+            tasks = openConnections( getWarmUpTarget() - _totalConnections.get() );
+        }
+        finally
+        {
+            _warmUpTasks.complete( tasks );
+        }
+    }
+
+
+    /**
+     *    @return how many connections warming up should leave open
+     */
+    private int getWarmUpTarget()
+    {
+        ConnectionPoolConfig    config = _connectionInfo.getPoolConfig();
+        int                     target = Math.max( config.getInitialSize(),
+                                                   config.getMinIdle() );
+        int                     max    = _maxConnections;
+
+        return max == 0 ? target : Math.min( target, max );
+    }
+
+
+    /**
+     *    Warms the pool up if that hasn't been started yet and waits for
+     *    it to finish.
+     *
+     *    @return false if the timeout expired, the thread was
+     *            interrupted, or not all of the connections could be
+     *            opened (e.g. the database is down)
+     */
+    public boolean awaitWarmUp( final long    timeout )
+    {
+        warmUp();
+
+        final long    deadline = System.nanoTime()
+                                 + TimeUnit.MILLISECONDS.toNanos( timeout );
+
+        try
+        {
+            boolean    opened = true;
+
+            for ( Future<Boolean>    task : _warmUpTasks.get( timeout, TimeUnit.MILLISECONDS ) )
+            {
+                if ( ! task.get( deadline - System.nanoTime(), TimeUnit.NANOSECONDS ) )
+                {
+                    opened = false;
+                }
+            }
+
+            //
+            //    Fewer connects than asked for are started if the
+            //    breaker is open or the pool is closing.
+            //
+            return opened && _totalConnections.get() >= getWarmUpTarget();
+        }
+        catch ( InterruptedException    ex )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch ( ExecutionException    ex )
+        {
+            //    Can't happen, creation failures are logged.
+            return false;
+        }
+        catch ( TimeoutException    ex )
+        {
+            return false;
+        }
+    }
+
+
+    /**
+     *    Opens up to <code>count</code> new connections in the
+     *    background.  Fewer are opened if the pool fills up.
+     */
+    List<Future<Boolean>> openConnections( final int    count )
+    {
+        List<Future<Boolean>>    tasks = new ArrayList<Future<Boolean>>();
+
+        if ( _breaker.isOpen() )
+        {
+            return tasks;
+        }
+
+        for ( int ii = 0; ii < count; ii++ )
+        {
+            Future<Boolean>    task = submitConnection();
+
+            if ( task == null )
+            {
+                break;
+            }
+
+            tasks.add( task );
+        }
+
+        return tasks;
+    }
+
+
+    int getActiveCount()
+    {
+        return _connections.size() - getIdleCount();
+    }
+
+
+    int getIdleCount()
+    {
+        int    idle = 0;
+
+        for ( ConnectionPack    pack : _connections )
+        {
+            if ( ! pack.isInUse() )
+            {
+                idle++;
+            }
+        }
+
+        return idle;
+    }
+
+
+    int getTotalCount()
+    {
+        return _totalConnections.get();
+    }
+
+
+    int getPendingCount()
+    {
+        return _pendingCreates.get();
+    }
+
+
+    int getWaitingCount()
+    {
+        return _waiting.get();
+    }
+
+
+    Map<String,Integer> getWaitingByPriority()
+    {
+        Map<String,Integer>    waiting = new LinkedHashMap<String,Integer>();
+
+        for ( BorrowPriority    priority : BorrowPriority.values() )
+        {
+            waiting.put( priority.name(), _waiters.size( priority ) );
+        }
+
+        return waiting;
+    }
+
+
+    /**
+     *    @return the most connections the pool may hold right now, or 0
+     *            for no limit
+     */
+    int getMaxConnections()
+    {
+        return _maxConnections;
+    }
+
+
+    ConnectionInfo getConnectionInfo()
+    {
+        return _connectionInfo;
+    }
+
+
+    /**
+     *    @return MaxConnections, as last set, or 0 for no limit
+     */
+    int getMaxConnectionsLimit()
+    {
+        return _maxConnectionsLimit;
+    }
+
+
+    /**
+     *    Changes MaxConnections while the pool runs.  Without adaptive
+     *    sizing the pool is resized to it straight away; with it, it's
+     *    the new ceiling, and the pool is only shrunk now if it's over
+     *    it.  Either way leased connections are left alone and closed
+     *    as they come back.
+     *
+     *    @param maxConnections 0 for no limit
+     */
+    void setMaxConnections( final int    maxConnections )
+    {
+        _maxConnectionsLimit = maxConnections;
+
+        logger.info( "MaxConnections for [" + _connectionInfo.toShortString()
+                     + "] is now " + maxConnections );
+
+        if ( ! isAdaptiveSizing() )
+        {
+            resize( maxConnections );
+            return;
+        }
+
+        int    size = _maxConnections;
+
+        if ( maxConnections != 0 && ( size == 0 || size > maxConnections ) )
+        {
+            resize( maxConnections );
+        }
+    }
+
+
+    boolean isAdaptiveSizing()
+    {
+        return _sizing != null;
+    }
+
+
+    /**
+     *    Changes the most connections the pool may hold.  Growing opens
+     *    connections for anybody waiting; shrinking closes idle
+     *    connections over the new size now and leased ones as they come
+     *    back.
+     */
+    void resize( final int    maxConnections )
+    {
+        int    previous = _maxConnections;
+
+        _maxConnections = maxConnections;
+
+        if ( maxConnections == 0 || maxConnections > previous )
+        {
+            requestConnections();
+            return;
+        }
+
+        for ( ConnectionPack    pack : _connections )
+        {
+            if ( ! isOverSize() )
+            {
+                return;
+            }
+
+            if ( pack.compareAndSetState( ConnectionPack.STATE_NOT_IN_USE,
+                                          ConnectionPack.STATE_REMOVED ) )
+            {
+                discardConnectionPack( pack );
+            }
+        }
+    }
+
+
+    /**
+     *    @return true if the pool holds more connections than it may,
+     *            after being shrunk
+     */
+    private boolean isOverSize()
+    {
+        int    maxConnections = _maxConnections;
+
+        return maxConnections != 0 && _totalConnections.get() > maxConnections;
+    }
+
+
+    boolean isCircuitOpen()
+    {
+        return _breaker.isOpen();
+    }
+
+
+    /**
+     *    @return how many connections each partition has leased
+     */
+    Map<String,Integer> getPartitionLeases()
+    {
+        Map<String,Integer>    leases = new LinkedHashMap<String,Integer>();
+
+        for ( PoolPartition    partition : _partitions.values() )
+        {
+            leases.put( partition.getName(), partition.getLeased() );
+        }
+
+        return leases;
+    }
+
+
+    ConnectionPoolMXBean getMetrics()
+    {
+        return _metrics;
+    }
+
+
+    /**
+     *    Takes the pack out of the pool and closes it.  A replacement
+     *    is opened if threads are waiting.
+     */
+    private void removeConnectionPack( final ConnectionPack    pack )
+    {
+        if ( ! pack.markRemoved() )
+        {
+            return;
+        }
+
+        boolean    partitioned = endLease( pack );
+
+        discardConnectionPack( pack );
+
+        //
+        //    Use the room we just made for anybody waiting.
+        //
+        requestConnections();
+
+        if ( partitioned )
+        {
+            serveWaiters();
+        }
+    }
+
+
+    boolean isClosing()
+    {
+        return _closing;
+    }
+
+
+    /**
+     *    @return true once the pool has been shut down, after draining
+     *            or not
+     */
+    boolean isClosed()
+    {
+        return _closed.getCount() == 0;
+    }
+
+
+    int getGeneration()
+    {
+        return _generation.get();
+    }
+
+
+    /**
+     *    @return true if the pack has been lost, or is from before the
+     *            database was last seen to go away
+     */
+    private boolean isStale( final ConnectionPack    pack )
+    {
+        return pack.isBroken() || pack.getGeneration() != _generation.get();
+    }
+
+
+    /**
+     *    @return true if the SQLState of the exception, or of one
+     *            chained to it, means the connection is gone: a
+     *            connection exception (08xxx) or the server shutting
+     *            down (57P01 admin, 57P02 crash, 57P03 starting up)
+     */
+    static boolean isConnectionLost( final SQLException    ex )
+    {
+        Throwable    cause = ex;
+
+        //
+        //    Bounded, in case a driver chains an exception to itself.
+        //
+        for ( int    i = 0; cause != null && i < 10; i++ )
+        {
+            if ( cause instanceof SQLException )
+            {
+                String    state = ( (SQLException) cause ).getSQLState();
+
+                if ( state != null
+                     && ( state.startsWith( "08" )
+                          || "57P01".equals( state )
+                          || "57P02".equals( state )
+                          || "57P03".equals( state ) ) )
+                {
+                    return true;
+                }
+
+                SQLException    next = ( (SQLException) cause ).getNextException();
+
+                cause = next != null ? next : cause.getCause();
+            }
+            else
+            {
+                cause = cause.getCause();
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     *    Starts a new generation because the pack was found lost,
+     *    unless one has started since the pack was opened, and closes
+     *    the idle packs from before it.  Leased ones are dropped when
+     *    they come back.
+     */
+    void invalidate( final ConnectionPack    pack,
+                     final SQLException      ex )
+    {
+        int    generation = pack.getGeneration();
+
+        if ( ! _generation.compareAndSet( generation, generation + 1 ) )
+        {
+            return;
+        }
+
+        _metrics.recordInvalidation();
+
+        logger.warn( "Lost connection [" + pack.getId() + "] to ["
+                     + _connectionInfo.toShortString() + "] with SQLState ["
+                     + ex.getSQLState() + "], dropping every connection opened before it" );
+
+        int    closed = 0;
+
+        for ( ConnectionPack    idle : _connections )
+        {
+            if ( idle.getGeneration() <= generation
+                 && idle.compareAndSetState( ConnectionPack.STATE_NOT_IN_USE,
+                                             ConnectionPack.STATE_REMOVED ) )
+            {
+                discardConnectionPack( idle );
+                closed++;
+            }
+        }
+
+        if ( logger.isDebugEnabled() )
+        {
+            logger.debug( "Closed " + closed + " idle connections to ["
+                          + _connectionInfo.toShortString() + "]" );
+        }
+
+        //
+        //    Open new ones for anybody waiting.
+        //
+        requestConnections();
+    }
+
+
+    /**
+     *    Drops a pack that has been marked removed and closes it in the
+     *    background.
+     */
+    private void discardConnectionPack( final ConnectionPack    pack )
+    {
+        _connections.remove( pack );
+        _totalConnections.decrementAndGet();
+
+        try
+        {
+            _closer.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    closeConnectionPack( pack );
+                }
+            } );
+        }
+        catch ( Throwable    ex )
+        {
+            //
+            //    Rejected because we're shutting down.
+            //
+            closeConnectionPack( pack );
+        }
+    }
+
+
+    private void closeConnectionPack( final ConnectionPack    pack )
+    {
+        try
+        {
+            pack.close();
+
+            if ( logger.isDebugEnabled() )
+            {
+                logger.debug( "Closed pack [" + pack.getId() + "]" );
+            }
+        }
+        catch ( Throwable    ex )
+        {
+            logger.error( "can't close connection:"
+                          + pack,
+                          ex );
+        }
+    }
+
+
+    /**
+     *    Closes all available connections.
+     */
+    public void releaseAllConnections()
+    {
+        for ( ConnectionPack    pack : _connections )
+        {
+            if ( ! pack.markRemoved() )
+            {
+                continue;
+            }
+
+            _connections.remove( pack );
+            _totalConnections.decrementAndGet();
+
+            try
+            {
+                pack.close();
+
+                if ( logger.isDebugEnabled() )
+                {
+                    logger.debug( "Closed connection for _pool" );
+                }
+
+            }
+            catch ( Throwable    ex )
+            {
+                //
+                //    Just log it and move on.
+                //
+                logger.error( "Can't close connection for _pool", ex );
+            }
+        }
+    }
+
+
+    void reapConnections()
+    {
+        if ( logger.isDebugEnabled() )
+        {
+            logger.debug( "Reaping connections for ["
+                          + _connectionInfo.toShortString() + "]: total ["
+                          + _totalConnections.get() + "], idle ["
+                          + getIdleCount() + "], waiting ["
+                          + _waiting.get() + "]" );
+        }
+
+        final ConnectionPoolConfig    config      = _connectionInfo.getPoolConfig();
+        long                          now         = System.currentTimeMillis();
+        long                          idleTimeout = config.getIdleTimeout();
+        long                          keepalive   = config.getKeepaliveTime();
+        int                           minIdle     = config.getMinIdle();
+        int                           idle        = getIdleCount();
+
+        for ( final ConnectionPack    pack : _connections )
+        {
+            pack.removeOldStatements();
+
+            if ( pack.isInUse() )
+            {
+                detectLeak( pack, config, now );
+                continue;
+            }
+
+            //
+            //    Retire it if it's too old, or if it's gone stale and
+            //    we're above the minimum.  Claiming it as removed keeps
+            //    borrowers from grabbing it while we close it.
+            //
+            boolean    stale = idleTimeout > 0
+                               && now - pack.getLastUse() > idleTimeout
+                               && idle > minIdle;
+
+            if ( stale || pack.isRetired( now ) )
+            {
+                if ( pack.compareAndSetState( ConnectionPack.STATE_NOT_IN_USE,
+                                              ConnectionPack.STATE_REMOVED ) )
+                {
+                    if ( logger.isDebugEnabled() )
+                    {
+                        logger.debug( "Reaping pack [" + pack.getId() + "]" );
+                    }
+
+                    discardConnectionPack( pack );
+                    idle--;
+                }
+
+                continue;
+            }
+
+            if ( keepalive > 0
+                 && now - Math.max( pack.getLastUse(), pack.getLastKeepalive() ) > keepalive
+                 && pack.compareAndSetState( ConnectionPack.STATE_NOT_IN_USE,
+                                             ConnectionPack.STATE_IN_USE ) )
+            {
+                //
+                //    The ping is a round trip, so it goes to the pool's
+                //    own thread rather than holding up every pool's
+                //    housekeeping.
+                //
+                if ( ! runInBackground( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        keepAlive( pack, config );
+                    }
+                } ) )
+                {
+                    returnConnectionPack( pack );
+                }
+            }
+        }
+
+        //
+        //    Top the idle connections back up to the minimum.
+        //
+        if ( idle < minIdle )
+        {
+            openConnections( minIdle - idle - _pendingCreates.get() );
+        }
+    }
+
+
+    /**
+     *    Runs housekeeping that talks to the database on the pool's
+     *    closer thread, so a database that stops answering only holds
+     *    up its own pool.
+     *
+     *    @return false if the pool is shutting down
+     */
+    private boolean runInBackground( final Runnable    task )
+    {
+        try
+        {
+            _closer.execute( task );
+            return true;
+        }
+        catch ( RejectedExecutionException    ex )
+        {
+            return false;
+        }
+    }
+
+
+    /**
+     *    Pings a claimed idle pack so neither the server nor anything
+     *    in between drops it, then puts it back without counting as a
+     *    use.
+     */
+    private void keepAlive( final ConnectionPack          pack,
+                            final ConnectionPoolConfig    config )
+    {
+        ConnectionPoolConfig.ValidationMode    mode = config.getValidationMode();
+
+        if ( mode == ConnectionPoolConfig.ValidationMode.NONE )
+        {
+            mode = ConnectionPoolConfig.ValidationMode.IS_VALID;
+        }
+
+        if ( pack.validate( mode,
+                            config.getValidationTimeout(),
+                            config.getValidationQuery() ) )
+        {
+            pack.setLastKeepalive( System.currentTimeMillis() );
+            returnConnectionPack( pack );
+        }
+        else
+        {
+            _metrics.recordValidationFailure();
+            removeConnectionPack( pack );
+        }
+    }
+
+
+    /**
+     *    Queues a replication lag check on the pool's closer thread,
+     *    since it's a round trip, unless one is still waiting to run.
+     */
+    void requestReplicationLagCheck()
+    {
+        if ( ! _lagCheckQueued.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        if ( ! runInBackground( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    checkReplicationLag();
+                }
+                catch ( Throwable    ex )
+                {
+                    logger.error( "Can't check replication lag", ex );
+                }
+                finally
+                {
+                    _lagCheckQueued.set( false );
+                }
+            }
+        } ) )
+        {
+            _lagCheckQueued.set( false );
+        }
+    }
+
+
+    /**
+     *    Asks a replica how far behind it is, on an idle connection so
+     *    the check never waits behind borrowers.  If every connection
+     *    is leased the last reading stands.
+     */
+    void checkReplicationLag()
+    {
+        ConnectionPoolConfig    config = _connectionInfo.getPoolConfig();
+        ConnectionPack          pack;
+
+        try
+        {
+            pack = claimConnectionPack();
+        }
+        catch ( DatabaseException    ex )
+        {
+            _replicationLag = Long.MAX_VALUE;
+            return;
+        }
+
+        if ( pack == null )
+        {
+            if ( _totalConnections.get() == 0 )
+            {
+                openConnections( 1 );
+            }
+
+            return;
+        }
+
+        try
+        {
+            Statement    statement = pack.getConnection().createStatement();
+
+            try
+            {
+                statement.setQueryTimeout( config.getValidationTimeout() );
+
+                ResultSet    resultSet = statement.executeQuery( config.getReplicaLagQuery() );
+
+                resultSet.next();
+                _replicationLag = Math.max( 0, (long) resultSet.getDouble( 1 ) );
+                resultSet.close();
+            }
+            finally
+            {
+                statement.close();
+            }
+
+            pack.setLastKeepalive( System.currentTimeMillis() );
+            returnConnectionPack( pack );
+        }
+        catch ( Throwable    ex )
+        {
+            logger.warn( "Can't check replication lag on ["
+                         + _connectionInfo.toShortString() + "]",
+                         ex );
+
+            _replicationLag = Long.MAX_VALUE;
+            removeConnectionPack( pack );
+        }
+    }
+
+
+    /**
+     *    @return how far behind its primary this replica is in
+     *            milliseconds, -1 if that isn't known yet, or
+     *            Long.MAX_VALUE if it couldn't be checked
+     */
+    long getReplicationLag()
+    {
+        return _replicationLag;
+    }
+
+
+    /**
+     *    Shuts the pool down gracefully.  New borrowers are refused and
+     *    anybody waiting is turned away at once, idle connections are
+     *    closed, and leased ones are closed as they come back.  Any
+     *    still leased at the deadline have their statements cancelled
+     *    and are closed anyway.
+     *
+     *    @param timeout how long, in milliseconds, to wait for leased
+     *                   connections
+     *    @return true if every connection came back in time
+     */
+    public boolean drain( final long    timeout )
+    {
+        if ( ! _drainStarted.compareAndSet( false, true ) )
+        {
+            //
+            //    Already draining, e.g. a replica drained along with
+            //    its primary.  Wait for that instead.
+            //
+            try
+            {
+                return _closed.await( timeout, TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException    ex )
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        long    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeout );
+
+        stopLending();
+
+        boolean    drained = awaitLeases( deadline );
+
+        if ( ! drained )
+        {
+            logger.warn( "Cancelling statements on " + getActiveCount()
+                         + " connections still leased from ["
+                         + _connectionInfo.toShortString() + "] after " + timeout + " ms" );
+
+            for ( ConnectionPack    pack : _connections )
+            {
+                try
+                {
+                    pack.cancelAllStatements();
+                }
+                catch ( Throwable    ex )
+                {
+                    logger.warn( "Can't cancel statements on pack [" + pack.getId() + "]", ex );
+                }
+            }
+        }
+
+        shutdown();
+
+        return drained;
+    }
+
+
+    /**
+     *    Refuses new borrowers, turns away the waiting ones and closes
+     *    the idle connections.
+     */
+    private void stopLending()
+    {
+        _closing = true;
+
+        Waiter    waiter;
+
+        while ( ( waiter = _waiters.poll() ) != null )
+        {
+            waiter.turnAway();
+        }
+
+        closeIdleConnections();
+    }
+
+
+    private void closeIdleConnections()
+    {
+        for ( ConnectionPack    pack : _connections )
+        {
+            if ( pack.compareAndSetState( ConnectionPack.STATE_NOT_IN_USE,
+                                          ConnectionPack.STATE_REMOVED ) )
+            {
+                discardConnectionPack( pack );
+            }
+        }
+    }
+
+
+    /**
+     *    Waits for every leased connection to come back and be closed.
+     *
+     *    @param deadline in System.nanoTime() terms
+     *    @return false if the deadline passed or the thread was
+     *            interrupted first
+     */
+    private boolean awaitLeases( final long    deadline )
+    {
+        while ( true )
+        {
+            //
+            //    Housekeeping may have had one out for a keepalive.
+            //
+            closeIdleConnections();
+
+            if ( _connections.isEmpty() )
+            {
+                return true;
+            }
+
+            long    remaining = deadline - System.nanoTime();
+
+            if ( remaining <= 0 )
+            {
+                return false;
+            }
+
+            LockSupport.parkNanos( this, Math.min( remaining, TimeUnit.MILLISECONDS.toNanos( 50 ) ) );
 
-        _reapTimer = new Timer( "DatabaseConnectionReaper", true );
-        _reapTimer.schedule( new ConnectionReaper( this ),
-                             delay,
-                             delay );
+            if ( Thread.currentThread().isInterrupted() )
+            {
+                return false;
+            }
+        }
     }
 
 
     /**
-     *    Checks in a connection to the _pool.
-     *    <p>
-     *    Notify other Threads that may be waiting for a connection.
+     *    Closes every connection at once, leased or not.
      */
-    public void releaseConnectionPack( final ConnectionPack    pack )
+    public void shutdown()
     {
-        if ( logger.isInfoEnabled() )
+        _closing = true;
+        _housekeeping.cancel( false );
+
+        if ( _lagMonitoring != null )
         {
-            logger.info( "\n\treleasing connection:"
-                         + "\n\t- connection: [" + pack + "]" );
+            _lagMonitoring.cancel( false );
         }
 
-        _lock.lock();
-
-        try
+        if ( _sizing != null )
         {
-            //
-            //    Put the connection at the end of the List
-            //
-            _freeConnections.addLast( pack );
-            _leasedConnections.remove( pack );
-            pack.expireLease();
+            _sizing.cancel( false );
+        }
 
-            if ( logger.isInfoEnabled() )
-            {
-                logger.info( "\n\t- num free connections: ["
-                             + _freeConnections.size()
-                             + "]"
-                             + "\n\t- free connections: [" + _freeConnections + "]"
-                             + "\n\t- num checked out: ["
-                                 + _leasedConnections.size() + "]"
-                             + "\n\t- checkedOut: ["
-                                 + _leasedConnections + "]" );
-            }
+        Waiter    waiter;
 
-            //
-            //    Because we are only releasing one connection pack here,
-            //    notify only one thread.
-            //
-            _availablePack.signal();
-        }
-        finally
+        while ( ( waiter = _waiters.poll() ) != null )
         {
-            _lock.unlock();
+            waiter.turnAway();
         }
+
+        _creator.shutdownNow();
+        _closer.shutdown();
+        releaseAllConnections();
+        _metrics.unregister();
+        _closed.countDown();
     }
 
 
-    public Collection<String> getActiveSql()
+    @Override
+    public String toString()
     {
-        Collection<String>    sql = new HashSet<String>();
+        return new ToStringBuilder( this )
+            .append( "totalConnections", _totalConnections.get() )
+            .append( "connections", _connections )
+            .toString();
+    }
 
-        _lock.lock();
 
-        try
+    //========================================
+    //    class Waiter
+    //========================================
+
+    /**
+     *    A thread in line for a pack.  A releasing thread and the
+     *    waiter itself race to complete it exactly once, either with a
+     *    pack or as cancelled.
+     */
+    static class Waiter
+    {
+        private final static Object    CANCELLED = new Object();
+
+        private final Thread                     _thread;
+        private final PoolPartition              _partition;
+        private final BorrowPriority             _priority;
+        private final AtomicReference<Object>    _result = new AtomicReference<Object>();
+
+
+        Waiter( final Thread            thread,
+                final PoolPartition     partition,
+                final BorrowPriority    priority )
         {
-            for ( ConnectionPack    pack : _leasedConnections )
-            {
-                pack.collectActiveSql( sql );
-            }
+            _thread    = thread;
+            _partition = partition;
+            _priority  = priority;
         }
-        finally
+
+
+        PoolPartition getPartition()
         {
-            _lock.unlock();
+            return _partition;
         }
 
-        return sql;
-    }
 
+        BorrowPriority getPriority()
+        {
+            return _priority;
+        }
 
-    public void cancelAllStatements()
-        throws
-            SQLException
-    {
-        _lock.lock();
 
-        try
+        boolean offer( final ConnectionPack    pack )
         {
-            for ( ConnectionPack    pack : _leasedConnections )
+            if ( ! _result.compareAndSet( null, pack ) )
             {
-                pack.cancelAllStatements();
+                return false;
             }
+
+            wake();
+
+            return true;
         }
-        finally
+
+
+        boolean cancel()
         {
-            _lock.unlock();
+            return _result.compareAndSet( null, CANCELLED );
         }
-    }
 
 
-    public ConnectionPack getConnectionPack( final long    timeout )
-        throws
-            DatabaseException
-    {
-        final long         startTime = System.currentTimeMillis();
-
-        ConnectionPack     pack;
-        while ( ( pack = getConnectionPack() ) == null )
+        /**
+         *    Cancels the wait from another thread and wakes the
+         *    waiter.
+         */
+        void turnAway()
         {
-            if ( ( System.currentTimeMillis() - startTime ) >= timeout )
+            if ( cancel() )
             {
-                //
-                //    Timeout has expired
-                //
-                return null;
+                wake();
             }
+        }
 
-            //
-            //    Wait for a notification from the connection pool
-            //    that releaseConnectionPack() has been called
-            //
-            _lock.lock();
-            try
-            {
-                _availablePack.await( timeout, TimeUnit.MILLISECONDS );
-            }
-            catch( InterruptedException    ex )
-            {
-                //
-                //    Re-signal that the current thread has been interrupted
-                //
-                Thread.currentThread().interrupt();
-                return null;
-            }
-            finally
-            {
-                _lock.unlock();
-            }
+
+        /**
+         *    Called once, by whoever completed the wait from another
+         *    thread.
+         */
+        void wake()
+        {
+            LockSupport.unpark( _thread );
         }
 
-        return pack;
 
+        boolean isCancelled()
+        {
+            return _result.get() == CANCELLED;
+        }
+
+
+        ConnectionPack getPack()
+        {
+            Object    result = _result.get();
+
+            return result instanceof ConnectionPack ? (ConnectionPack) result : null;
+        }
     }
 
 
+    //========================================
+    //    class AsyncWaiter
+    //========================================
+
     /**
-     *    Checks out a connection from the _pool.
-     *    <p>
-     *    If no free connection is available, a new connection is
-     *    created unless the max number of connections has been
-     *    reached.
-     *    <p>
-     *    If a free connection has been closed by the database, it's
-     *    removed from the _pool and this method is called again
-     *    recursively.
+     *    A borrow in line without a thread.  Whoever wins the race to
+     *    complete the wait, the releaser with a pack or the timeout,
+     *    a turn away or the caller's cancel without one, completes the
+     *    future.
      */
-    public ConnectionPack getConnectionPack()
-        throws
-            DatabaseException
+    private final class AsyncWaiter
+        extends
+            Waiter
     {
-        ConnectionPack      pack = null;
+        private final CompletableFuture<ConnectionPack>    _future = new CompletableFuture<ConnectionPack>();
+        private final Executor                             _executor;
+        private final ConnectionBorrowEvent                _event  = new ConnectionBorrowEvent();
+        private final long                                 _start  = System.nanoTime();
 
-        _lock.lock();
+        private volatile boolean               _queued;
+        private volatile ScheduledFuture<?>    _timeout;
 
-        try
-        {
-            if ( logger.isInfoEnabled() )
-            {
-                logger.info( "\n\tRequest for connection..."
-                             + "\n\t- num free connections: ["
-                             + _freeConnections.size()
-                             + "]"
-                             + "\n\t- free connections: [" + _freeConnections + "]"
-                             + "\n\t- num checked out: ["
-                                 + _leasedConnections.size() + "]"
-                             + "\n\t- checkedOut: ["
-                                 + _leasedConnections + "]" );
-            }
-
-            if ( ! _freeConnections.isEmpty() )
-            {
-    //             //
-    //             //    Pick the first Connection in the List to get
-    //             //    round-robin usage.  This is important so that
-    //             //    there's less chance of a connection being timed out
-    //             //    for inactivity by the server.
-    //             //
-    //             pack = (ConnectionPack) _freeConnections.getFirst();
-    //             _freeConnections.removeFirst();
-                //
-                //    The above causes the problem that once a bunch of connections
-                //    are created, for whatever reason, they aren't let go of
-                //    until the user completely stops using the application for
-                //    the duration of the reaper delay time.  This is because each
-                //    connection keeps get used over and over again and never
-                //    becomes stale as long as the user is doing something.
-                //    So taking the most recently used connection allows the
-                //    the older connections to be reaped even if the user is
-                //    using the application.
-                //
-                pack = _freeConnections.removeLast();
 
-                pack.lease();
+        AsyncWaiter( final PoolPartition     partition,
+                     final BorrowPriority    priority,
+                     final Executor          executor )
+        {
+            super( null, partition, priority );
 
-                boolean    isClosed;
+            _executor = executor;
+            _event.begin();
 
-                try
-                {
-                    isClosed = pack.isClosed();
-                }
-                catch ( Throwable    ex )
+            _future.whenComplete( new BiConsumer<ConnectionPack,Throwable>()
+            {
+                @Override
+                public void accept( final ConnectionPack    pack,
+                                    final Throwable         ex )
                 {
-                    isClosed = true;
+                    if ( _future.isCancelled() && cancel() )
+                    {
+                        _waiters.remove( AsyncWaiter.this );
+                        finish();
+                    }
                 }
+            } );
+        }
 
-                if ( isClosed )
-                {
-                    pack = null;
 
-                    if ( logger.isInfoEnabled() )
-                    {
-                        logger.info( "Removed bad connection from ["
-                                     + _connectionInfo + "]" );
-                    }
+        CompletableFuture<ConnectionPack> getFuture()
+        {
+            return _future;
+        }
 
-                    try
-                    {
-                        pack = getConnectionPack();
-                    }
-                    catch ( Throwable    ex )
-                    {
-                        throw new ConnectionPoolException().cantGetConnectionPack( ex );
-                    }
-                }
+
+        /**
+         *    Gets in line, failing the borrow if nobody has given it a
+         *    pack in <code>timeout</code> milliseconds.
+         */
+        void enqueue( final long    timeout )
+            throws
+                DatabaseException
+        {
+            //
+            //    Counted before it's in line, since a pack can reach it
+            //    as soon as it is.
+            //
+            _queued = true;
+            _waiting.incrementAndGet();
+
+            try
+            {
+                ConnectionPool.this.enqueue( this );
             }
-            else if ( ( _connectionInfo.getMaxConnections() == 0 )
-                      || ( _leasedConnections.size() < _connectionInfo.getMaxConnections() ) )
+            catch ( DatabaseException    ex )
             {
-                if ( logger.isInfoEnabled() )
+                _queued = false;
+                _waiting.decrementAndGet();
+                throw ex;
+            }
+
+            _timeout = _borrowTimer.schedule( new Runnable()
+            {
+                @Override
+                public void run()
                 {
-                    logger.info( "Getting new connection ..." );
+                    if ( cancel() )
+                    {
+                        _waiters.remove( AsyncWaiter.this );
+                        _metrics.recordBorrowTimeout();
+                        complete( null, new ConnectionException().cantGetConnection( _connectionInfo ) );
+                    }
                 }
+            },
+            Math.max( 0, timeout ),
+            TimeUnit.MILLISECONDS );
 
-                pack = new ConnectionPack( _connectionInfo );
+            if ( getPack() != null || isCancelled() )
+            {
+                //
+                //    Done before the timeout was set.
+                //
+                _timeout.cancel( false );
             }
+        }
+
+
+        @Override
+        void wake()
+        {
+            ConnectionPack    pack = getPack();
 
             if ( pack != null )
             {
-                _leasedConnections.add( pack );
+                complete( pack, null );
+                return;
             }
 
-            if ( logger.isInfoEnabled() )
+            //
+            //    Turned away.
+            //
+            if ( _closing )
             {
-                logger.info( "\n\t- num free connections: ["
-                             + _freeConnections.size()
-                             + "]"
-                             + "\n\t- free connections: [" + _freeConnections + "]"
-                             + "\n\t- num checked out: ["
-                                 + _leasedConnections.size() + "]"
-                             + "\n\t- checkedOut: ["
-                                 + _leasedConnections + "]" );
+                complete( null, new ConnectionException().poolClosed( _connectionInfo ) );
+            }
+            else if ( _breaker.isOpen() )
+            {
+                _metrics.recordCircuitRejection();
+                complete( null, new ConnectionException().databaseUnreachable( _connectionInfo,
+                                                                               _breaker.getOpenedAt() ) );
+            }
+            else
+            {
+                complete( null, new ConnectionException().cantGetConnection( _connectionInfo ) );
             }
         }
-        finally
-        {
-            _lock.unlock();
-        }
-
-        return pack;
-    }
-
 
-    /**
-     *    Closes all available connections.
-     */
-    public void releaseAllConnections()
-    {
-        _lock.lock();
 
-        try
+        /**
+         *    Stops counting this as waiting, if it was queued.
+         */
+        private void finish()
         {
-            _freeConnections.addAll( _leasedConnections );
-            _leasedConnections.clear();
+            ScheduledFuture<?>    timeout = _timeout;
 
-            Iterator<ConnectionPack>    iterator = _freeConnections.iterator();
-
-            while ( iterator.hasNext() )
+            if ( timeout != null )
             {
-                ConnectionPack       pack;
-                pack = iterator.next();
-
-                try
-                {
-                    pack.close();
-
-                    if ( logger.isInfoEnabled() )
-                    {
-                        logger.info( "Closed connection for _pool" );
-                    }
-
-                }
-                catch ( Throwable    ex )
-                {
-                    //
-                    //    Just log it and move on.
-                    //
-                    logger.error( "Can't close connection for _pool", ex );
-                }
+                timeout.cancel( false );
             }
 
-            _freeConnections.clear();
-        }
-        finally
-        {
-            _lock.unlock();
+            if ( _queued )
+            {
+                _waiting.decrementAndGet();
+            }
         }
-    }
 
 
-    void reapConnections()
-    {
-        _lock.lock();
-
-        try
+        /**
+         *    Starts the lease and hands the pack, or the failure, to
+         *    the caller on its executor.  Only ever called by whoever
+         *    completed the wait.
+         */
+        void complete( final ConnectionPack    pack,
+                       final Throwable         ex )
         {
-            if ( logger.isInfoEnabled() )
+            finish();
+            commitBorrowEvent( _event, pack );
+
+            if ( pack != null )
             {
-                logger.info( "\n\treaping connections."
-                             + "\n\t- current: [" + System.currentTimeMillis() + "]"
-                             + "\n\t- num free connections: ["
-                             + _freeConnections.size()
-                             + "]"
-                             + "\n\t- free connections: [" + _freeConnections + "]"
-                             + "\n\t- num checked out: ["
-                                 + _leasedConnections.size() + "]"
-                             + "\n\t- checkedOut: ["
-                                 + _leasedConnections + "]" );
+                _metrics.recordBorrow( System.nanoTime() - _start );
+                startLease( pack );
             }
 
-            long                     timeout = ONE_MINUTE;
-            long                     stale   = System.currentTimeMillis() - timeout;
-            Iterator<ConnectionPack> iter    = _freeConnections.iterator();
-
-            while ( iter.hasNext() )
+            Runnable    completion = new Runnable()
             {
-                ConnectionPack    pack = iter.next();
-
-                if ( logger.isInfoEnabled() )
-                {
-                    logger.info( "\n\t- stale: [" + stale + "]"
-                                 + "\n\t- candidate: [" + pack + "]" );
-                }
-
-
-                //
-                //    If it's still in use (not likely), or it hasn't gone
-                //    stale yet, skip reaping it.
-                //
-                if ( pack.isInUse() || stale < pack.getLastUse() )
-                {
-                    pack.removeOldStatements();
-                    continue;
-                }
-
-                try
+                @Override
+                public void run()
                 {
-                    pack.close();
-                    iter.remove();
-
-                    if ( logger.isInfoEnabled() )
+                    if ( pack == null )
                     {
-                        logger.info( "\n\treaping:"
-                                     + "\n\t- pack: [" + pack + "]" );
+                        _future.completeExceptionally( ex );
+                    }
+                    else if ( ! _future.complete( pack ) )
+                    {
+                        //
+                        //    Cancelled while the pack was on its way.
+                        //
+                        releaseConnectionPack( pack );
                     }
-
-                    pack = null;
-                }
-                catch ( Throwable    ex )
-                {
-                    logger.error( "can't close connection:"
-                                  + pack,
-                                  ex );
                 }
+            };
+
+            try
+            {
+                _executor.execute( completion );
+            }
+            catch ( RejectedExecutionException    rex )
+            {
+                completion.run();
             }
         }
-        finally
+    }
+
+
+    //========================================
+    //    class ConnectionCreator
+    //========================================
+
+    private class ConnectionCreator
+        implements
+            Callable<Boolean>
+    {
+        @Override
+        public Boolean call()
         {
-            _lock.unlock();
+            return createConnection();
         }
     }
 
 
-    public void shutdown()
+    static class PoolThreadFactory
+        implements
+            ThreadFactory
     {
-        _reapTimer.cancel();
-        releaseAllConnections();
-    }
+        private final String           _name;
+        private final AtomicInteger    _threadNumber = new AtomicInteger();
 
+        PoolThreadFactory( final String    name )
+        {
+            _name = name;
+        }
 
-    //========================================
-    //    class ConnectionReaper
-    //========================================
 
-    @Override
-    public String toString()
-    {
-        return new ToStringBuilder( this )
-            .append( "freeConnections", _freeConnections )
-            .append( "leasedConnections", _leasedConnections )
-            .append( "reapTimer", _reapTimer )
-            .toString();
+        @Override
+        public Thread newThread( final Runnable    runnable )
+        {
+            Thread    thread = new Thread( runnable,
+                                           _name + "-"
+                                           + _threadNumber.incrementAndGet() );
+            thread.setDaemon( true );
+
+            return thread;
+        }
     }
 
 
@@ -490,8 +3078,8 @@ public class ConnectionPool
     //========================================
 
     static class ConnectionReaper
-        extends
-            TimerTask
+        implements
+            Runnable
     {
         private final ConnectionPool     _pool;
 
@@ -520,4 +3108,28 @@ public class ConnectionPool
             }
         }
     }
+
+
+    //========================================
+    //    class ReplicationLagMonitor
+    //========================================
+
+    static class ReplicationLagMonitor
+        implements
+            Runnable
+    {
+        private final ConnectionPool     _pool;
+
+        ReplicationLagMonitor( final ConnectionPool    pool )
+        {
+            _pool = pool;
+        }
+
+
+        @Override
+        public void run()
+        {
+            _pool.requestReplicationLagCheck();
+        }
+    }
 }
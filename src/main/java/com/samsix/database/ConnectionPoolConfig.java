@@ -0,0 +1,927 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import com.samsix.util.io.ResourceReader;
+
+
+/**
+ *    Tuning for the pool behind a ConnectionInfo.
+ *    <p>
+ *    Read from the same keys as the rest of the connection info, e.g.
+ *    <pre>
+ *    Database.Primary.MinIdle     = 2
+ *    Database.Primary.InitialSize = 4
+ *    Database.Primary.WarmUp      = true
+ *    </pre>
+ */
+public class ConnectionPoolConfig
+    implements
+        Serializable
+{
+    /**
+     *
+     */
+    private static final long serialVersionUID = -3305271405741623151L;
+
+    //
+    //    Milliseconds since the last replayed transaction, or 0 on a
+    //    primary.
+    //
+    public static final String    DEFAULT_REPLICA_LAG_QUERY =
+        "select coalesce( extract( epoch from now() - pg_last_xact_replay_timestamp() ) * 1000, 0 )";
+
+    private int        _minIdle     = 0;
+    private int        _initialSize = 0;
+    private boolean    _warmUp      = false;
+
+    private int        _maxConcurrentCreates = 2;
+    private int        _maxCreatesPerSecond  = 0;
+
+    private ValidationMode    _validationMode          = ValidationMode.IS_VALID;
+    private long              _validationIdleThreshold = 5000;
+    private int               _validationTimeout       = 5;
+    private String            _validationQuery         = "";
+
+    private long       _housekeepingPeriod = 30 * 1000;
+
+    //
+    //    These two can be changed while the pool runs.
+    //
+    private volatile long    _idleTimeout   = 60 * 1000;
+    private volatile long    _borrowTimeout = 10 * 1000;
+
+    private long       _maxLifetime        = 0;
+    private long       _keepaliveTime      = 0;
+
+    private long       _leakDetectionThreshold = 0;
+    private int        _leakTraceSampleRate    = 0;
+    private long       _leakReclaimThreshold   = 0;
+
+    private long       _drainTimeout = 10 * 1000;
+
+    private int        _circuitBreakerThreshold      = 5;
+    private long       _circuitBreakerInitialBackoff = 1000;
+    private long       _circuitBreakerMaxBackoff     = 30 * 1000;
+
+    private boolean    _adaptiveSizing         = false;
+    private int        _adaptiveMinConnections = 2;
+    private long       _adaptivePeriod         = 10 * 1000;
+    private long       _adaptiveWaitThreshold  = 10;
+
+    private long       _maxReplicaLag         = 10 * 1000;
+    private long       _replicaLagCheckPeriod = 5 * 1000;
+    private String     _replicaLagQuery       = DEFAULT_REPLICA_LAG_QUERY;
+    private long       _readYourWritesWindow  = 0;
+
+    private int        _statementCacheSize = 0;
+
+    private boolean    _shareThreadLeases  = false;
+
+    private boolean    _sharedPool         = false;
+
+    //
+    //    0 for no limit.
+    //
+    private int        _maxWaitingHigh   = 0;
+    private int        _maxWaitingNormal = 0;
+    private int        _maxWaitingLow    = 0;
+
+    private List<Partition>    _partitions = new ArrayList<Partition>();
+
+
+    public ConnectionPoolConfig()
+    {
+        //    Do nothing.
+    }
+
+
+    public static ConnectionPoolConfig valueOf( final ResourceReader    reader,
+                                                final String            keyBase )
+    {
+        ConnectionPoolConfig    config = new ConnectionPoolConfig();
+
+        config._minIdle     = reader.getInt( keyBase + ".MinIdle", config._minIdle );
+        config._initialSize = reader.getInt( keyBase + ".InitialSize", config._initialSize );
+        config._warmUp      = reader.getBoolean( keyBase + ".WarmUp", config._warmUp );
+
+        config._maxConcurrentCreates = reader.getInt( keyBase + ".MaxConcurrentCreates",
+                                                      config._maxConcurrentCreates );
+        config._maxCreatesPerSecond  = reader.getInt( keyBase + ".MaxCreatesPerSecond",
+                                                      config._maxCreatesPerSecond );
+
+        config._validationMode          = ValidationMode.valueOf( reader.getString( keyBase + ".ValidationMode",
+                                                                                    config._validationMode.name() )
+                                                                      .toUpperCase() );
+        config._validationIdleThreshold = reader.getInt( keyBase + ".ValidationIdleThreshold",
+                                                         (int) config._validationIdleThreshold );
+        config._validationTimeout       = reader.getInt( keyBase + ".ValidationTimeout",
+                                                         config._validationTimeout );
+        config._validationQuery         = reader.getString( keyBase + ".ValidationQuery",
+                                                            config._validationQuery );
+
+        config._housekeepingPeriod = reader.getInt( keyBase + ".HousekeepingPeriod",
+                                                    (int) config._housekeepingPeriod );
+        config._idleTimeout        = reader.getInt( keyBase + ".IdleTimeout",
+                                                    (int) config._idleTimeout );
+        config._borrowTimeout      = reader.getInt( keyBase + ".BorrowTimeout",
+                                                    (int) config._borrowTimeout );
+        config._maxLifetime        = reader.getInt( keyBase + ".MaxLifetime",
+                                                    (int) config._maxLifetime );
+        config._keepaliveTime      = reader.getInt( keyBase + ".KeepaliveTime",
+                                                    (int) config._keepaliveTime );
+
+        config._leakDetectionThreshold = reader.getInt( keyBase + ".LeakDetectionThreshold",
+                                                        (int) config._leakDetectionThreshold );
+        config._leakTraceSampleRate    = reader.getInt( keyBase + ".LeakTraceSampleRate",
+                                                        config._leakTraceSampleRate );
+        config._leakReclaimThreshold   = reader.getInt( keyBase + ".LeakReclaimThreshold",
+                                                        (int) config._leakReclaimThreshold );
+
+        config._drainTimeout = reader.getInt( keyBase + ".DrainTimeout",
+                                              (int) config._drainTimeout );
+
+        config._circuitBreakerThreshold      = reader.getInt( keyBase + ".CircuitBreakerThreshold",
+                                                              config._circuitBreakerThreshold );
+        config._circuitBreakerInitialBackoff = reader.getInt( keyBase + ".CircuitBreakerInitialBackoff",
+                                                              (int) config._circuitBreakerInitialBackoff );
+        config._circuitBreakerMaxBackoff     = reader.getInt( keyBase + ".CircuitBreakerMaxBackoff",
+                                                              (int) config._circuitBreakerMaxBackoff );
+
+        config._adaptiveSizing         = reader.getBoolean( keyBase + ".AdaptiveSizing",
+                                                            config._adaptiveSizing );
+        config._adaptiveMinConnections = reader.getInt( keyBase + ".AdaptiveMinConnections",
+                                                        config._adaptiveMinConnections );
+        config._adaptivePeriod         = reader.getInt( keyBase + ".AdaptivePeriod",
+                                                        (int) config._adaptivePeriod );
+        config._adaptiveWaitThreshold  = reader.getInt( keyBase + ".AdaptiveWaitThreshold",
+                                                        (int) config._adaptiveWaitThreshold );
+
+        config._maxReplicaLag         = reader.getInt( keyBase + ".MaxReplicaLag",
+                                                       (int) config._maxReplicaLag );
+        config._replicaLagCheckPeriod = reader.getInt( keyBase + ".ReplicaLagCheckPeriod",
+                                                       (int) config._replicaLagCheckPeriod );
+        config._replicaLagQuery       = reader.getString( keyBase + ".ReplicaLagQuery",
+                                                          config._replicaLagQuery );
+        config._readYourWritesWindow  = reader.getInt( keyBase + ".ReadYourWritesWindow",
+                                                       (int) config._readYourWritesWindow );
+
+        config._statementCacheSize = reader.getInt( keyBase + ".StatementCacheSize",
+                                                    config._statementCacheSize );
+
+        config._shareThreadLeases = reader.getBoolean( keyBase + ".ShareThreadLeases",
+                                                       config._shareThreadLeases );
+
+        config._sharedPool = reader.getBoolean( keyBase + ".SharedPool", config._sharedPool );
+
+        config._maxWaitingHigh   = reader.getInt( keyBase + ".MaxWaitingHigh",   config._maxWaitingHigh );
+        config._maxWaitingNormal = reader.getInt( keyBase + ".MaxWaitingNormal", config._maxWaitingNormal );
+        config._maxWaitingLow    = reader.getInt( keyBase + ".MaxWaitingLow",    config._maxWaitingLow );
+
+        String    partitions = reader.getString( keyBase + ".Partitions", null );
+
+        if ( ! StringUtils.isBlank( partitions ) )
+        {
+            for ( String    name : StringUtils.split( partitions, ", " ) )
+            {
+                String    partitionKey = keyBase + ".Partition." + name;
+
+                config.addPartition( name,
+                                     reader.getInt( partitionKey + ".Min", 0 ),
+                                     reader.getInt( partitionKey + ".Max", 0 ) );
+            }
+        }
+
+        return config;
+    }
+
+
+    /**
+     *    The number of idle connections the pool keeps open.  The
+     *    reaper never closes connections below this.
+     */
+    public int getMinIdle()
+    {
+        return _minIdle;
+    }
+
+
+    public void setMinIdle( final int    minIdle )
+    {
+        _minIdle = minIdle;
+    }
+
+
+    /**
+     *    The number of connections opened when the pool is warmed up.
+     */
+    public int getInitialSize()
+    {
+        return _initialSize;
+    }
+
+
+    public void setInitialSize( final int    initialSize )
+    {
+        _initialSize = initialSize;
+    }
+
+
+    /**
+     *    Whether to start opening connections in the background as soon
+     *    as the ConnectionInfo is read, rather than on first use.
+     */
+    public boolean isWarmUp()
+    {
+        return _warmUp;
+    }
+
+
+    public void setWarmUp( final boolean    warmUp )
+    {
+        _warmUp = warmUp;
+    }
+
+
+    /**
+     *    The most connections the pool opens at the same time.
+     */
+    public int getMaxConcurrentCreates()
+    {
+        return _maxConcurrentCreates;
+    }
+
+
+    public void setMaxConcurrentCreates( final int    maxConcurrentCreates )
+    {
+        _maxConcurrentCreates = maxConcurrentCreates;
+    }
+
+
+    /**
+     *    The most connections the pool opens per second, or 0 for no
+     *    limit.
+     */
+    public int getMaxCreatesPerSecond()
+    {
+        return _maxCreatesPerSecond;
+    }
+
+
+    public void setMaxCreatesPerSecond( final int    maxCreatesPerSecond )
+    {
+        _maxCreatesPerSecond = maxCreatesPerSecond;
+    }
+
+
+    /**
+     *    How a connection that has sat idle is checked before it's
+     *    handed out.
+     */
+    public ValidationMode getValidationMode()
+    {
+        return _validationMode;
+    }
+
+
+    public void setValidationMode( final ValidationMode    validationMode )
+    {
+        _validationMode = validationMode;
+    }
+
+
+    /**
+     *    How long, in milliseconds, a connection has to have been idle
+     *    before it's validated on borrow.  Connections used more
+     *    recently than this are handed out without a round trip.
+     */
+    public long getValidationIdleThreshold()
+    {
+        return _validationIdleThreshold;
+    }
+
+
+    public void setValidationIdleThreshold( final long    validationIdleThreshold )
+    {
+        _validationIdleThreshold = validationIdleThreshold;
+    }
+
+
+    /**
+     *    How long, in seconds, to wait for validation to answer.
+     */
+    public int getValidationTimeout()
+    {
+        return _validationTimeout;
+    }
+
+
+    public void setValidationTimeout( final int    validationTimeout )
+    {
+        _validationTimeout = validationTimeout;
+    }
+
+
+    /**
+     *    The query run in {@link ValidationMode#QUERY} mode.  Postgres
+     *    answers the empty query without doing any work.
+     */
+    public String getValidationQuery()
+    {
+        return _validationQuery;
+    }
+
+
+    public void setValidationQuery( final String    validationQuery )
+    {
+        _validationQuery = validationQuery;
+    }
+
+
+    /**
+     *    How often, in milliseconds, the pool's housekeeping runs.
+     *    Read when the pool is created.
+     */
+    public long getHousekeepingPeriod()
+    {
+        return _housekeepingPeriod;
+    }
+
+
+    public void setHousekeepingPeriod( final long    housekeepingPeriod )
+    {
+        _housekeepingPeriod = housekeepingPeriod;
+    }
+
+
+    /**
+     *    How long, in milliseconds, a connection can sit idle before
+     *    it's closed, or 0 to keep idle connections open.
+     */
+    public long getIdleTimeout()
+    {
+        return _idleTimeout;
+    }
+
+
+    public void setIdleTimeout( final long    idleTimeout )
+    {
+        _idleTimeout = idleTimeout;
+    }
+
+
+    /**
+     *    How long, in milliseconds, a Database waits for a connection
+     *    before giving up.  Can be changed while the pool runs.
+     */
+    public long getBorrowTimeout()
+    {
+        return _borrowTimeout;
+    }
+
+
+    public void setBorrowTimeout( final long    borrowTimeout )
+    {
+        _borrowTimeout = borrowTimeout;
+    }
+
+
+    /**
+     *    How long, in milliseconds, a connection is used before it's
+     *    retired, or 0 for no limit.  Leased connections are retired
+     *    when they're returned.
+     */
+    public long getMaxLifetime()
+    {
+        return _maxLifetime;
+    }
+
+
+    public void setMaxLifetime( final long    maxLifetime )
+    {
+        _maxLifetime = maxLifetime;
+    }
+
+
+    /**
+     *    How often, in milliseconds, an idle connection is pinged to
+     *    keep firewalls and the server from dropping it, or 0 to never
+     *    ping.
+     */
+    public long getKeepaliveTime()
+    {
+        return _keepaliveTime;
+    }
+
+
+    public void setKeepaliveTime( final long    keepaliveTime )
+    {
+        _keepaliveTime = keepaliveTime;
+    }
+
+
+    /**
+     *    How long, in milliseconds, a connection can be leased before
+     *    it's reported as a possible leak, or 0 to not look for leaks.
+     */
+    public long getLeakDetectionThreshold()
+    {
+        return _leakDetectionThreshold;
+    }
+
+
+    public void setLeakDetectionThreshold( final long    leakDetectionThreshold )
+    {
+        _leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+
+    /**
+     *    Record where the connection was borrowed for one in this many
+     *    leases, or 0 to never record it.  1 records every lease, which
+     *    costs a stack trace per borrow.
+     */
+    public int getLeakTraceSampleRate()
+    {
+        return _leakTraceSampleRate;
+    }
+
+
+    public void setLeakTraceSampleRate( final int    leakTraceSampleRate )
+    {
+        _leakTraceSampleRate = leakTraceSampleRate;
+    }
+
+
+    /**
+     *    How long, in milliseconds, a connection can be leased before
+     *    the pool cancels its statements, closes it and opens a
+     *    replacement, or 0 to never take connections back.  Only
+     *    checked when leak detection is on.
+     */
+    public long getLeakReclaimThreshold()
+    {
+        return _leakReclaimThreshold;
+    }
+
+
+    public void setLeakReclaimThreshold( final long    leakReclaimThreshold )
+    {
+        _leakReclaimThreshold = leakReclaimThreshold;
+    }
+
+
+    /**
+     *    How long, in milliseconds, ConnectionInfo.drain() and
+     *    shutdownAll() wait for leased connections to come back before
+     *    cancelling their statements.
+     */
+    public long getDrainTimeout()
+    {
+        return _drainTimeout;
+    }
+
+
+    public void setDrainTimeout( final long    drainTimeout )
+    {
+        _drainTimeout = drainTimeout;
+    }
+
+
+    /**
+     *    How many connects in a row have to fail before the pool stops
+     *    waiting for the database and fails borrowers straight away,
+     *    or 0 to always wait.
+     */
+    public int getCircuitBreakerThreshold()
+    {
+        return _circuitBreakerThreshold;
+    }
+
+
+    public void setCircuitBreakerThreshold( final int    circuitBreakerThreshold )
+    {
+        _circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+
+    /**
+     *    How long, in milliseconds, to wait before the first probe
+     *    connect once the breaker has opened.  Each failed probe doubles
+     *    the wait, up to CircuitBreakerMaxBackoff.
+     */
+    public long getCircuitBreakerInitialBackoff()
+    {
+        return _circuitBreakerInitialBackoff;
+    }
+
+
+    public void setCircuitBreakerInitialBackoff( final long    circuitBreakerInitialBackoff )
+    {
+        _circuitBreakerInitialBackoff = circuitBreakerInitialBackoff;
+    }
+
+
+    public long getCircuitBreakerMaxBackoff()
+    {
+        return _circuitBreakerMaxBackoff;
+    }
+
+
+    public void setCircuitBreakerMaxBackoff( final long    circuitBreakerMaxBackoff )
+    {
+        _circuitBreakerMaxBackoff = circuitBreakerMaxBackoff;
+    }
+
+
+    /**
+     *    Whether the pool sizes itself between AdaptiveMinConnections
+     *    and MaxConnections, growing while borrowers wait and shrinking
+     *    while connections sit idle.  Read when the pool is created.
+     */
+    public boolean isAdaptiveSizing()
+    {
+        return _adaptiveSizing;
+    }
+
+
+    public void setAdaptiveSizing( final boolean    adaptiveSizing )
+    {
+        _adaptiveSizing = adaptiveSizing;
+    }
+
+
+    /**
+     *    The fewest connections adaptive sizing will shrink the pool to.
+     */
+    public int getAdaptiveMinConnections()
+    {
+        return _adaptiveMinConnections;
+    }
+
+
+    public void setAdaptiveMinConnections( final int    adaptiveMinConnections )
+    {
+        _adaptiveMinConnections = adaptiveMinConnections;
+    }
+
+
+    /**
+     *    How often, in milliseconds, adaptive sizing looks at the last
+     *    period's borrows and decides whether to resize.  Read when the
+     *    pool is created.
+     */
+    public long getAdaptivePeriod()
+    {
+        return _adaptivePeriod;
+    }
+
+
+    public void setAdaptivePeriod( final long    adaptivePeriod )
+    {
+        _adaptivePeriod = adaptivePeriod;
+    }
+
+
+    /**
+     *    The mean borrow wait, in milliseconds, above which adaptive
+     *    sizing grows the pool.
+     */
+    public long getAdaptiveWaitThreshold()
+    {
+        return _adaptiveWaitThreshold;
+    }
+
+
+    public void setAdaptiveWaitThreshold( final long    adaptiveWaitThreshold )
+    {
+        _adaptiveWaitThreshold = adaptiveWaitThreshold;
+    }
+
+
+    /**
+     *    How far behind the primary, in milliseconds, a replica can be
+     *    and still be read from.  Set on the primary.
+     */
+    public long getMaxReplicaLag()
+    {
+        return _maxReplicaLag;
+    }
+
+
+    public void setMaxReplicaLag( final long    maxReplicaLag )
+    {
+        _maxReplicaLag = maxReplicaLag;
+    }
+
+
+    /**
+     *    How often, in milliseconds, a replica's lag is checked.  Set
+     *    on the replica and read when its pool is created.
+     */
+    public long getReplicaLagCheckPeriod()
+    {
+        return _replicaLagCheckPeriod;
+    }
+
+
+    public void setReplicaLagCheckPeriod( final long    replicaLagCheckPeriod )
+    {
+        _replicaLagCheckPeriod = replicaLagCheckPeriod;
+    }
+
+
+    /**
+     *    The query that returns a replica's lag in milliseconds.  The
+     *    default compares pg_last_xact_replay_timestamp() to now(),
+     *    which also counts time the primary spent idle, so on a quiet
+     *    primary set something LSN based instead.
+     */
+    public String getReplicaLagQuery()
+    {
+        return _replicaLagQuery;
+    }
+
+
+    public void setReplicaLagQuery( final String    replicaLagQuery )
+    {
+        _replicaLagQuery = replicaLagQuery;
+    }
+
+
+    /**
+     *    How long, in milliseconds, a Database reads from the primary
+     *    after it writes, so it sees its own changes, or 0 to go back
+     *    to the replicas straight away.  Set on the primary.
+     */
+    public long getReadYourWritesWindow()
+    {
+        return _readYourWritesWindow;
+    }
+
+
+    public void setReadYourWritesWindow( final long    readYourWritesWindow )
+    {
+        _readYourWritesWindow = readYourWritesWindow;
+    }
+
+
+    /**
+     *    How many PreparedStatements each connection keeps open for
+     *    reuse, or 0 to close them after every use.  Read when each
+     *    connection is opened.
+     */
+    public int getStatementCacheSize()
+    {
+        return _statementCacheSize;
+    }
+
+
+    public void setStatementCacheSize( final int    statementCacheSize )
+    {
+        _statementCacheSize = statementCacheSize;
+    }
+
+
+    /**
+     *    Whether a thread that already holds a connection from the pool
+     *    gets the same one again, shared, when it borrows another, as
+     *    long as the connection isn't in a transaction.  The
+     *    connection goes back when the last sharer releases it.
+     */
+    public boolean isShareThreadLeases()
+    {
+        return _shareThreadLeases;
+    }
+
+
+    public void setShareThreadLeases( final boolean    shareThreadLeases )
+    {
+        _shareThreadLeases = shareThreadLeases;
+    }
+
+
+    /**
+     *    Whether the pool is shared with every other ConnectionInfo for
+     *    the same driver, URL, user, password and SSL setting that
+     *    shares its pool, instead of being the info's own.  The first
+     *    info to create the pool decides its settings and the others'
+     *    are ignored, so it's off by default.
+     */
+    public boolean isSharedPool()
+    {
+        return _sharedPool;
+    }
+
+
+    public void setSharedPool( final boolean    sharedPool )
+    {
+        _sharedPool = sharedPool;
+    }
+
+
+    /**
+     *    How many borrowers of the priority may wait for a connection at
+     *    once.  Any more are turned away straight away with a
+     *    PoolOverloadException instead of queueing behind them.
+     *
+     *    @return 0 for no limit
+     */
+    public int getMaxWaiting( final BorrowPriority    priority )
+    {
+        switch ( priority )
+        {
+        case HIGH:
+            return _maxWaitingHigh;
+
+        case LOW:
+            return _maxWaitingLow;
+
+        default:
+            return _maxWaitingNormal;
+        }
+    }
+
+
+    public void setMaxWaiting( final BorrowPriority    priority,
+                               final int               maxWaiting )
+    {
+        switch ( priority )
+        {
+        case HIGH:
+            _maxWaitingHigh = maxWaiting;
+            break;
+
+        case LOW:
+            _maxWaitingLow = maxWaiting;
+            break;
+
+        default:
+            _maxWaitingNormal = maxWaiting;
+            break;
+        }
+    }
+
+
+    /**
+     *    The named partitions of the pool.  Empty if it isn't
+     *    partitioned.
+     */
+    public List<Partition> getPartitions()
+    {
+        return Collections.unmodifiableList( _partitions );
+    }
+
+
+    /**
+     *    Divides the pool up.  A partition always has <code>min</code>
+     *    connections to itself, even when other partitions are busy, and
+     *    can borrow what the others aren't using up to <code>max</code>
+     *    and MaxConnections.  Borrowers that don't name a partition, or
+     *    name one that isn't configured, share the "default" partition,
+     *    which has no minimum unless it's configured too.
+     *
+     *    @param max 0 for no limit other than MaxConnections
+     */
+    public void addPartition( final String    name,
+                              final int       min,
+                              final int       max )
+    {
+        _partitions.add( new Partition( name, min, max ) );
+    }
+
+
+    // ================================
+    //
+    //    Object interface
+    //
+    // ================================
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder( this )
+            .append( "minIdle",     _minIdle )
+            .append( "initialSize", _initialSize )
+            .append( "warmUp",      _warmUp )
+            .append( "maxConcurrentCreates", _maxConcurrentCreates )
+            .append( "maxCreatesPerSecond",  _maxCreatesPerSecond )
+            .append( "validationMode",          _validationMode )
+            .append( "validationIdleThreshold", _validationIdleThreshold )
+            .append( "idleTimeout",   _idleTimeout )
+            .append( "borrowTimeout", _borrowTimeout )
+            .append( "maxLifetime",   _maxLifetime )
+            .append( "keepaliveTime", _keepaliveTime )
+            .append( "leakDetectionThreshold", _leakDetectionThreshold )
+            .append( "leakReclaimThreshold",   _leakReclaimThreshold )
+            .append( "drainTimeout",           _drainTimeout )
+            .append( "circuitBreakerThreshold", _circuitBreakerThreshold )
+            .append( "adaptiveSizing",          _adaptiveSizing )
+            .append( "maxReplicaLag",        _maxReplicaLag )
+            .append( "readYourWritesWindow", _readYourWritesWindow )
+            .append( "statementCacheSize",   _statementCacheSize )
+            .append( "shareThreadLeases",    _shareThreadLeases )
+            .append( "sharedPool",           _sharedPool )
+            .append( "maxWaitingHigh",   _maxWaitingHigh )
+            .append( "maxWaitingNormal", _maxWaitingNormal )
+            .append( "maxWaitingLow",    _maxWaitingLow )
+            .append( "partitions", _partitions )
+            .toString();
+    }
+
+
+    // ================================
+    //
+    //    Partition class
+    //
+    // ================================
+
+    public static class Partition
+        implements
+            Serializable
+    {
+        private static final long serialVersionUID = 5208419466413263527L;
+
+        private final String    _name;
+        private final int       _min;
+        private final int       _max;
+
+
+        public Partition( final String    name,
+                          final int       min,
+                          final int       max )
+        {
+            _name = name;
+            _min  = min;
+            _max  = max;
+        }
+
+
+        public String getName()
+        {
+            return _name;
+        }
+
+
+        public int getMin()
+        {
+            return _min;
+        }
+
+
+        public int getMax()
+        {
+            return _max;
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return _name + "[" + _min + ".." + _max + "]";
+        }
+    }
+
+
+    // ================================
+    //
+    //    ValidationMode enum
+    //
+    // ================================
+
+    public enum ValidationMode
+    {
+        /**
+         *    Only check that the driver doesn't think it's closed.
+         */
+        NONE,
+
+        /**
+         *    Use Connection.isValid(), which is a round trip in most
+         *    drivers.
+         */
+        IS_VALID,
+
+        /**
+         *    Run the validation query.
+         */
+        QUERY
+    }
+}
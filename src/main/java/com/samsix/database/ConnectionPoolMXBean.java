@@ -0,0 +1,231 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.Map;
+
+
+/**
+ *    Management view of the pool behind a ConnectionInfo.
+ *    <p>
+ *    Registered as
+ *    <code>com.samsix.database:type=ConnectionPool,name="user@url",id=n</code>.
+ *    Times are in milliseconds.
+ */
+public interface ConnectionPoolMXBean
+{
+    //
+    //    Current state
+    //
+
+    public int getActiveConnections();
+
+
+    public int getIdleConnections();
+
+
+    public int getTotalConnections();
+
+
+    /**
+     *    Connections being opened in the background right now.
+     */
+    public int getPendingConnections();
+
+
+    public int getWaitingThreads();
+
+
+    public int getMaxConnections();
+
+
+    /**
+     *    MaxConnections as configured: the pool's size or, with
+     *    adaptive sizing, its ceiling.  Setting it resizes the running
+     *    pool; connections over a smaller limit are closed when idle,
+     *    never while leased.
+     */
+    public int getMaxConnectionsLimit();
+
+
+    public void setMaxConnectionsLimit( int    maxConnections );
+
+
+    /**
+     *    IdleTimeout and BorrowTimeout in milliseconds, both of which
+     *    can be changed while the pool runs.
+     */
+    public long getIdleTimeout();
+
+
+    public void setIdleTimeout( long    idleTimeout );
+
+
+    public long getBorrowTimeout();
+
+
+    public void setBorrowTimeout( long    borrowTimeout );
+
+
+    /**
+     *    Connections leased by each partition, empty if the pool isn't
+     *    partitioned.
+     */
+    public Map<String,Integer> getPartitionLeases();
+
+
+    /**
+     *    Borrowers waiting for a connection at each priority.
+     */
+    public Map<String,Integer> getWaitingByPriority();
+
+
+    /**
+     *    Borrowers turned away with a PoolOverloadException because
+     *    their priority's MaxWaiting was reached.
+     */
+    public long getOverloadRejections();
+
+
+    /**
+     *    How far behind its primary a replica is, -1 if unknown or
+     *    not a replica.
+     */
+    public long getReplicationLag();
+
+
+    //
+    //    Counters since the pool was created
+    //
+
+    public long getBorrowCount();
+
+
+    public long getBorrowTimeouts();
+
+
+    public long getConnectionsCreated();
+
+
+    public long getConnectionCreationFailures();
+
+
+    public long getValidationFailures();
+
+
+    public long getLeaksDetected();
+
+
+    public long getLeaksReclaimed();
+
+
+    /**
+     *    Times a lost connection made the pool drop every connection
+     *    opened before it, e.g. after a database restart or failover.
+     */
+    public long getPoolInvalidations();
+
+
+    /**
+     *    Whether the pool has given up on reaching the database for
+     *    now and is failing borrowers fast.
+     */
+    public boolean isCircuitOpen();
+
+
+    public long getCircuitBreakerRejections();
+
+
+    //
+    //    Adaptive sizing.  MaxConnections is the current size.
+    //
+
+    public boolean isAdaptiveSizing();
+
+
+    public long getPoolGrowths();
+
+
+    public long getPoolShrinks();
+
+
+    /**
+     *    Times the pool wanted to grow but didn't, because the database
+     *    looked saturated or MaxConnections was reached.
+     */
+    public long getPoolGrowthsHeld();
+
+
+    /**
+     *    The last decision to resize or hold, with why, or null if
+     *    there hasn't been one.
+     */
+    public String getLastResizeDecision();
+
+
+    //
+    //    PreparedStatement caches, across all connections
+    //
+
+    public long getStatementCacheHits();
+
+
+    public long getStatementCacheMisses();
+
+
+    public long getStatementCacheEvictions();
+
+
+    /**
+     *    Borrows that shared a connection their thread already held,
+     *    with ShareThreadLeases on.
+     */
+    public long getSharedLeases();
+
+
+    //
+    //    Time waiting in getConnectionPack()
+    //
+
+    public double getBorrowWaitTimeMean();
+
+
+    public double getBorrowWaitTime99thPercentile();
+
+
+    public double getBorrowWaitTimeMax();
+
+
+    //
+    //    Time between borrowing and returning a connection
+    //
+
+    public double getLeaseDurationMean();
+
+
+    public double getLeaseDuration99thPercentile();
+
+
+    public double getLeaseDurationMax();
+
+
+    //
+    //    Time to open a physical connection
+    //
+
+    public double getConnectionCreationTimeMean();
+
+
+    public double getConnectionCreationTime99thPercentile();
+
+
+    public double getConnectionCreationTimeMax();
+}
@@ -0,0 +1,588 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *    Counters and timings for one ConnectionPool, published over JMX.
+ *    <p>
+ *    Everything is recorded with LongAdders so the borrow path never
+ *    contends on a metric.  The counts of active, idle and waiting
+ *    connections are read from the pool when asked for.
+ */
+class ConnectionPoolMetrics
+    implements
+        ConnectionPoolMXBean
+{
+    private final static Logger logger = Logger.getLogger( ConnectionPoolMetrics.class );
+
+    private final static String           DOMAIN = "com.samsix.database";
+    private final static AtomicInteger    _ids   = new AtomicInteger();
+
+    private final ConnectionPool    _pool;
+
+    private final LongAdder    _borrows            = new LongAdder();
+    private final LongAdder    _borrowTimeouts     = new LongAdder();
+    private final LongAdder    _created            = new LongAdder();
+    private final LongAdder    _creationFailures   = new LongAdder();
+    private final LongAdder    _validationFailures = new LongAdder();
+    private final LongAdder    _leaksDetected      = new LongAdder();
+    private final LongAdder    _leaksReclaimed     = new LongAdder();
+    private final LongAdder    _circuitRejections  = new LongAdder();
+    private final LongAdder    _growths            = new LongAdder();
+    private final LongAdder    _shrinks            = new LongAdder();
+    private final LongAdder    _growthsHeld        = new LongAdder();
+    private final LongAdder    _cacheHits          = new LongAdder();
+    private final LongAdder    _cacheMisses        = new LongAdder();
+    private final LongAdder    _cacheEvictions     = new LongAdder();
+    private final LongAdder    _sharedLeases       = new LongAdder();
+    private final LongAdder    _invalidations      = new LongAdder();
+    private final LongAdder    _overloadRejections = new LongAdder();
+
+    private volatile String    _lastResizeDecision;
+
+    private final LatencyHistogram    _borrowWait    = new LatencyHistogram();
+    private final LatencyHistogram    _leaseDuration = new LatencyHistogram();
+    private final LatencyHistogram    _creationTime  = new LatencyHistogram();
+
+    private ObjectName    _name;
+
+
+    ConnectionPoolMetrics( final ConnectionPool    pool )
+    {
+        _pool = pool;
+    }
+
+
+    /**
+     *    Publishes this with the platform MBeanServer.  Failing to is
+     *    logged, never fatal.
+     */
+    void register( final ConnectionInfo    info )
+    {
+        try
+        {
+            MBeanServer    server = ManagementFactory.getPlatformMBeanServer();
+
+            _name = new ObjectName( DOMAIN + ":type=ConnectionPool"
+                                    + ",name=" + ObjectName.quote( info.toShortString() )
+                                    + ",id=" + _ids.incrementAndGet() );
+
+            server.registerMBean( new StandardMBean( this, ConnectionPoolMXBean.class, true ),
+                                  _name );
+        }
+        catch ( Throwable    ex )
+        {
+            logger.warn( "Can't register pool metrics for [" + info.toShortString() + "]", ex );
+            _name = null;
+        }
+    }
+
+
+    void unregister()
+    {
+        if ( _name == null )
+        {
+            return;
+        }
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( _name );
+        }
+        catch ( Throwable    ex )
+        {
+            logger.warn( "Can't unregister pool metrics [" + _name + "]", ex );
+        }
+
+        _name = null;
+    }
+
+
+    // ================================
+    //
+    //    Recording
+    //
+    // ================================
+
+    void recordBorrow( final long    waitNanos )
+    {
+        _borrows.increment();
+        _borrowWait.record( waitNanos / 1000 );
+    }
+
+
+    void recordBorrowTimeout()
+    {
+        _borrowTimeouts.increment();
+    }
+
+
+    void recordLease( final long    leaseMillis )
+    {
+        _leaseDuration.record( leaseMillis * 1000 );
+    }
+
+
+    void recordCreation( final long    createNanos )
+    {
+        _created.increment();
+        _creationTime.record( createNanos / 1000 );
+    }
+
+
+    void recordCreationFailure()
+    {
+        _creationFailures.increment();
+    }
+
+
+    void recordValidationFailure()
+    {
+        _validationFailures.increment();
+    }
+
+
+    void recordLeakDetected()
+    {
+        _leaksDetected.increment();
+    }
+
+
+    void recordLeakReclaimed()
+    {
+        _leaksReclaimed.increment();
+    }
+
+
+    void recordCircuitRejection()
+    {
+        _circuitRejections.increment();
+    }
+
+
+    void recordStatementCacheHit()
+    {
+        _cacheHits.increment();
+    }
+
+
+    void recordStatementCacheMiss()
+    {
+        _cacheMisses.increment();
+    }
+
+
+    void recordStatementCacheEviction()
+    {
+        _cacheEvictions.increment();
+    }
+
+
+    void recordSharedLease()
+    {
+        _sharedLeases.increment();
+    }
+
+
+    void recordInvalidation()
+    {
+        _invalidations.increment();
+    }
+
+
+    void recordOverloadRejection()
+    {
+        _overloadRejections.increment();
+    }
+
+
+    /**
+     *    @param from the pool's size before
+     *    @param to its size now, the same if growth was held back
+     *    @param reason what the decision was based on
+     */
+    void recordResize( final int       from,
+                       final int       to,
+                       final String    reason )
+    {
+        String    decision;
+
+        if ( to > from )
+        {
+            _growths.increment();
+            decision = "grew " + from + " -> " + to;
+        }
+        else if ( to < from )
+        {
+            _shrinks.increment();
+            decision = "shrank " + from + " -> " + to;
+        }
+        else
+        {
+            _growthsHeld.increment();
+            decision = "held at " + from;
+        }
+
+        _lastResizeDecision = decision + ": " + reason;
+    }
+
+
+    /**
+     *    @return microseconds spent waiting in every borrow so far
+     */
+    long getBorrowWaitTotal()
+    {
+        return _borrowWait.getSum();
+    }
+
+
+    long getLeaseCount()
+    {
+        return _leaseDuration.getCount();
+    }
+
+
+    /**
+     *    @return microseconds leased over every lease so far
+     */
+    long getLeaseTotal()
+    {
+        return _leaseDuration.getSum();
+    }
+
+
+    // ================================
+    //
+    //    ConnectionPoolMXBean interface
+    //
+    // ================================
+
+    @Override
+    public int getActiveConnections()
+    {
+        return _pool.getActiveCount();
+    }
+
+
+    @Override
+    public int getIdleConnections()
+    {
+        return _pool.getIdleCount();
+    }
+
+
+    @Override
+    public int getTotalConnections()
+    {
+        return _pool.getTotalCount();
+    }
+
+
+    @Override
+    public int getPendingConnections()
+    {
+        return _pool.getPendingCount();
+    }
+
+
+    @Override
+    public int getWaitingThreads()
+    {
+        return _pool.getWaitingCount();
+    }
+
+
+    @Override
+    public int getMaxConnections()
+    {
+        return _pool.getMaxConnections();
+    }
+
+
+    @Override
+    public int getMaxConnectionsLimit()
+    {
+        return _pool.getMaxConnectionsLimit();
+    }
+
+
+    @Override
+    public void setMaxConnectionsLimit( final int    maxConnections )
+    {
+        _pool.getConnectionInfo().setMaxConnections( maxConnections );
+    }
+
+
+    @Override
+    public long getIdleTimeout()
+    {
+        return _pool.getConnectionInfo().getPoolConfig().getIdleTimeout();
+    }
+
+
+    @Override
+    public void setIdleTimeout( final long    idleTimeout )
+    {
+        _pool.getConnectionInfo().getPoolConfig().setIdleTimeout( idleTimeout );
+    }
+
+
+    @Override
+    public long getBorrowTimeout()
+    {
+        return _pool.getConnectionInfo().getPoolConfig().getBorrowTimeout();
+    }
+
+
+    @Override
+    public void setBorrowTimeout( final long    borrowTimeout )
+    {
+        _pool.getConnectionInfo().getPoolConfig().setBorrowTimeout( borrowTimeout );
+    }
+
+
+    @Override
+    public Map<String,Integer> getPartitionLeases()
+    {
+        return _pool.getPartitionLeases();
+    }
+
+
+    @Override
+    public long getReplicationLag()
+    {
+        long    lag = _pool.getReplicationLag();
+
+        return lag == Long.MAX_VALUE ? -1 : lag;
+    }
+
+
+    @Override
+    public long getBorrowCount()
+    {
+        return _borrows.sum();
+    }
+
+
+    @Override
+    public long getBorrowTimeouts()
+    {
+        return _borrowTimeouts.sum();
+    }
+
+
+    @Override
+    public long getConnectionsCreated()
+    {
+        return _created.sum();
+    }
+
+
+    @Override
+    public long getConnectionCreationFailures()
+    {
+        return _creationFailures.sum();
+    }
+
+
+    @Override
+    public long getValidationFailures()
+    {
+        return _validationFailures.sum();
+    }
+
+
+    @Override
+    public long getLeaksDetected()
+    {
+        return _leaksDetected.sum();
+    }
+
+
+    @Override
+    public long getLeaksReclaimed()
+    {
+        return _leaksReclaimed.sum();
+    }
+
+
+    @Override
+    public long getPoolInvalidations()
+    {
+        return _invalidations.sum();
+    }
+
+
+    @Override
+    public boolean isCircuitOpen()
+    {
+        return _pool.isCircuitOpen();
+    }
+
+
+    @Override
+    public long getOverloadRejections()
+    {
+        return _overloadRejections.sum();
+    }
+
+
+    @Override
+    public Map<String,Integer> getWaitingByPriority()
+    {
+        return _pool.getWaitingByPriority();
+    }
+
+
+    @Override
+    public long getCircuitBreakerRejections()
+    {
+        return _circuitRejections.sum();
+    }
+
+
+    @Override
+    public boolean isAdaptiveSizing()
+    {
+        return _pool.isAdaptiveSizing();
+    }
+
+
+    @Override
+    public long getPoolGrowths()
+    {
+        return _growths.sum();
+    }
+
+
+    @Override
+    public long getPoolShrinks()
+    {
+        return _shrinks.sum();
+    }
+
+
+    @Override
+    public long getPoolGrowthsHeld()
+    {
+        return _growthsHeld.sum();
+    }
+
+
+    @Override
+    public String getLastResizeDecision()
+    {
+        return _lastResizeDecision;
+    }
+
+
+    @Override
+    public long getStatementCacheHits()
+    {
+        return _cacheHits.sum();
+    }
+
+
+    @Override
+    public long getStatementCacheMisses()
+    {
+        return _cacheMisses.sum();
+    }
+
+
+    @Override
+    public long getStatementCacheEvictions()
+    {
+        return _cacheEvictions.sum();
+    }
+
+
+    @Override
+    public long getSharedLeases()
+    {
+        return _sharedLeases.sum();
+    }
+
+
+    @Override
+    public double getBorrowWaitTimeMean()
+    {
+        return _borrowWait.getMean();
+    }
+
+
+    @Override
+    public double getBorrowWaitTime99thPercentile()
+    {
+        return _borrowWait.getPercentile( 0.99 );
+    }
+
+
+    @Override
+    public double getBorrowWaitTimeMax()
+    {
+        return _borrowWait.getMax();
+    }
+
+
+    @Override
+    public double getLeaseDurationMean()
+    {
+        return _leaseDuration.getMean();
+    }
+
+
+    @Override
+    public double getLeaseDuration99thPercentile()
+    {
+        return _leaseDuration.getPercentile( 0.99 );
+    }
+
+
+    @Override
+    public double getLeaseDurationMax()
+    {
+        return _leaseDuration.getMax();
+    }
+
+
+    @Override
+    public double getConnectionCreationTimeMean()
+    {
+        return _creationTime.getMean();
+    }
+
+
+    @Override
+    public double getConnectionCreationTime99thPercentile()
+    {
+        return _creationTime.getPercentile( 0.99 );
+    }
+
+
+    @Override
+    public double getConnectionCreationTimeMax()
+    {
+        return _creationTime.getMax();
+    }
+}
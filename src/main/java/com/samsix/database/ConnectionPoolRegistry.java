@@ -0,0 +1,170 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *    The pools in use, one for each database, user and SSL setting, so
+ *    ConnectionInfos with SharedPool on made separately for the same
+ *    database (every valueOf() makes a new one) share a pool and its
+ *    MaxConnections instead of each opening their own.
+ *    <p>
+ *    The first info to ask creates the pool, and its settings are the
+ *    ones the pool uses.  The pool is counted out to each info that
+ *    shares it and is only closed when the last one lets go.
+ *    ConnectionInfos with SharedPool off, the default, get a pool of
+ *    their own.
+ */
+final class ConnectionPoolRegistry
+{
+    private final static Logger logger = Logger.getLogger( ConnectionPoolRegistry.class );
+
+    private final static Map<List<Object>,SharedPool>    _pools = new HashMap<List<Object>,SharedPool>();
+    private final static ReentrantLock                   _lock  = new ReentrantLock();
+
+
+    private ConnectionPoolRegistry()
+    {
+        //    Do nothing.
+    }
+
+
+    /**
+     *    @param key the info's {@link #keyOf(ConnectionInfo)}, which it
+     *               must release the pool with
+     *    @return the pool the info shares with its equivalents,
+     *            creating it if need be
+     */
+    static ConnectionPool acquire( final ConnectionInfo    info,
+                                   final List<Object>      key )
+    {
+        if ( ! info.getPoolConfig().isSharedPool() )
+        {
+            return new ConnectionPool( info );
+        }
+
+        _lock.lock();
+        try
+        {
+            SharedPool    shared = _pools.get( key );
+
+            if ( shared != null && ! shared.pool.isClosing() )
+            {
+                shared.references++;
+
+                if ( info.getMaxConnections() != shared.maxConnections )
+                {
+                    logger.warn( "Sharing the pool for [" + info.toShortString()
+                                 + "] with MaxConnections " + shared.maxConnections
+                                 + ", not " + info.getMaxConnections() );
+                }
+
+                return shared.pool;
+            }
+
+            ConnectionPool    pool = new ConnectionPool( info );
+
+            _pools.put( key, new SharedPool( pool, info.getMaxConnections() ) );
+
+            return pool;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     *    Lets go of an info's share of the pool, under the key it was
+     *    acquired with.
+     *
+     *    @return true if nobody else shares it, so it should be closed
+     */
+    static boolean release( final List<Object>      key,
+                            final ConnectionPool    pool )
+    {
+        _lock.lock();
+        try
+        {
+            SharedPool    shared = _pools.get( key );
+
+            if ( shared == null || shared.pool != pool )
+            {
+                //
+                //    Not shared.
+                //
+                return true;
+            }
+
+            if ( --shared.references > 0 )
+            {
+                return false;
+            }
+
+            _pools.remove( key );
+
+            return true;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     *    The password is part of the key so that an info with the
+     *    wrong one can't borrow connections opened with the right one.
+     *    Whether the info is a replica can change after it has a pool,
+     *    so the key is worked out once, when the pool's acquired.
+     */
+    static List<Object> keyOf( final ConnectionInfo    info )
+    {
+        return Arrays.<Object>asList( info.getDriver(),
+                                      info.getUrl(),
+                                      info.getUserName(),
+                                      info.getPassword(),
+                                      info.isUseSSL(),
+                                      info.getDataSource(),
+                                      info.isReplica() );
+    }
+
+
+    // ================================
+    //
+    //    SharedPool class
+    //
+    // ================================
+
+    private static class SharedPool
+    {
+        final ConnectionPool    pool;
+        final int               maxConnections;
+        int                     references = 1;
+
+
+        SharedPool( final ConnectionPool    pool,
+                    final int               maxConnections )
+        {
+            this.pool           = pool;
+            this.maxConnections = maxConnections;
+        }
+    }
+}
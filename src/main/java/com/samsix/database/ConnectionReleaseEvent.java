@@ -0,0 +1,41 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+
+/**
+ *    JFR event for a connection going back to the pool.
+ */
+@Name( "com.samsix.database.ConnectionRelease" )
+@Label( "Connection Release" )
+@Category( { "Database", "Connection Pool" } )
+@Description( "A connection was returned to the pool" )
+class ConnectionReleaseEvent
+    extends
+        Event
+{
+    @Label( "Pool" )
+    String    pool;
+
+    @Label( "Connection Pack" )
+    int       packId;
+
+    @Label( "Lease Duration" )
+    @Timespan( Timespan.MILLISECONDS )
+    long      leaseDuration;
+}
@@ -60,19 +60,92 @@ public class Database
 
     private ConnectionPack           _connectionPack;
 
+    //
+    //    A pack from one of the info's replicas, for reads outside a
+    //    transaction, and until when reads stay on the primary after a
+    //    write so we see our own changes.
+    //
+    private ConnectionPack           _readConnectionPack;
+    private long                     _readYourWritesUntil   = 0;
+
     private int                      _transactionCount      = 0;
     private boolean                  _cacheConnection       = false;
+    private boolean                  _independentConnection = false;
+    private BorrowPriority           _priority              = BorrowPriority.NORMAL;
 
     private static boolean           _enableLogging         = true;
 
     private final ConnectionInfo     _info;
 
+    //
+    //    The pool partition our connections count against, or null
+    //    for the default one.
+    //
+    private final String             _partition;
+
     private volatile Statement       _currentSelectStatement;
 
 
     public Database( final ConnectionInfo    info )
     {
-        _info = info;
+        this( info, null );
+    }
+
+
+    /**
+     *    @param partition the pool partition to borrow connections
+     *                     from, e.g. "batch"
+     */
+    public Database( final ConnectionInfo    info,
+                     final String            partition )
+    {
+        _info      = info;
+        _partition = partition;
+    }
+
+
+    public String getPartition()
+    {
+        return _partition;
+    }
+
+
+    /**
+     *    Asks for a connection of our own even if the pool shares
+     *    connections between the borrows a thread makes (see
+     *    ShareThreadLeases), e.g. for work that must commit separately
+     *    from whatever the caller is doing.  Takes effect the next time
+     *    a connection is borrowed.
+     */
+    public void setIndependentConnection( final boolean    independent )
+    {
+        _independentConnection = independent;
+    }
+
+
+    public boolean isIndependentConnection()
+    {
+        return _independentConnection;
+    }
+
+
+    /**
+     *    How urgently we need connections when the pool is busy, e.g.
+     *    LOW for a report that should wait behind, and be turned away
+     *    before, the requests users are waiting on.  Takes effect the
+     *    next time a connection is borrowed.
+     *
+     *    @see ConnectionPoolConfig#getMaxWaiting(BorrowPriority)
+     */
+    public void setPriority( final BorrowPriority    priority )
+    {
+        _priority = priority;
+    }
+
+
+    public BorrowPriority getPriority()
+    {
+        return _priority;
     }
 
 
@@ -135,7 +208,13 @@ public class Database
         try
         {
             final Statement statement = createStatement( sql );
+            final StatementExecutionEvent event = new StatementExecutionEvent();
+
+            event.begin();
             boolean execute = statement.execute( sql );
+            markWrite();
+            event.executed( sql, getPackId() );
+            event.finish( execute ? -1 : statement.getUpdateCount() );
             statement.close();
 
             return execute;
@@ -174,7 +253,13 @@ public class Database
     {
         String    sql;
         sql = "select " + functionName + "('" + sequenceName + "') as id";
-        RecordSet recordSet = getRecordSet( sql );
+
+        //
+        //    Sequences are per-session and nextval writes, so this has
+        //    to go to the primary.
+        //
+        Resultant resultant = getResultSet( getConnectionPack(), sql, false );
+        RecordSet recordSet = new RecordSet( resultant.resultSet, resultant.statement, resultant.event );
         recordSet.next();
         int id = recordSet.getInt( "id" );
         recordSet.close();
@@ -244,7 +329,13 @@ public class Database
         try
         {
             final Statement statement = createStatement( sql );
+            final StatementExecutionEvent event = new StatementExecutionEvent();
+
+            event.begin();
             int executeUpdate = statement.executeUpdate( sql );
+            markWrite();
+            event.executed( sql, getPackId() );
+            event.finish( executeUpdate );
             statement.close();
 
             return executeUpdate;
@@ -267,7 +358,14 @@ public class Database
         try
         {
             final Statement statement = createStatement( sql );
-            statement.executeUpdate( sql, Statement.RETURN_GENERATED_KEYS );
+            final StatementExecutionEvent event = new StatementExecutionEvent();
+
+            event.begin();
+            int rows = statement.executeUpdate( sql, Statement.RETURN_GENERATED_KEYS );
+            markWrite();
+            event.executed( sql, getPackId() );
+            event.finish( rows );
+
             return new RecordSet(statement.getGeneratedKeys(), statement);
         }
         catch ( Throwable    ex )
@@ -292,9 +390,14 @@ public class Database
     {
         try
         {
-            Statement    statement = createStatement( sql );
+            Statement                  statement = createStatement( sql );
+            StatementExecutionEvent    event     = new StatementExecutionEvent();
 
-            statement.executeUpdate( sql, returnColumnNames );
+            event.begin();
+            int    rows = statement.executeUpdate( sql, returnColumnNames );
+            markWrite();
+            event.executed( sql, getPackId() );
+            event.finish( rows );
 
             ResultSet    keys = statement.getGeneratedKeys();
             if( keys != null && keys.next() )
@@ -359,11 +462,18 @@ public class Database
         throws
             DatabaseException
     {
-        Statement    statement = createStatement( sql );
+        Statement                  statement = createStatement( sql );
+        StatementExecutionEvent    event     = new StatementExecutionEvent();
 
         try
         {
+            event.begin();
+
             boolean    isResultSet = statement.execute( sql );
+            long       rows        = 0;
+
+            markWrite();
+            event.executed( sql, getPackId() );
 
             while( true )
             {
@@ -373,15 +483,20 @@ public class Database
                 }
                 else
                 {
-                    if( statement.getUpdateCount() == -1 )
+                    int    updateCount = statement.getUpdateCount();
+
+                    if( updateCount == -1 )
                     {
                         break;
                     }
+
+                    rows += updateCount;
                 }
 
                 isResultSet = statement.getMoreResults();
             }
 
+            event.finish( rows );
             statement.close();
         }
         catch( Throwable    ex )
@@ -422,7 +537,7 @@ public class Database
     {
         final Resultant resultant = getResultSet( sql, scrollable );
 
-        return new RecordSet( resultant.resultSet, resultant.statement );
+        return new RecordSet( resultant.resultSet, resultant.statement, resultant.event );
     }
 
 
@@ -437,9 +552,24 @@ public class Database
 
         try
         {
+            StatementExecutionEvent    event = new StatementExecutionEvent();
+
+            event.begin();
+            ResultSet    resultSet = statement.executeQuery();
+            event.end();
+
+            //
+            //    The driver builds the whole SQL, values and all, for
+            //    toString(), so only ask for it if the event's recorded.
+            //
+            if ( event.shouldCommit() )
+            {
+                event.executed( statement.toString(), SessionState.getPackId( statement ) );
+            }
+
             // don't embed a statement in the recordset here as the user is
             // passing in a statement and we expect them to handle closing it
-            return new RecordSet( statement.executeQuery(), null );
+            return new RecordSet( resultSet, null, event );
         }
         catch ( SQLException    ex )
         {
@@ -459,7 +589,19 @@ public class Database
 
         try
         {
-            return statement.executeUpdate();
+            StatementExecutionEvent    event = new StatementExecutionEvent();
+
+            event.begin();
+            int    rows = statement.executeUpdate();
+            event.end();
+
+            if ( event.shouldCommit() )
+            {
+                event.executed( statement.toString(), SessionState.getPackId( statement ) );
+            }
+            event.finish( rows );
+
+            return rows;
         }
         catch ( SQLException    ex )
         {
@@ -493,7 +635,14 @@ public class Database
         throws
             DatabaseException
     {
-        return getResultSet( sql, false ).resultSet;
+        Resultant    resultant = getResultSet( sql, false );
+
+        //
+        //    Nobody counts the rows of a raw ResultSet.
+        //
+        resultant.event.finish( -1 );
+
+        return resultant.resultSet;
     }
 
 
@@ -501,12 +650,15 @@ public class Database
     {
         final ResultSet resultSet;
         final Statement statement;
+        final StatementExecutionEvent event;
 
         public Resultant( final ResultSet resultSet,
-                          final Statement statement )
+                          final Statement statement,
+                          final StatementExecutionEvent event )
         {
             this.resultSet = resultSet;
             this.statement = statement;
+            this.event = event;
         }
     }
 
@@ -516,14 +668,24 @@ public class Database
         throws
             DatabaseException
     {
-        ConnectionPack    connectionPack = getConnectionPack();
+        return getResultSet( getReadConnectionPack(), sql, scrollable );
+    }
 
+
+    private Resultant getResultSet( final ConnectionPack    connectionPack,
+                                    final String            sql,
+                                    final boolean           scrollable )
+        throws
+            DatabaseException
+    {
         try
         {
-            Statement    statement = createStatement( connectionPack, sql, scrollable );
+            Statement                  statement = createStatement( connectionPack, sql, scrollable );
+            StatementExecutionEvent    event     = new StatementExecutionEvent();
 
             _currentSelectStatement = statement;
 
+            event.begin();
             statement.execute( sql );
 
             //
@@ -553,7 +715,9 @@ public class Database
                 throw new DatabaseException( "No result set found in query." );
             }
 
-            return new Resultant( resultSet, statement );
+            event.executed( sql, connectionPack.getId() );
+
+            return new Resultant( resultSet, statement, event );
         }
         catch ( PSQLException    psex )
         {
@@ -672,7 +836,10 @@ public class Database
             logger.info( "Retrieving connection from the connection pool." );
         }
 
-        _connectionPack = _info.getConnectionPack( 10000 );
+        _connectionPack = _info.getConnectionPack( _partition,
+                                                   _info.getPoolConfig().getBorrowTimeout(),
+                                                   _independentConnection,
+                                                   _priority );
 
         if ( _connectionPack == null )
         {
@@ -683,6 +850,80 @@ public class Database
     }
 
 
+    /**
+     *    Gets a connection for a read.  Outside a transaction, and
+     *    unless we wrote within the ReadYourWritesWindow, that's a
+     *    connection to one of the info's replicas that's caught up.
+     *    Otherwise, or if no replica can give us one in time, it's the
+     *    primary.
+     */
+    private ConnectionPack getReadConnectionPack()
+        throws
+            DatabaseException
+    {
+        if ( inTransaction()
+             || ! _info.hasReplicas()
+             || System.currentTimeMillis() < _readYourWritesUntil )
+        {
+            return getConnectionPack();
+        }
+
+        if ( _readConnectionPack != null )
+        {
+            return _readConnectionPack;
+        }
+
+        for ( ConnectionInfo    replica : _info.getReadReplicas() )
+        {
+            try
+            {
+                _readConnectionPack = replica.getConnectionPack( _partition,
+                                                                 replica.getPoolConfig().getBorrowTimeout(),
+                                                                 _independentConnection,
+                                                                 _priority );
+            }
+            catch ( DatabaseException    ex )
+            {
+                //
+                //    Its breaker is open, it timed out or it shed us.
+                //    Any other replica, or else the primary, will do.
+                //
+                logger.warn( "Couldn't get a connection to replica " + replica.getUrl() + ", trying elsewhere: " + ex.getMessage() );
+            }
+
+            if ( _readConnectionPack != null )
+            {
+                return _readConnectionPack;
+            }
+        }
+
+        return getConnectionPack();
+    }
+
+
+    /**
+     *    Keeps reads on the primary for the ReadYourWritesWindow.
+     */
+    private void markWrite()
+    {
+        long    window = _info.getPoolConfig().getReadYourWritesWindow();
+
+        if ( window > 0 && _info.hasReplicas() )
+        {
+            _readYourWritesUntil = System.currentTimeMillis() + window;
+        }
+    }
+
+
+    /**
+     *    The id of the pack we hold, for JFR events.
+     */
+    private int getPackId()
+    {
+        return _connectionPack == null ? 0 : _connectionPack.getId();
+    }
+
+
     public ConnectionInfo getConnectionInfo()
         throws
             DatabaseException
@@ -703,7 +944,18 @@ public class Database
      */
     public void release()
     {
-        if ( _connectionPack == null || inTransaction() || _cacheConnection )
+        if ( inTransaction() || _cacheConnection )
+        {
+            return;
+        }
+
+        if ( _readConnectionPack != null )
+        {
+            _readConnectionPack.getConnectionInfo().releaseConnectionPack( _readConnectionPack );
+            _readConnectionPack = null;
+        }
+
+        if ( _connectionPack == null )
         {
             return;
         }
@@ -724,7 +976,7 @@ public class Database
      */
     public boolean isActive()
     {
-        return _connectionPack != null;
+        return _connectionPack != null || _readConnectionPack != null;
     }
 
 
@@ -847,6 +1099,7 @@ public class Database
 
             ConnectionPack     connectionPack = getConnectionPack();
             connectionPack.getConnection().commit();
+            markWrite();
 
             //
             //    Turn auto-committing back on as that was the default
@@ -1077,7 +1330,13 @@ public class Database
 
 
     /**
-     * Gets an actual, raw java.sql.Connection instance for the current connection.
+     * Gets the java.sql.Connection for the current connection.  It is a
+     * stand-in for the driver's own connection that implements all the
+     * same interfaces (so it can be cast to e.g. PGConnection) and
+     * notes what is changed about the session, so the pool can put that
+     * back when the connection is returned.  unwrap() to an interface
+     * gives the stand-in; unwrapping the driver's own class means the
+     * whole session is reset on return.
      * @return
      * @throws DatabaseException
      */
@@ -1131,7 +1390,7 @@ public class Database
     {
         final Resultant resultant = getParamResultSet( sql, scrollable, parameters );
 
-        return new RecordSet( resultant.resultSet, resultant.statement );
+        return new RecordSet( resultant.resultSet, resultant.statement, resultant.event );
     }
 
 
@@ -1159,7 +1418,7 @@ public class Database
         throws
             DatabaseException
     {
-        ConnectionPack    connectionPack = getConnectionPack();
+        ConnectionPack    connectionPack = getReadConnectionPack();
 
         String displaySql = sql;
 
@@ -1180,13 +1439,17 @@ public class Database
             }
 
 
+            StatementExecutionEvent event = new StatementExecutionEvent();
+
+            event.begin();
             ResultSet resultSet = statement.executeQuery();
             if ( resultSet == null )
             {
                 throw new DatabaseException( "No result set found in query." );
             }
+            event.executed( sql, connectionPack.getId() );
 
-            return new Resultant( resultSet, statement );
+            return new Resultant( resultSet, statement, event );
         }
         catch ( PSQLException    psex )
         {
@@ -1269,7 +1532,13 @@ public class Database
                sqlLog.info( "[" + connectionPack.getId() + "]\n" + displaySql + ";" );
             }
 
+            final StatementExecutionEvent event = new StatementExecutionEvent();
+
+            event.begin();
             int executeUpdate = statement.executeUpdate();
+            markWrite();
+            event.executed( sql, connectionPack.getId() );
+            event.finish( executeUpdate );
 
             statement.close();
 
@@ -1333,7 +1602,9 @@ public class Database
     {
         return new ToStringBuilder( this )
                .append( "info", _info )
+               .append( "partition", _partition )
                .append( "connectionPack", _connectionPack )
+               .append( "readConnectionPack", _readConnectionPack )
                .toString();
     }
 }
@@ -0,0 +1,131 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *    A lock-free histogram of durations in power-of-two microsecond
+ *    buckets.
+ *    <p>
+ *    Recording is a few LongAdder increments, so it can sit on the
+ *    borrow path.  Percentiles are only as precise as the bucket they
+ *    fall in, which is plenty for telling 1 ms from 100 ms.
+ */
+class LatencyHistogram
+{
+    //
+    //    Bucket 0 holds 0 us, bucket n holds [2^(n-1), 2^n) us.
+    //    2^40 us is about 12 days.
+    //
+    private final static int    BUCKETS = 41;
+
+    private final LongAdder[]    _buckets = new LongAdder[ BUCKETS ];
+    private final LongAdder      _count   = new LongAdder();
+    private final LongAdder      _sum     = new LongAdder();
+    private final AtomicLong     _max     = new AtomicLong();
+
+
+    LatencyHistogram()
+    {
+        for ( int ii = 0; ii < BUCKETS; ii++ )
+        {
+            _buckets[ ii ] = new LongAdder();
+        }
+    }
+
+
+    void record( final long    micros )
+    {
+        long    value  = Math.max( 0, micros );
+        int     bucket = Math.min( BUCKETS - 1, 64 - Long.numberOfLeadingZeros( value ) );
+
+        _buckets[ bucket ].increment();
+        _count.increment();
+        _sum.add( value );
+
+        long    max;
+        while ( value > ( max = _max.get() )
+                && ! _max.compareAndSet( max, value ) )
+        {
+            //    Try again.
+        }
+    }
+
+
+    long getCount()
+    {
+        return _count.sum();
+    }
+
+
+    /**
+     *    @return the total of everything recorded, in microseconds
+     */
+    long getSum()
+    {
+        return _sum.sum();
+    }
+
+
+    /**
+     *    @return the mean in milliseconds
+     */
+    double getMean()
+    {
+        long    count = _count.sum();
+
+        return count == 0 ? 0 : _sum.sum() / 1000.0 / count;
+    }
+
+
+    /**
+     *    @return the maximum in milliseconds
+     */
+    double getMax()
+    {
+        return _max.get() / 1000.0;
+    }
+
+
+    /**
+     *    @param quantile between 0 and 1, e.g. 0.99
+     *    @return the upper bound, in milliseconds, of the bucket the
+     *            quantile falls in
+     */
+    double getPercentile( final double    quantile )
+    {
+        long    count  = _count.sum();
+        long    target = (long) Math.ceil( count * quantile );
+        long    seen   = 0;
+
+        if ( count == 0 )
+        {
+            return 0;
+        }
+
+        for ( int ii = 0; ii < BUCKETS; ii++ )
+        {
+            seen += _buckets[ ii ].sum();
+
+            if ( seen >= target )
+            {
+                long    upper = ii == 0 ? 0 : ( 1L << ii ) - 1;
+
+                return Math.min( upper, _max.get() ) / 1000.0;
+            }
+        }
+
+        return getMax();
+    }
+}
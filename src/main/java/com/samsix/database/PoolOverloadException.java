@@ -0,0 +1,39 @@
+/**
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+
+/**
+ *    Thrown instead of waiting for a connection when as many borrowers
+ *    of the same priority are already waiting as the pool allows, so
+ *    callers can shed the work rather than time out.
+ */
+@SuppressWarnings("serial")
+public final class PoolOverloadException
+    extends
+        DatabaseException
+{
+    public PoolOverloadException()
+    {
+        //    Do nothing.
+    }
+
+
+    public DatabaseException tooManyWaiting( ConnectionInfo    info,
+                                             BorrowPriority    priority,
+                                             int               limit )
+    {
+        init( "The connection pool for [" + info.toShortString() + "] is overloaded: "
+              + limit + " " + priority + " priority borrowers are already waiting." );
+
+        return this;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *    A named share of a pool's connections, e.g. for batch jobs or
+ *    interactive users.  Counts how many connections it has leased.
+ */
+class PoolPartition
+{
+    private final String           _name;
+    private final int              _min;
+    private final int              _max;
+    private final AtomicInteger    _leased = new AtomicInteger();
+
+
+    PoolPartition( final String    name,
+                   final int       min,
+                   final int       max )
+    {
+        _name = name;
+        _min  = min;
+        _max  = max;
+    }
+
+
+    String getName()
+    {
+        return _name;
+    }
+
+
+    /**
+     *    @return true if a lease fits under the maximum, in which case
+     *            it has been counted
+     */
+    boolean acquire()
+    {
+        if ( _leased.incrementAndGet() <= _max || _max <= 0 )
+        {
+            return true;
+        }
+
+        _leased.decrementAndGet();
+
+        return false;
+    }
+
+
+    void release()
+    {
+        _leased.decrementAndGet();
+    }
+
+
+    int getLeased()
+    {
+        return _leased.get();
+    }
+
+
+    /**
+     *    @return how many connections are held back for this partition
+     *            because it's below its minimum
+     */
+    int getUnusedReserve()
+    {
+        return Math.max( 0, _min - _leased.get() );
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return _name + "[" + _leased.get() + "/" + _min + ".." + _max + "]";
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ *    JFR event for adaptive sizing resizing a pool, or deciding not to
+ *    grow it.
+ */
+@Name( "com.samsix.database.PoolResize" )
+@Label( "Pool Resize" )
+@Category( { "Database", "Connection Pool" } )
+@Description( "Adaptive sizing changed a pool's size or held it" )
+@StackTrace( false )
+class PoolResizeEvent
+    extends
+        Event
+{
+    @Label( "Pool" )
+    String    pool;
+
+    @Label( "From" )
+    int       from;
+
+    @Label( "To" )
+    int       to;
+
+    @Label( "Reason" )
+    String    reason;
+}
@@ -10,7 +10,6 @@
 package com.samsix.database;
 
 
-import java.lang.ref.WeakReference;
 import java.sql.Array;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -38,16 +37,36 @@ public class RecordSet
 
     private final ResultSet _resultSet;
 
-    private final WeakReference<Statement> _statement;
+    //
+    //    Held on to so it can be closed with the RecordSet; it may be
+    //    a pack's stand-in that nothing else refers to.
+    //
+    private final Statement _statement;
+
+    //
+    //    Finished when the RecordSet is closed, once we know how many
+    //    rows were read.
+    //
+    private StatementExecutionEvent    _event;
+    private long                       _rows;
 
 
     /**
      *    Create a new RecordSet object backed by the provided ResultSet.
      */
     public RecordSet( final ResultSet resultSet, final Statement statement )
+    {
+        this( resultSet, statement, null );
+    }
+
+
+    RecordSet( final ResultSet                  resultSet,
+               final Statement                  statement,
+               final StatementExecutionEvent    event )
     {
         _resultSet = resultSet;
-        _statement = ( statement == null ) ? null : new WeakReference<Statement>( statement );
+        _statement = statement;
+        _event     = event;
     }
 
 
@@ -64,7 +83,13 @@ public class RecordSet
     {
         try
         {
-            return _resultSet.next();
+            if ( _resultSet.next() )
+            {
+                _rows++;
+                return true;
+            }
+
+            return false;
         }
         catch ( Throwable    ex )
         {
@@ -301,18 +326,19 @@ public class RecordSet
         throws
             DatabaseException
     {
+        if ( _event != null )
+        {
+            _event.finish( _rows );
+            _event = null;
+        }
+
         try
         {
             _resultSet.close();
 
             if( _statement != null )
             {
-                Statement statement = _statement.get();
-
-                if( statement != null )
-                {
-                    statement.close();
-                }
+                _statement.close();
             }
         }
         catch ( Throwable    ex )
@@ -0,0 +1,939 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *    Remembers what a borrower changed about a connection's session so
+ *    the pool can put back only that before the next borrower gets it.
+ *    <p>
+ *    Borrowers see the connection through a proxy implementing every
+ *    public interface the driver's connection does, so it can still be
+ *    cast to e.g. PGConnection; statements, their result sets and the
+ *    connection's metadata are proxied the same way, so none of them
+ *    leads back to the driver's own connection.  The first time one of
+ *    the JDBC attributes (auto-commit, read-only, isolation, catalog,
+ *    holdability) is set, its original value is saved; it's restored on
+ *    return only if it still differs.  On Postgres the SQL run through
+ *    the connection is also watched for statements that leave state
+ *    behind in the session (SET, temp tables, LISTEN, PREPARE, advisory
+ *    locks, cursors WITH HOLD), and just those are cleared with RESET
+ *    ALL, DISCARD TEMP and so on rather than DISCARD ALL.  A connection
+ *    returned untouched costs no round trips.
+ *    <p>
+ *    A borrower that unwraps the driver's own connection or statement
+ *    can change anything without it being seen, so then everything is
+ *    put back.
+ */
+class SessionState
+    implements
+        InvocationHandler
+{
+    private final static Logger logger = Logger.getLogger( SessionState.class );
+
+    //
+    //    SQL that leaves something behind in a Postgres session, and
+    //    the command that clears it.  SET LOCAL, SET TRANSACTION and
+    //    SET CONSTRAINTS end with the transaction so are left alone.
+    //
+    private final static int    SQL_SETTINGS      = 1;
+    private final static int    SQL_AUTHORIZATION = 2;
+    private final static int    SQL_TEMP          = 4;
+    private final static int    SQL_LISTEN        = 8;
+    private final static int    SQL_PREPARE       = 16;
+    private final static int    SQL_CURSORS       = 32;
+    private final static int    SQL_ADVISORY      = 64;
+    private final static int    SQL_ALL           = 127;
+
+    //
+    //    The current value of an attribute a borrower may have changed
+    //    behind our back.
+    //
+    private final static Object    UNKNOWN = new Object();
+
+    //
+    //    The public interfaces each driver class implements, including
+    //    those its interfaces extend.
+    //
+    private final static ClassValue<Class<?>[]>    _interfaces = new ClassValue<Class<?>[]>()
+    {
+        @Override
+        protected Class<?>[] computeValue( final Class<?>    type )
+        {
+            Set<Class<?>>    interfaces = new LinkedHashSet<Class<?>>();
+
+            for ( Class<?>    c = type; c != null; c = c.getSuperclass() )
+            {
+                addInterfaces( c.getInterfaces(), interfaces );
+            }
+
+            return interfaces.toArray( new Class<?>[ interfaces.size() ] );
+        }
+    };
+
+    //
+    //    What SQL has to start with, after any whitespace, for one of
+    //    the patterns below that match at the start to match.
+    //
+    private final static String[]    LEADING_KEYWORDS = { "SET", "LISTEN", "PREPARE", "DECLARE" };
+
+    private final static Pattern    SET_PATTERN
+        = Pattern.compile( "^\\s*SET\\s+(?!LOCAL\\b|TRANSACTION\\b|CONSTRAINTS\\b)",
+                           Pattern.CASE_INSENSITIVE );
+    private final static Pattern    AUTHORIZATION_PATTERN
+        = Pattern.compile( "^\\s*SET\\s+(SESSION\\s+)?SESSION\\s+AUTHORIZATION\\b",
+                           Pattern.CASE_INSENSITIVE );
+    private final static Pattern    SET_CONFIG_PATTERN
+        = Pattern.compile( "\\bset_config\\s*\\(", Pattern.CASE_INSENSITIVE );
+    private final static Pattern    TEMP_PATTERN
+        = Pattern.compile( "\\b(CREATE\\s+(OR\\s+REPLACE\\s+)?(GLOBAL\\s+|LOCAL\\s+)?|INTO\\s+)TEMP(ORARY)?\\b",
+                           Pattern.CASE_INSENSITIVE );
+    private final static Pattern    LISTEN_PATTERN
+        = Pattern.compile( "^\\s*LISTEN\\b", Pattern.CASE_INSENSITIVE );
+    private final static Pattern    PREPARE_PATTERN
+        = Pattern.compile( "^\\s*PREPARE\\b", Pattern.CASE_INSENSITIVE );
+    private final static Pattern    CURSOR_PATTERN
+        = Pattern.compile( "^\\s*DECLARE\\b.*\\bWITH\\s+HOLD\\b",
+                           Pattern.CASE_INSENSITIVE | Pattern.DOTALL );
+    private final static Pattern    ADVISORY_PATTERN
+        = Pattern.compile( "\\bpg_(try_)?advisory_lock(_shared)?\\s*\\(",
+                           Pattern.CASE_INSENSITIVE );
+
+    private final Connection    _connection;
+    private final boolean       _postgres;
+    private final Connection    _proxy;
+
+    //
+    //    Told when a borrower's call finds the connection lost.
+    //
+    private final ConnectionPack    _pack;
+
+    private final Object[]      _original = new Object[ Attribute.values().length ];
+    private final Object[]      _current  = new Object[ Attribute.values().length ];
+    private int                 _changedAttributes;
+    private int                 _sqlState;
+
+
+    SessionState( final Connection        connection,
+                  final boolean           postgres,
+                  final ConnectionPack    pack )
+    {
+        _connection = connection;
+        _postgres   = postgres;
+        _pack       = pack;
+        _proxy      = (Connection) proxy( connection, this );
+    }
+
+
+    /**
+     *    @return a proxy for the driver's object implementing every
+     *            public interface it does
+     */
+    static Object proxy( final Object               target,
+                         final InvocationHandler    handler )
+    {
+        ClassLoader    loader = target.getClass().getClassLoader();
+
+        if ( loader == null )
+        {
+            loader = SessionState.class.getClassLoader();
+        }
+
+        return Proxy.newProxyInstance( loader, _interfaces.get( target.getClass() ), handler );
+    }
+
+
+    /**
+     *    @return the id of the pack a statement was made on, or 0 if it
+     *            didn't come from the pool
+     */
+    static int getPackId( final Statement    statement )
+        throws
+            SQLException
+    {
+        Connection    connection = statement.getConnection();
+
+        if ( connection != null && Proxy.isProxyClass( connection.getClass() ) )
+        {
+            InvocationHandler    handler = Proxy.getInvocationHandler( connection );
+
+            if ( handler instanceof SessionState )
+            {
+                return ( (SessionState) handler )._pack.getId();
+            }
+        }
+
+        return 0;
+    }
+
+
+    private static void addInterfaces( final Class<?>[]       types,
+                                       final Set<Class<?>>    interfaces )
+    {
+        for ( Class<?>    type : types )
+        {
+            if ( Modifier.isPublic( type.getModifiers() ) )
+            {
+                interfaces.add( type );
+            }
+
+            addInterfaces( type.getInterfaces(), interfaces );
+        }
+    }
+
+
+    /**
+     *    @return the driver's own connection, for the pool's use
+     */
+    Connection getDriverConnection()
+    {
+        return _connection;
+    }
+
+
+    /**
+     *    @return the connection to give borrowers
+     */
+    Connection getConnection()
+    {
+        return _proxy;
+    }
+
+
+    /**
+     *    @return true if reset() has anything to do
+     */
+    boolean isDirty()
+    {
+        if ( _sqlState != 0 )
+        {
+            return true;
+        }
+
+        for ( Attribute    attribute : Attribute.values() )
+        {
+            if ( isChanged( attribute ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     *    Notes SQL about to be run on the connection.
+     */
+    void noteSql( final String    sql )
+    {
+        if ( ! _postgres || sql == null || ! mayLeaveState( sql ) )
+        {
+            return;
+        }
+
+        if ( SET_PATTERN.matcher( sql ).find() )
+        {
+            _sqlState |= AUTHORIZATION_PATTERN.matcher( sql ).find() ? SQL_AUTHORIZATION
+                                                                     : SQL_SETTINGS;
+        }
+        if ( SET_CONFIG_PATTERN.matcher( sql ).find() )
+        {
+            _sqlState |= SQL_SETTINGS;
+        }
+        if ( TEMP_PATTERN.matcher( sql ).find() )
+        {
+            _sqlState |= SQL_TEMP;
+        }
+        if ( LISTEN_PATTERN.matcher( sql ).find() )
+        {
+            _sqlState |= SQL_LISTEN;
+        }
+        if ( PREPARE_PATTERN.matcher( sql ).find() )
+        {
+            _sqlState |= SQL_PREPARE;
+        }
+        if ( CURSOR_PATTERN.matcher( sql ).find() )
+        {
+            _sqlState |= SQL_CURSORS;
+        }
+        if ( ADVISORY_PATTERN.matcher( sql ).find() )
+        {
+            _sqlState |= SQL_ADVISORY;
+        }
+    }
+
+
+    /**
+     *    Looks, without any regex, for what the patterns need to match:
+     *    a leading keyword, or TEMP, _config or _advisory anywhere.
+     *    Most SQL has none of them, so is only scanned once.
+     *
+     *    @return false if noteSql() can skip the patterns
+     */
+    private static boolean mayLeaveState( final String    sql )
+    {
+        int    length = sql.length();
+        int    start  = 0;
+
+        while ( start < length && Character.isWhitespace( sql.charAt( start ) ) )
+        {
+            start++;
+        }
+
+        for ( String    keyword : LEADING_KEYWORDS )
+        {
+            if ( sql.regionMatches( true, start, keyword, 0, keyword.length() ) )
+            {
+                return true;
+            }
+        }
+
+        for ( int    ii = start; ii < length; ii++ )
+        {
+            char    c = sql.charAt( ii );
+
+            if ( ( c == 't' || c == 'T' ) && sql.regionMatches( true, ii, "temp", 0, 4 ) )
+            {
+                return true;
+            }
+
+            if ( c == '_'
+                 && ( sql.regionMatches( true, ii + 1, "config", 0, 6 )
+                      || sql.regionMatches( true, ii + 1, "advisory", 0, 8 ) ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     *    Notes that the borrower has the driver's own connection, or a
+     *    statement whose getConnection() gives it, so anything about
+     *    the session may change unseen.
+     */
+    void untracked()
+        throws
+            SQLException
+    {
+        for ( Attribute    attribute : Attribute.values() )
+        {
+            changing( attribute, UNKNOWN );
+        }
+
+        if ( _postgres )
+        {
+            _sqlState = SQL_ALL;
+        }
+    }
+
+
+    /**
+     *    Puts back whatever the borrower changed.  Work left in an open
+     *    transaction is rolled back first.
+     */
+    void reset()
+        throws
+            SQLException
+    {
+        if ( ! isDirty() )
+        {
+            return;
+        }
+
+        if ( logger.isDebugEnabled() )
+        {
+            logger.debug( "Resetting session " + this );
+        }
+
+        if ( isChanged( Attribute.AUTO_COMMIT )
+             && ! _connection.getAutoCommit() )
+        {
+            _connection.rollback();
+        }
+
+        for ( Attribute    attribute : Attribute.values() )
+        {
+            if ( isChanged( attribute ) )
+            {
+                attribute.set( _connection, _original[ attribute.ordinal() ] );
+            }
+        }
+
+        _changedAttributes = 0;
+
+        int    sqlState = _sqlState;
+
+        if ( _sqlState != 0 )
+        {
+            Statement    statement = _connection.createStatement();
+
+            try
+            {
+                statement.execute( getResetSql() );
+            }
+            finally
+            {
+                statement.close();
+            }
+
+            _sqlState = 0;
+        }
+
+        if ( ( sqlState & SQL_PREPARE ) != 0 )
+        {
+            //
+            //    DEALLOCATE ALL took the server-side plans of the
+            //    cached statements with it.
+            //
+            _pack.clearStatementCache();
+        }
+    }
+
+
+    private String getResetSql()
+    {
+        StringBuilder    sql = new StringBuilder();
+
+        //
+        //    Authorization first so RESET ALL then resets the role.
+        //
+        if ( ( _sqlState & SQL_AUTHORIZATION ) != 0 )
+        {
+            sql.append( "SET SESSION AUTHORIZATION DEFAULT;" );
+        }
+        if ( ( _sqlState & ( SQL_SETTINGS | SQL_AUTHORIZATION ) ) != 0 )
+        {
+            sql.append( "RESET ALL;" );
+        }
+        if ( ( _sqlState & SQL_TEMP ) != 0 )
+        {
+            sql.append( "DISCARD TEMP;" );
+        }
+        if ( ( _sqlState & SQL_LISTEN ) != 0 )
+        {
+            sql.append( "UNLISTEN *;" );
+        }
+        if ( ( _sqlState & SQL_PREPARE ) != 0 )
+        {
+            sql.append( "DEALLOCATE ALL;" );
+        }
+        if ( ( _sqlState & SQL_CURSORS ) != 0 )
+        {
+            sql.append( "CLOSE ALL;" );
+        }
+        if ( ( _sqlState & SQL_ADVISORY ) != 0 )
+        {
+            sql.append( "SELECT pg_advisory_unlock_all();" );
+        }
+
+        return sql.toString();
+    }
+
+
+    private boolean isChanged( final Attribute    attribute )
+    {
+        int    bit = 1 << attribute.ordinal();
+
+        if ( ( _changedAttributes & bit ) == 0 )
+        {
+            return false;
+        }
+
+        Object    original = _original[ attribute.ordinal() ];
+        Object    current  = _current[ attribute.ordinal() ];
+
+        return original == null ? current != null : ! original.equals( current );
+    }
+
+
+    /**
+     *    Saves the original value the first time an attribute is set
+     *    during a lease.
+     */
+    private void changing( final Attribute    attribute,
+                           final Object       value )
+        throws
+            SQLException
+    {
+        int    bit = 1 << attribute.ordinal();
+
+        if ( ( _changedAttributes & bit ) == 0 )
+        {
+            _original[ attribute.ordinal() ] = attribute.get( _connection );
+            _changedAttributes |= bit;
+        }
+
+        _current[ attribute.ordinal() ] = value;
+    }
+
+
+    // ================================
+    //
+    //    InvocationHandler interface
+    //
+    // ================================
+
+    @Override
+    public Object invoke( final Object      proxy,
+                          final Method      method,
+                          final Object[]    args )
+        throws
+            Throwable
+    {
+        String    name = method.getName();
+
+        if ( "equals".equals( name ) && args != null && args.length == 1 )
+        {
+            return proxy == args[0];
+        }
+        if ( "hashCode".equals( name ) && args == null )
+        {
+            return System.identityHashCode( proxy );
+        }
+
+        if ( "unwrap".equals( name ) && args != null && args.length == 1 )
+        {
+            if ( ( (Class<?>) args[0] ).isInstance( proxy ) )
+            {
+                return proxy;
+            }
+
+            untracked();
+        }
+
+        if ( args != null && args.length > 0 )
+        {
+            //
+            //    Only the attribute setters need looking up.
+            //
+            Attribute    attribute = args.length == 1 && name.startsWith( "set" )
+                                     ? Attribute.forSetter( name )
+                                     : null;
+
+            if ( attribute != null )
+            {
+                changing( attribute, args[0] );
+            }
+            else if ( args[0] instanceof String
+                      && ( name.startsWith( "prepare" ) || "nativeSQL".equals( name ) ) )
+            {
+                noteSql( (String) args[0] );
+            }
+        }
+
+        Object    result = call( _connection, method, args );
+
+        if ( result instanceof Statement )
+        {
+            //
+            //    Statement, PreparedStatement or CallableStatement.
+            //
+            return proxy( result, new StatementHandler( (Statement) result ) );
+        }
+        if ( result instanceof DatabaseMetaData )
+        {
+            return proxy( result, new ResultHandler( result, null ) );
+        }
+
+        return result;
+    }
+
+
+    /**
+     *    @return the result of a call on a statement, or on the
+     *            metadata, with any result set proxied so it leads
+     *            back to <code>statement</code> and this connection
+     *            rather than the driver's own
+     */
+    Object track( final Object       result,
+                  final Statement    statement )
+    {
+        if ( result instanceof ResultSet )
+        {
+            return proxy( result, new ResultHandler( result, statement ) );
+        }
+
+        return result;
+    }
+
+
+    /**
+     *    Calls through to the real object for a borrower, letting the
+     *    pack know if it turns out the connection has been lost.
+     */
+    Object call( final Object      target,
+                 final Method      method,
+                 final Object[]    args )
+        throws
+            Throwable
+    {
+        try
+        {
+            return delegate( target, method, args );
+        }
+        catch ( SQLException    ex )
+        {
+            _pack.checkFailure( ex );
+            throw ex;
+        }
+    }
+
+
+    /**
+     *    Calls through to the real object, throwing what it threw
+     *    rather than an InvocationTargetException.
+     */
+    static Object delegate( final Object      target,
+                                    final Method      method,
+                                    final Object[]    args )
+        throws
+            Throwable
+    {
+        try
+        {
+            return method.invoke( target, args );
+        }
+        catch ( InvocationTargetException    ex )
+        {
+            throw ex.getCause();
+        }
+    }
+
+
+    // ================================
+    //
+    //    Object interface
+    //
+    // ================================
+
+    @Override
+    public String toString()
+    {
+        return "SessionState[attributes=" + Integer.toBinaryString( _changedAttributes )
+            + ",sql=" + Integer.toBinaryString( _sqlState ) + "]";
+    }
+
+
+    // ================================
+    //
+    //    StatementHandler class
+    //
+    // ================================
+
+    /**
+     *    Watches the SQL run on statements made through the proxy, and
+     *    whether it finds the connection lost, and hands back the proxy
+     *    as their connection.
+     */
+    private class StatementHandler
+        implements
+            InvocationHandler
+    {
+        private final Statement    _statement;
+
+
+        StatementHandler( final Statement    statement )
+        {
+            _statement = statement;
+        }
+
+
+        @Override
+        public Object invoke( final Object      proxy,
+                              final Method      method,
+                              final Object[]    args )
+            throws
+                Throwable
+        {
+            String    name = method.getName();
+
+            if ( "getConnection".equals( name ) )
+            {
+                return _proxy;
+            }
+            if ( "equals".equals( name ) && args != null && args.length == 1 )
+            {
+                return proxy == args[0];
+            }
+            if ( "hashCode".equals( name ) && args == null )
+            {
+                return System.identityHashCode( proxy );
+            }
+            if ( "unwrap".equals( name ) && args != null && args.length == 1 )
+            {
+                if ( ( (Class<?>) args[0] ).isInstance( proxy ) )
+                {
+                    return proxy;
+                }
+
+                untracked();
+            }
+
+            if ( args != null
+                 && args.length > 0
+                 && args[0] instanceof String
+                 && ( name.startsWith( "execute" ) || "addBatch".equals( name ) ) )
+            {
+                noteSql( (String) args[0] );
+            }
+
+            return track( call( _statement, method, args ), (Statement) proxy );
+        }
+    }
+
+
+    // ================================
+    //
+    //    ResultHandler class
+    //
+    // ================================
+
+    /**
+     *    Stands in for a result set, or the connection's metadata, so
+     *    getStatement() and getConnection() hand back the proxies.  A
+     *    result set from the metadata has no statement.
+     */
+    private class ResultHandler
+        implements
+            InvocationHandler
+    {
+        private final Object       _target;
+        private final Statement    _statement;
+
+
+        ResultHandler( final Object       target,
+                       final Statement    statement )
+        {
+            _target    = target;
+            _statement = statement;
+        }
+
+
+        @Override
+        public Object invoke( final Object      proxy,
+                              final Method      method,
+                              final Object[]    args )
+            throws
+                Throwable
+        {
+            String    name = method.getName();
+
+            if ( args == null )
+            {
+                if ( "getStatement".equals( name ) )
+                {
+                    return _statement;
+                }
+                if ( "getConnection".equals( name ) )
+                {
+                    return _proxy;
+                }
+                if ( "hashCode".equals( name ) )
+                {
+                    return System.identityHashCode( proxy );
+                }
+            }
+            else if ( args.length == 1 )
+            {
+                if ( "equals".equals( name ) )
+                {
+                    return proxy == args[0];
+                }
+                if ( "unwrap".equals( name ) )
+                {
+                    if ( ( (Class<?>) args[0] ).isInstance( proxy ) )
+                    {
+                        return proxy;
+                    }
+
+                    untracked();
+                }
+            }
+
+            return track( call( _target, method, args ), null );
+        }
+    }
+
+
+    // ================================
+    //
+    //    Attribute enum
+    //
+    // ================================
+
+    private enum Attribute
+    {
+        AUTO_COMMIT
+        {
+            @Override
+            Object get( final Connection    connection )
+                throws
+                    SQLException
+            {
+                return connection.getAutoCommit();
+            }
+
+
+            @Override
+            void set( final Connection    connection,
+                      final Object        value )
+                throws
+                    SQLException
+            {
+                connection.setAutoCommit( (Boolean) value );
+            }
+        },
+
+        READ_ONLY
+        {
+            @Override
+            Object get( final Connection    connection )
+                throws
+                    SQLException
+            {
+                return connection.isReadOnly();
+            }
+
+
+            @Override
+            void set( final Connection    connection,
+                      final Object        value )
+                throws
+                    SQLException
+            {
+                connection.setReadOnly( (Boolean) value );
+            }
+        },
+
+        TRANSACTION_ISOLATION
+        {
+            @Override
+            Object get( final Connection    connection )
+                throws
+                    SQLException
+            {
+                return connection.getTransactionIsolation();
+            }
+
+
+            @Override
+            void set( final Connection    connection,
+                      final Object        value )
+                throws
+                    SQLException
+            {
+                connection.setTransactionIsolation( (Integer) value );
+            }
+        },
+
+        CATALOG
+        {
+            @Override
+            Object get( final Connection    connection )
+                throws
+                    SQLException
+            {
+                return connection.getCatalog();
+            }
+
+
+            @Override
+            void set( final Connection    connection,
+                      final Object        value )
+                throws
+                    SQLException
+            {
+                connection.setCatalog( (String) value );
+            }
+        },
+
+        HOLDABILITY
+        {
+            @Override
+            Object get( final Connection    connection )
+                throws
+                    SQLException
+            {
+                return connection.getHoldability();
+            }
+
+
+            @Override
+            void set( final Connection    connection,
+                      final Object        value )
+                throws
+                    SQLException
+            {
+                connection.setHoldability( (Integer) value );
+            }
+        };
+
+
+        /**
+         *    @return the attribute the Connection method of that name
+         *            sets, or null if it isn't one we track
+         */
+        static Attribute forSetter( final String    name )
+        {
+            switch ( name )
+            {
+            case "setAutoCommit":
+                return AUTO_COMMIT;
+
+            case "setReadOnly":
+                return READ_ONLY;
+
+            case "setTransactionIsolation":
+                return TRANSACTION_ISOLATION;
+
+            case "setCatalog":
+                return CATALOG;
+
+            case "setHoldability":
+                return HOLDABILITY;
+
+            default:
+                return null;
+            }
+        }
+
+
+        abstract Object get( Connection    connection )
+            throws
+                SQLException;
+
+
+        abstract void set( Connection    connection,
+                           Object        value )
+            throws
+                SQLException;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ *    The PreparedStatements kept open on one connection, least recently
+ *    used first, so repeated SQL skips the parse and reaches the
+ *    driver's server-side prepare threshold.
+ *    <p>
+ *    A statement is checked out while somebody uses it; the same SQL
+ *    wanted again meanwhile (e.g. from inside a RecordSetHandler) gets
+ *    a statement of its own that isn't cached.  Only statements that
+ *    are checked in can be evicted.  Nothing here closes a statement;
+ *    the ones to close are handed back to the caller so that happens
+ *    outside the lock.
+ */
+class StatementCache
+{
+    private final int                                    _size;
+    private final LinkedHashMap<String,CachedStatement>  _statements;
+    private final ReentrantLock                          _lock = new ReentrantLock();
+
+
+    StatementCache( final int    size )
+    {
+        _size       = size;
+        _statements = new LinkedHashMap<String,CachedStatement>( 16, 0.75f, true );
+    }
+
+
+    /**
+     *    @return the cached statement for the key, now checked out, or
+     *            null if there isn't one free
+     */
+    PreparedStatement checkOut( final String    key )
+    {
+        _lock.lock();
+        try
+        {
+            CachedStatement    cached = _statements.get( key );
+
+            if ( cached == null || cached.inUse )
+            {
+                return null;
+            }
+
+            cached.inUse = true;
+
+            return cached.statement;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     *    Caches a statement just prepared, checked out, unless the key
+     *    is already cached.
+     *
+     *    @param evicted gets the statements pushed out, to be closed
+     *    @return false if it wasn't cached
+     */
+    boolean add( final String                     key,
+                 final PreparedStatement          statement,
+                 final List<PreparedStatement>    evicted )
+    {
+        _lock.lock();
+        try
+        {
+            if ( _statements.containsKey( key ) )
+            {
+                return false;
+            }
+
+            CachedStatement    cached = new CachedStatement( statement );
+
+            cached.inUse = true;
+            _statements.put( key, cached );
+
+            Iterator<CachedStatement>    iter = _statements.values().iterator();
+
+            while ( _statements.size() > _size && iter.hasNext() )
+            {
+                CachedStatement    oldest = iter.next();
+
+                if ( ! oldest.inUse )
+                {
+                    iter.remove();
+                    evicted.add( oldest.statement );
+                }
+            }
+
+            return true;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     *    @return false if the statement is no longer cached and should
+     *            be closed
+     */
+    boolean checkIn( final String               key,
+                     final PreparedStatement    statement )
+    {
+        _lock.lock();
+        try
+        {
+            CachedStatement    cached = _statements.get( key );
+
+            if ( cached == null || cached.statement != statement )
+            {
+                return false;
+            }
+
+            cached.inUse = false;
+
+            return true;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     *    Empties the cache.
+     *
+     *    @return the statements that were in it
+     */
+    List<PreparedStatement> clear()
+    {
+        _lock.lock();
+        try
+        {
+            List<PreparedStatement>    statements = new ArrayList<PreparedStatement>( _statements.size() );
+
+            for ( CachedStatement    cached : _statements.values() )
+            {
+                statements.add( cached.statement );
+            }
+
+            _statements.clear();
+
+            return statements;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    // ================================
+    //
+    //    CachedStatement class
+    //
+    // ================================
+
+    private static class CachedStatement
+    {
+        final PreparedStatement    statement;
+        boolean                    inUse;
+
+
+        CachedStatement( final PreparedStatement    statement )
+        {
+            this.statement = statement;
+        }
+    }
+}
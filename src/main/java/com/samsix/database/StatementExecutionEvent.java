@@ -0,0 +1,117 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.regex.Pattern;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ *    JFR event for running a statement.  The duration covers the
+ *    round trip to the database, not reading the results afterwards.
+ *    <p>
+ *    Recorded in two steps so a query's rows can be counted as they
+ *    are read:
+ *    <pre>
+ *    event.begin();
+ *    ... execute ...
+ *    event.executed( sql, packId );
+ *    ... read results ...
+ *    event.finish( rows );
+ *    </pre>
+ *    The SQL is only fingerprinted if the event is going to be
+ *    recorded.
+ */
+@Name( "com.samsix.database.StatementExecution" )
+@Label( "Statement Execution" )
+@Category( { "Database", "SQL" } )
+@Description( "A SQL statement was executed" )
+class StatementExecutionEvent
+    extends
+        Event
+{
+    private final static int    MAX_FINGERPRINT = 2000;
+
+    private final static Pattern    STRING_LITERAL  = Pattern.compile( "'(?:[^']|'')*'" );
+    private final static Pattern    NUMBER_LITERAL  = Pattern.compile( "(?<![\\w$.])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?\\b" );
+    private final static Pattern    VALUE_LISTS     = Pattern.compile( "\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)" );
+    private final static Pattern    WHITESPACE      = Pattern.compile( "\\s+" );
+
+    @Label( "SQL Fingerprint" )
+    @Description( "The SQL with literals replaced by ?" )
+    String    sql;
+
+    @Label( "Connection Pack" )
+    int       packId;
+
+    @Label( "Row Count" )
+    @Description( "Rows read or updated, or -1 if unknown" )
+    long      rowCount = -1;
+
+
+    /**
+     *    Marks the end of the round trip.
+     */
+    void executed( final String    statementSql,
+                   final int       statementPackId )
+    {
+        end();
+
+        if ( shouldCommit() )
+        {
+            sql    = fingerprint( statementSql );
+            packId = statementPackId;
+        }
+    }
+
+
+    void finish( final long    rows )
+    {
+        if ( shouldCommit() )
+        {
+            rowCount = rows;
+            commit();
+        }
+    }
+
+
+    /**
+     *    Strips the literals out of the SQL so the same statement with
+     *    different values groups together, e.g.
+     *    <code>select * from t where id in (1, 2, 3)</code> becomes
+     *    <code>select * from t where id in (?)</code>.
+     */
+    static String fingerprint( final String    sql )
+    {
+        if ( sql == null )
+        {
+            return null;
+        }
+
+        String    fingerprint = STRING_LITERAL.matcher( sql ).replaceAll( "?" );
+
+        fingerprint = NUMBER_LITERAL.matcher( fingerprint ).replaceAll( "?" );
+        fingerprint = VALUE_LISTS.matcher( fingerprint ).replaceAll( "(?)" );
+        fingerprint = WHITESPACE.matcher( fingerprint ).replaceAll( " " ).trim();
+
+        if ( fingerprint.length() > MAX_FINGERPRINT )
+        {
+            fingerprint = fingerprint.substring( 0, MAX_FINGERPRINT );
+        }
+
+        return fingerprint;
+    }
+}
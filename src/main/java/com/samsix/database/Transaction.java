@@ -29,6 +29,7 @@ public class Transaction
     private static Logger    logger = Logger.getLogger( Transaction.class );
 
     protected final ConnectionInfo    _connectionInfo;
+    private final String              _partition;
     private Database                  _db;
 
     private Queue<CommitTask>         _commitTasks;
@@ -36,8 +37,20 @@ public class Transaction
 
 
     public Transaction( final ConnectionInfo    connectionInfo )
+    {
+        this( connectionInfo, null );
+    }
+
+
+    /**
+     *    @param partition the pool partition to borrow the connection
+     *                     from, e.g. "batch"
+     */
+    public Transaction( final ConnectionInfo    connectionInfo,
+                        final String            partition )
     {
         _connectionInfo = connectionInfo;
+        _partition      = partition;
     }
 
 
@@ -47,7 +60,7 @@ public class Transaction
     {
         if( _db == null )
         {
-            _db = new Database( _connectionInfo );
+            _db = new Database( _connectionInfo, _partition );
         }
 
         _db.beginTransaction();
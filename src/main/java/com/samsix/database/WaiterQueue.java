@@ -0,0 +1,193 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.samsix.database.ConnectionPool.Waiter;
+
+
+/**
+ *    The borrowers waiting for a pack, in a FIFO lane for each
+ *    priority.  Iterating and polling go through the lanes highest
+ *    priority first, so a waiter is only served once nobody of a
+ *    higher priority is waiting.
+ *    <p>
+ *    Each lane keeps a count alongside the queue, since counting a
+ *    ConcurrentLinkedQueue means walking it, and the count is what
+ *    bounds the lane.
+ */
+class WaiterQueue
+    implements
+        Iterable<Waiter>
+{
+    private final List<ConcurrentLinkedQueue<Waiter>>    _lanes;
+    private final AtomicInteger[]                        _counts;
+
+
+    WaiterQueue()
+    {
+        int    lanes = BorrowPriority.values().length;
+
+        _lanes  = new ArrayList<ConcurrentLinkedQueue<Waiter>>( lanes );
+        _counts = new AtomicInteger[ lanes ];
+
+        for ( int    i = 0; i < lanes; i++ )
+        {
+            _lanes.add( new ConcurrentLinkedQueue<Waiter>() );
+            _counts[ i ] = new AtomicInteger();
+        }
+    }
+
+
+    /**
+     *    Puts the waiter at the back of its priority's lane.
+     *
+     *    @param limit the most waiters the lane may hold, or 0 for no
+     *                 limit
+     *    @return false if the lane is full
+     */
+    boolean add( final Waiter    waiter,
+                 final int       limit )
+    {
+        int    lane = waiter.getPriority().ordinal();
+
+        if ( _counts[ lane ].incrementAndGet() > limit && limit > 0 )
+        {
+            _counts[ lane ].decrementAndGet();
+            return false;
+        }
+
+        _lanes.get( lane ).add( waiter );
+
+        return true;
+    }
+
+
+    /**
+     *    @return false if somebody else took the waiter out first
+     */
+    boolean remove( final Waiter    waiter )
+    {
+        int    lane = waiter.getPriority().ordinal();
+
+        if ( ! _lanes.get( lane ).remove( waiter ) )
+        {
+            return false;
+        }
+
+        _counts[ lane ].decrementAndGet();
+
+        return true;
+    }
+
+
+    /**
+     *    @return the highest priority, longest waiting waiter, taken
+     *            out, or null if nobody is waiting
+     */
+    Waiter poll()
+    {
+        for ( int    lane = 0; lane < _lanes.size(); lane++ )
+        {
+            Waiter    waiter = _lanes.get( lane ).poll();
+
+            if ( waiter != null )
+            {
+                _counts[ lane ].decrementAndGet();
+                return waiter;
+            }
+        }
+
+        return null;
+    }
+
+
+    boolean isEmpty()
+    {
+        return isEmpty( BorrowPriority.LOW );
+    }
+
+
+    /**
+     *    @return true if nobody of the priority, or higher, is waiting
+     */
+    boolean isEmpty( final BorrowPriority    priority )
+    {
+        for ( int    lane = 0; lane <= priority.ordinal(); lane++ )
+        {
+            if ( ! _lanes.get( lane ).isEmpty() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     *    @return roughly how many of the priority are waiting
+     */
+    int size( final BorrowPriority    priority )
+    {
+        return Math.max( 0, _counts[ priority.ordinal() ].get() );
+    }
+
+
+    /**
+     *    Goes through the waiters highest priority first, weakly
+     *    consistent like the lanes themselves.
+     */
+    @Override
+    public Iterator<Waiter> iterator()
+    {
+        return new Iterator<Waiter>()
+        {
+            private int                 _lane     = 0;
+            private Iterator<Waiter>    _iterator = _lanes.get( 0 ).iterator();
+
+
+            @Override
+            public boolean hasNext()
+            {
+                while ( ! _iterator.hasNext() )
+                {
+                    if ( ++_lane >= _lanes.size() )
+                    {
+                        return false;
+                    }
+
+                    _iterator = _lanes.get( _lane ).iterator();
+                }
+
+                return true;
+            }
+
+
+            @Override
+            public Waiter next()
+            {
+                if ( ! hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+
+                return _iterator.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    Borrowing without a thread: the future completed with a free pack,
+ *    a released one, or the reason there isn't one, and the waiting
+ *    count left as it was found.
+ */
+public class AcquireAsyncTest
+    extends
+        TestCase
+{
+    private static final Executor    DIRECT = new Executor()
+    {
+        @Override
+        public void execute( final Runnable    command )
+        {
+            command.run();
+        }
+    };
+
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "async", 1 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    public void testFreePack()
+        throws
+            Exception
+    {
+        CompletableFuture<ConnectionPack>    future = _info.acquireAsync( null, 1000, DIRECT );
+        ConnectionPack                       pack   = future.get( 5, TimeUnit.SECONDS );
+
+        assertNotNull( pack );
+        assertEquals( 1, _info.getPoolMetrics().getActiveConnections() );
+
+        _info.releaseConnectionPack( pack );
+    }
+
+
+    public void testHandedReleasedPack()
+        throws
+            Exception
+    {
+        ConnectionPack                       held    = _info.getConnectionPack( 1000 );
+        CompletableFuture<ConnectionPack>    future  = _info.acquireAsync( null, 10000, DIRECT );
+        ConnectionPoolMXBean                 metrics = _info.getPoolMetrics();
+
+        assertFalse( future.isDone() );
+        assertEquals( 1, metrics.getWaitingThreads() );
+
+        _info.releaseConnectionPack( held );
+
+        assertSame( held, future.get( 5, TimeUnit.SECONDS ) );
+        assertEquals( 0, metrics.getWaitingThreads() );
+        assertEquals( 1, metrics.getActiveConnections() );
+
+        _info.releaseConnectionPack( held );
+    }
+
+
+    public void testTimesOut()
+        throws
+            Exception
+    {
+        ConnectionPack                       held    = _info.getConnectionPack( 1000 );
+        CompletableFuture<ConnectionPack>    future  = _info.acquireAsync( null, 100, DIRECT );
+        ConnectionPoolMXBean                 metrics = _info.getPoolMetrics();
+
+        try
+        {
+            future.get( 5, TimeUnit.SECONDS );
+            fail( "Borrowed with the pool exhausted" );
+        }
+        catch ( ExecutionException    ex )
+        {
+            assertTrue( ex.getCause() instanceof ConnectionException );
+        }
+
+        assertEquals( 1, metrics.getBorrowTimeouts() );
+        assertEquals( 0, metrics.getWaitingThreads() );
+
+        _info.releaseConnectionPack( held );
+
+        //
+        //    Nobody's left waiting to be handed it.
+        //
+        assertEquals( 1, metrics.getIdleConnections() );
+    }
+
+
+    public void testCancelLeavesLine()
+        throws
+            Exception
+    {
+        ConnectionPack                       held    = _info.getConnectionPack( 1000 );
+        CompletableFuture<ConnectionPack>    future  = _info.acquireAsync( null, 10000, DIRECT );
+        ConnectionPoolMXBean                 metrics = _info.getPoolMetrics();
+
+        assertTrue( future.cancel( true ) );
+        assertEquals( 0, metrics.getWaitingThreads() );
+
+        _info.releaseConnectionPack( held );
+
+        assertEquals( 1, metrics.getIdleConnections() );
+    }
+
+
+    public void testFullLineFailsFuture()
+        throws
+            Exception
+    {
+        _info.getPoolConfig().setMaxWaiting( BorrowPriority.NORMAL, 1 );
+
+        ConnectionPack                       held    = _info.getConnectionPack( 1000 );
+        CompletableFuture<ConnectionPack>    first   = _info.acquireAsync( null, 10000, DIRECT );
+        CompletableFuture<ConnectionPack>    second  = _info.acquireAsync( null, 10000, DIRECT );
+        ConnectionPoolMXBean                 metrics = _info.getPoolMetrics();
+
+        try
+        {
+            second.get( 5, TimeUnit.SECONDS );
+            fail( "Waited in a full line" );
+        }
+        catch ( ExecutionException    ex )
+        {
+            assertTrue( ex.getCause() instanceof PoolOverloadException );
+        }
+
+        assertEquals( 1, metrics.getOverloadRejections() );
+        assertEquals( "Turned away borrower still counted", 1, metrics.getWaitingThreads() );
+
+        //
+        //    Nor may a thread wait in it.
+        //
+        try
+        {
+            _info.getConnectionPack( 10000 );
+            fail( "Waited in a full line" );
+        }
+        catch ( PoolOverloadException    ex )
+        {
+            //    Expected.
+        }
+
+        assertEquals( 1, metrics.getWaitingThreads() );
+
+        _info.releaseConnectionPack( held );
+
+        assertSame( held, first.get( 5, TimeUnit.SECONDS ) );
+        assertEquals( 0, metrics.getWaitingThreads() );
+
+        _info.releaseConnectionPack( held );
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    Waiters served highest priority first, and borrowers turned away
+ *    with a PoolOverloadException once their priority's line is full.
+ */
+public class BorrowPriorityTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "priority", 1 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    public void testHigherPriorityServedFirst()
+        throws
+            Exception
+    {
+        ConnectionPack    held = _info.getConnectionPack( 1000 );
+
+        final List<String>    served = new ArrayList<String>();
+
+        Thread    low    = waiter( BorrowPriority.LOW, served );
+
+        awaitWaiting( 1 );
+
+        Thread    normal = waiter( BorrowPriority.NORMAL, served );
+
+        awaitWaiting( 2 );
+
+        Thread    high   = waiter( BorrowPriority.HIGH, served );
+
+        awaitWaiting( 3 );
+
+        _info.releaseConnectionPack( held );
+
+        low.join( 5000 );
+        normal.join( 5000 );
+        high.join( 5000 );
+
+        synchronized ( served )
+        {
+            assertEquals( "[HIGH, NORMAL, LOW]", served.toString() );
+        }
+    }
+
+
+    public void testFullLineTurnsBorrowersAway()
+        throws
+            Exception
+    {
+        _info.getPoolConfig().setMaxWaiting( BorrowPriority.LOW, 1 );
+
+        ConnectionPack          held    = _info.getConnectionPack( 1000 );
+        ConnectionPoolMXBean    metrics = _info.getPoolMetrics();
+        List<String>            served  = new ArrayList<String>();
+        Thread                  low     = waiter( BorrowPriority.LOW, served );
+
+        awaitWaiting( 1 );
+
+        assertEquals( Integer.valueOf( 1 ), metrics.getWaitingByPriority().get( "LOW" ) );
+
+        long    start = System.currentTimeMillis();
+
+        try
+        {
+            _info.getConnectionPack( null, 5000, false, BorrowPriority.LOW );
+            fail( "Waited in a full line" );
+        }
+        catch ( PoolOverloadException    ex )
+        {
+            assertTrue( "Turned away without waiting", System.currentTimeMillis() - start < 1000 );
+        }
+
+        assertEquals( 1, metrics.getOverloadRejections() );
+        assertEquals( 1, metrics.getWaitingThreads() );
+
+        //
+        //    Other lines aren't limited.
+        //
+        assertNull( _info.getConnectionPack( null, 50, false, BorrowPriority.NORMAL ) );
+        assertEquals( 1, metrics.getOverloadRejections() );
+
+        _info.releaseConnectionPack( held );
+        low.join( 5000 );
+
+        synchronized ( served )
+        {
+            assertEquals( "[LOW]", served.toString() );
+        }
+
+        assertEquals( 0, metrics.getWaitingThreads() );
+    }
+
+
+    /**
+     *    Borrows a pack at the priority, notes it was served, and
+     *    gives it straight back.
+     */
+    private Thread waiter( final BorrowPriority    priority,
+                           final List<String>      served )
+    {
+        Thread    waiter = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    ConnectionPack    pack = _info.getConnectionPack( null, 10000, false, priority );
+
+                    if ( pack != null )
+                    {
+                        synchronized ( served )
+                        {
+                            served.add( priority.name() );
+                        }
+
+                        _info.releaseConnectionPack( pack );
+                    }
+                }
+                catch ( DatabaseException    ex )
+                {
+                    //    Shows up as not served.
+                }
+            }
+        };
+
+        waiter.start();
+
+        return waiter;
+    }
+
+
+    private void awaitWaiting( final int    waiting )
+        throws
+            Exception
+    {
+        ConnectionPoolMXBean    metrics  = _info.getPoolMetrics();
+        long                    deadline = System.currentTimeMillis() + 5000;
+
+        while ( metrics.getWaitingThreads() < waiting )
+        {
+            assertTrue( "Never got " + waiting + " waiting", System.currentTimeMillis() < deadline );
+            Thread.sleep( 5 );
+        }
+
+        //
+        //    Counted just before getting in line.
+        //
+        Thread.sleep( 20 );
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    Borrowers waiting on an exhausted pool: packs handed straight to
+ *    them in order as they're released, and the ones left waiting
+ *    giving up at their deadline.
+ */
+public class BorrowWaitTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "wait", 2 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    /**
+     *    Many more borrowers than connections, each borrowing over and
+     *    over.  A wakeup lost between a release and a waiter parking
+     *    leaves that waiter to time out, which fails the test.
+     */
+    public void testHandOffWithoutLostWakeups()
+        throws
+            Exception
+    {
+        final int                           threads   = 32;
+        final int                           borrows   = 200;
+        final AtomicInteger                 timeouts  = new AtomicInteger();
+        final AtomicReference<Throwable>    failure   = new AtomicReference<Throwable>();
+        final CountDownLatch                start     = new CountDownLatch( 1 );
+        List<Thread>                        borrowers = new ArrayList<Thread>();
+
+        for ( int    ii = 0; ii < threads; ii++ )
+        {
+            Thread    borrower = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+
+                        for ( int    jj = 0; jj < borrows; jj++ )
+                        {
+                            ConnectionPack    pack = _info.getConnectionPack( 10000 );
+
+                            if ( pack == null )
+                            {
+                                timeouts.incrementAndGet();
+                                continue;
+                            }
+
+                            Thread.yield();
+                            _info.releaseConnectionPack( pack );
+                        }
+                    }
+                    catch ( Throwable    ex )
+                    {
+                        failure.compareAndSet( null, ex );
+                    }
+                }
+            };
+
+            borrower.start();
+            borrowers.add( borrower );
+        }
+
+        start.countDown();
+
+        for ( Thread    borrower : borrowers )
+        {
+            borrower.join( 60000 );
+            assertFalse( "Borrower stuck", borrower.isAlive() );
+        }
+
+        if ( failure.get() != null )
+        {
+            throw new AssertionError( failure.get() );
+        }
+
+        ConnectionPoolMXBean    metrics = _info.getPoolMetrics();
+
+        assertEquals( "Borrows that timed out", 0, timeouts.get() );
+        assertEquals( 0, metrics.getWaitingThreads() );
+        assertEquals( 0, metrics.getActiveConnections() );
+        assertTrue( metrics.getTotalConnections() <= 2 );
+        assertEquals( (long) threads * borrows, metrics.getBorrowCount() );
+    }
+
+
+    public void testWaitersServedInOrder()
+        throws
+            Exception
+    {
+        ConnectionPack    first  = _info.getConnectionPack( 1000 );
+        ConnectionPack    second = _info.getConnectionPack( 1000 );
+
+        final List<String>    served = new ArrayList<String>();
+
+        Thread    early = waiter( "early", served );
+
+        awaitWaiting( 1 );
+
+        Thread    late = waiter( "late", served );
+
+        awaitWaiting( 2 );
+
+        _info.releaseConnectionPack( first );
+        early.join( 5000 );
+
+        synchronized ( served )
+        {
+            assertEquals( "[early]", served.toString() );
+        }
+
+        _info.releaseConnectionPack( second );
+        late.join( 5000 );
+
+        synchronized ( served )
+        {
+            assertEquals( "[early, late]", served.toString() );
+        }
+    }
+
+
+    public void testTimeoutEndsAtDeadline()
+        throws
+            Exception
+    {
+        ConnectionPack    first  = _info.getConnectionPack( 1000 );
+        ConnectionPack    second = _info.getConnectionPack( 1000 );
+
+        long              start  = System.currentTimeMillis();
+        ConnectionPack    pack   = _info.getConnectionPack( 200 );
+        long              waited = System.currentTimeMillis() - start;
+
+        assertNull( pack );
+        assertTrue( "Waited " + waited + " ms", waited >= 190 && waited < 2000 );
+
+        ConnectionPoolMXBean    metrics = _info.getPoolMetrics();
+
+        assertEquals( 1, metrics.getBorrowTimeouts() );
+        assertEquals( 0, metrics.getWaitingThreads() );
+
+        _info.releaseConnectionPack( first );
+        _info.releaseConnectionPack( second );
+
+        //
+        //    Nobody's left waiting to be handed one.
+        //
+        assertEquals( 2, metrics.getIdleConnections() );
+    }
+
+
+    public void testDatabaseThrowsOnTimeout()
+        throws
+            Exception
+    {
+        _info.getPoolConfig().setBorrowTimeout( 100 );
+
+        ConnectionPack    first  = _info.getConnectionPack( 1000 );
+        ConnectionPack    second = _info.getConnectionPack( 1000 );
+        Database          db     = new Database( _info );
+
+        try
+        {
+            db.getRecordSet( "SELECT 1" );
+            fail( "Query ran with the pool exhausted" );
+        }
+        catch ( ConnectionException    ex )
+        {
+            //    Expected.
+        }
+        finally
+        {
+            db.release();
+        }
+
+        _info.releaseConnectionPack( first );
+        _info.releaseConnectionPack( second );
+    }
+
+
+    private Thread waiter( final String          name,
+                           final List<String>    served )
+    {
+        Thread    waiter = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    ConnectionPack    pack = _info.getConnectionPack( 10000 );
+
+                    if ( pack != null )
+                    {
+                        synchronized ( served )
+                        {
+                            served.add( name );
+                        }
+                    }
+                }
+                catch ( DatabaseException    ex )
+                {
+                    //    Shows up as not served.
+                }
+            }
+        };
+
+        waiter.start();
+
+        return waiter;
+    }
+
+
+    private void awaitWaiting( final int    waiting )
+        throws
+            Exception
+    {
+        ConnectionPoolMXBean    metrics  = _info.getPoolMetrics();
+        long                    deadline = System.currentTimeMillis() + 5000;
+
+        while ( metrics.getWaitingThreads() < waiting )
+        {
+            assertTrue( "Never got " + waiting + " waiting", System.currentTimeMillis() < deadline );
+            Thread.sleep( 5 );
+        }
+
+        //
+        //    Counted just before getting in line.
+        //
+        Thread.sleep( 20 );
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import junit.framework.TestCase;
+
+
+/**
+ *    The breaker opening once enough connects in a row fail, turning
+ *    borrowers away while it's open, and closing again when a probe
+ *    gets through.
+ */
+public class CircuitBreakerTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "breaker", 2 );
+        _info.getPoolConfig().setCircuitBreakerThreshold( 3 );
+        _info.getPoolConfig().setCircuitBreakerInitialBackoff( 50 );
+        _info.getPoolConfig().setCircuitBreakerMaxBackoff( 50 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        StubDriver.setDown( false );
+        _info.shutdown();
+    }
+
+
+    public void testOpensAndFailsFast()
+        throws
+            Exception
+    {
+        _info.getPoolConfig().setCircuitBreakerInitialBackoff( 60000 );
+        _info.getPoolConfig().setCircuitBreakerMaxBackoff( 60000 );
+
+        StubDriver.setDown( true );
+
+        ConnectionPoolMXBean    metrics = _info.getPoolMetrics();
+        long                    start   = System.currentTimeMillis();
+
+        try
+        {
+            _info.getConnectionPack( 10000 );
+            fail( "Borrowed with the database down" );
+        }
+        catch ( ConnectionException    ex )
+        {
+            assertTrue( "Waiter turned away when the breaker opened, not after its timeout",
+                        System.currentTimeMillis() - start < 5000 );
+        }
+
+        assertTrue( metrics.isCircuitOpen() );
+
+        long    rejections = metrics.getCircuitBreakerRejections();
+
+        start = System.currentTimeMillis();
+
+        try
+        {
+            _info.getConnectionPack( 10000 );
+            fail( "Borrowed with the breaker open" );
+        }
+        catch ( ConnectionException    ex )
+        {
+            assertTrue( "Borrow failed fast", System.currentTimeMillis() - start < 500 );
+        }
+
+        assertEquals( rejections + 1, metrics.getCircuitBreakerRejections() );
+        assertEquals( 0, metrics.getWaitingThreads() );
+    }
+
+
+    public void testStaysOpenWhileProbesFail()
+        throws
+            Exception
+    {
+        StubDriver.setDown( true );
+
+        openBreaker();
+
+        //
+        //    Several probes' worth of backoff.
+        //
+        Thread.sleep( 300 );
+
+        assertTrue( _info.getPoolMetrics().isCircuitOpen() );
+        assertEquals( 0, _info.getPoolMetrics().getTotalConnections() );
+    }
+
+
+    public void testProbeClosesBreaker()
+        throws
+            Exception
+    {
+        StubDriver.setDown( true );
+
+        openBreaker();
+
+        StubDriver.setDown( false );
+
+        ConnectionPoolMXBean    metrics  = _info.getPoolMetrics();
+        long                    deadline = System.currentTimeMillis() + 5000;
+
+        while ( metrics.isCircuitOpen() )
+        {
+            assertTrue( "Probe never closed the breaker", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+
+        //
+        //    The probe's connection joined the pool.
+        //
+        assertEquals( 1, metrics.getTotalConnections() );
+
+        ConnectionPack    pack = _info.getConnectionPack( 1000 );
+
+        assertNotNull( pack );
+
+        _info.releaseConnectionPack( pack );
+    }
+
+
+    public void testIdlePackLentWhileOpen()
+        throws
+            Exception
+    {
+        _info.getPoolConfig().setCircuitBreakerInitialBackoff( 60000 );
+        _info.getPoolConfig().setCircuitBreakerMaxBackoff( 60000 );
+
+        ConnectionPack    pack = _info.getConnectionPack( 1000 );
+
+        StubDriver.setDown( true );
+
+        //
+        //    The second connection can't be opened.
+        //
+        openBreaker();
+
+        _info.releaseConnectionPack( pack );
+
+        ConnectionPack    idle = _info.getConnectionPack( 1000 );
+
+        assertSame( "Open breaker still lends the idle pack", pack, idle );
+        assertTrue( _info.getPoolMetrics().isCircuitOpen() );
+
+        _info.releaseConnectionPack( idle );
+    }
+
+
+    private void openBreaker()
+        throws
+            Exception
+    {
+        try
+        {
+            _info.getConnectionPack( 10000 );
+            fail( "Borrowed with the database down" );
+        }
+        catch ( ConnectionException    ex )
+        {
+            //    Expected.
+        }
+
+        assertTrue( _info.getPoolMetrics().isCircuitOpen() );
+    }
+}
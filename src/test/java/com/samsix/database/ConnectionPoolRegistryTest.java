@@ -0,0 +1,124 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import junit.framework.TestCase;
+
+
+/**
+ *    Infos for the same database sharing a pool only when they ask to,
+ *    and the pool staying open until the last of them lets go.
+ */
+public class ConnectionPoolRegistryTest
+    extends
+        TestCase
+{
+    private String            _url;
+    private ConnectionInfo    _first;
+    private ConnectionInfo    _second;
+
+
+    @Override
+    protected void setUp()
+    {
+        _url    = StubDriver.newUrl( "registry" );
+        _first  = newConnectionInfo();
+        _second = newConnectionInfo();
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _first.shutdown();
+        _second.shutdown();
+    }
+
+
+    public void testNotSharedByDefault()
+        throws
+            Exception
+    {
+        assertNotSame( getPool( _first ), getPool( _second ) );
+    }
+
+
+    public void testSharedUntilLastLetsGo()
+        throws
+            Exception
+    {
+        _first.getPoolConfig().setSharedPool( true );
+        _second.getPoolConfig().setSharedPool( true );
+
+        ConnectionPool    pool = getPool( _first );
+
+        assertSame( pool, getPool( _second ) );
+
+        _first.shutdown();
+
+        assertFalse( "Closed with an info still using it", pool.isClosing() );
+
+        _second.shutdown();
+
+        assertTrue( pool.isClosed() );
+    }
+
+
+    public void testReleasedAfterBecomingReplica()
+        throws
+            Exception
+    {
+        _first.getPoolConfig().setSharedPool( true );
+        _second.getPoolConfig().setSharedPool( true );
+
+        ConnectionPool    pool = getPool( _first );
+
+        assertSame( pool, getPool( _second ) );
+
+        //
+        //    Changes what the info's pool key is made of.
+        //
+        StubDriver.newConnectionInfo( "primary", 1 ).addReplica( _first );
+
+        _first.shutdown();
+
+        assertFalse( "Closed with an info still using it", pool.isClosing() );
+
+        _second.shutdown();
+
+        assertTrue( pool.isClosed() );
+    }
+
+
+    private ConnectionInfo newConnectionInfo()
+    {
+        return new ConnectionInfo( StubDriver.DRIVER,
+                                   _url,
+                                   "test",
+                                   "",
+                                   Database.PLATFORM_POSTGRES,
+                                   2,
+                                   null,
+                                   null );
+    }
+
+
+    private ConnectionPool getPool( final ConnectionInfo    info )
+        throws
+            Exception
+    {
+        ConnectionPack    pack = info.getConnectionPack( 1000 );
+
+        info.releaseConnectionPack( pack );
+
+        return pack.getPool();
+    }
+}
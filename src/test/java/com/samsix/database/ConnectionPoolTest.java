@@ -0,0 +1,106 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    Claiming and returning packs.
+ */
+public class ConnectionPoolTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "pool", 4 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    public void testReturnedPackIsReused()
+        throws
+            Exception
+    {
+        ConnectionPack    first = _info.getConnectionPack( 1000 );
+
+        _info.releaseConnectionPack( first );
+
+        ConnectionPack    second = _info.getConnectionPack( 1000 );
+
+        assertSame( "Thread got back the pack it just returned", first, second );
+        assertEquals( 1, _info.getPoolMetrics().getTotalConnections() );
+
+        _info.releaseConnectionPack( second );
+    }
+
+
+    public void testClaimsGoRoundEveryPack()
+        throws
+            Exception
+    {
+        _info.getPoolConfig().setInitialSize( 4 );
+
+        assertTrue( _info.awaitWarmUp( 5000 ) );
+
+        //
+        //    Each borrow on a thread of its own, so none of them has a
+        //    pack it used last.
+        //
+        final Set<Integer>    used = new HashSet<Integer>();
+
+        for ( int    ii = 0; ii < 8; ii++ )
+        {
+            Thread    borrower = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        ConnectionPack    pack = _info.getConnectionPack( 1000 );
+
+                        synchronized ( used )
+                        {
+                            used.add( pack.getId() );
+                        }
+
+                        _info.releaseConnectionPack( pack );
+                    }
+                    catch ( DatabaseException    ex )
+                    {
+                        throw new IllegalStateException( ex );
+                    }
+                }
+            };
+
+            borrower.start();
+            borrower.join();
+        }
+
+        assertEquals( "Packs used", 4, used.size() );
+        assertEquals( 4, _info.getPoolMetrics().getTotalConnections() );
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    A lease held past LeakReclaimThreshold is taken back by the pool,
+ *    and the borrower who leaked it gets errors from then on rather
+ *    than a connection of its own outside the pool.
+ */
+public class LeakReclaimTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "leak", 2 );
+        _info.getPoolConfig().setHousekeepingPeriod( 20 );
+        _info.getPoolConfig().setLeakDetectionThreshold( 50 );
+        _info.getPoolConfig().setLeakReclaimThreshold( 100 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    public void testBorrowerFailsAfterReclaim()
+        throws
+            Exception
+    {
+        Database    db = new Database( _info );
+
+        db.getRecordSet( "SELECT 1" ).closeSilently();
+
+        Connection    connection = db.getRawConnection();
+        int           connects   = StubDriver.getConnects();
+
+        awaitReclaim();
+
+        try
+        {
+            db.getRecordSet( "SELECT 1" );
+            fail( "Query ran on a reclaimed lease" );
+        }
+        catch ( DatabaseException    ex )
+        {
+            //    Expected.
+        }
+
+        try
+        {
+            connection.createStatement();
+            fail( "Connection still usable after it was reclaimed" );
+        }
+        catch ( SQLException    ex )
+        {
+            //    Expected.
+        }
+
+        assertEquals( "Connections opened after the reclaim", connects, StubDriver.getConnects() );
+        assertEquals( 0, _info.getPoolMetrics().getActiveConnections() );
+
+        db.release();
+
+        //
+        //    The pool itself is fine.
+        //
+        Database    next = new Database( _info );
+
+        try
+        {
+            next.getRecordSet( "SELECT 1" ).closeSilently();
+        }
+        finally
+        {
+            next.release();
+        }
+    }
+
+
+    public void testPackRefusesToReconnect()
+        throws
+            Exception
+    {
+        ConnectionPack    pack = _info.getConnectionPack( 1000 );
+        int               connects = StubDriver.getConnects();
+
+        pack.getConnection();
+
+        awaitReclaim();
+
+        try
+        {
+            pack.getConnection();
+            fail( "Reclaimed pack opened a new connection" );
+        }
+        catch ( SQLException    ex )
+        {
+            assertEquals( "08003", ex.getSQLState() );
+        }
+
+        try
+        {
+            pack.createStatement( false, "SELECT 1" );
+            fail( "Reclaimed pack opened a new connection" );
+        }
+        catch ( SQLException    ex )
+        {
+            assertEquals( "08003", ex.getSQLState() );
+        }
+
+        assertEquals( connects, StubDriver.getConnects() );
+
+        _info.releaseConnectionPack( pack );
+    }
+
+
+    private void awaitReclaim()
+        throws
+            Exception
+    {
+        ConnectionPoolMXBean    metrics  = _info.getPoolMetrics();
+        long                    deadline = System.currentTimeMillis() + 5000;
+
+        while ( metrics.getLeaksReclaimed() == 0 )
+        {
+            assertTrue( "Lease was never reclaimed", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+
+        //
+        //    The pack is closed on the pool's closer thread.
+        //
+        while ( ! isClosed() )
+        {
+            assertTrue( "Reclaimed pack was never closed", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+
+
+    private boolean isClosed()
+        throws
+            SQLException
+    {
+        return StubDriver.getOpenConnections( _info.getUrl() ) == 0;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *    Measures throughput through a bounded pool with thousands of
+ *    borrowers, each on its own virtual thread, running a few queries.
+ *    Not a unit test: it needs a database and, for virtual threads, a
+ *    Java 21 runtime.  On an older runtime it runs the same load on
+ *    platform threads so the two can be compared.
+ *    <p>
+ *    Run it against a scratch database with e.g.
+ *    <pre>
+ *    mvn test-compile
+ *    java -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *         -Dbench.url=jdbc:postgresql://localhost/test -Dbench.user=test \
+ *         -Djdk.tracePinnedThreads=short \
+ *         com.samsix.database.PoolBenchmark
+ *    </pre>
+ *    jdk.tracePinnedThreads prints a stack whenever a virtual thread
+ *    blocks while pinned to its carrier, which the borrow, execute
+ *    and release path shouldn't do.
+ *    <p>
+ *    Settings, as system properties:
+ *    <pre>
+ *    bench.driver          JDBC driver class (org.postgresql.Driver)
+ *    bench.url             JDBC URL (jdbc:postgresql://localhost/postgres)
+ *    bench.user            user name (postgres)
+ *    bench.password        password (empty)
+ *    bench.threads         borrowers per round (10000)
+ *    bench.queries         queries each borrower runs (3)
+ *    bench.maxConnections  the pool's MaxConnections (20)
+ *    bench.sql             the query (SELECT 1)
+ *    bench.rounds          measured rounds, after one warm-up round (3)
+ *    bench.platform        true to use platform threads even on Java 21
+ *    </pre>
+ */
+public class PoolBenchmark
+{
+    private final ConnectionInfo    _info;
+    private final String            _sql;
+    private final int               _threads;
+    private final int               _queries;
+    private final AtomicLong        _failures = new AtomicLong();
+
+
+    public PoolBenchmark( final ConnectionInfo    info,
+                          final String            sql,
+                          final int               threads,
+                          final int               queries )
+    {
+        _info    = info;
+        _sql     = sql;
+        _threads = threads;
+        _queries = queries;
+    }
+
+
+    public static void main( final String[]    args )
+        throws
+            Exception
+    {
+        ConnectionInfo    info = new ConnectionInfo( System.getProperty( "bench.driver", "org.postgresql.Driver" ),
+                                                     System.getProperty( "bench.url", "jdbc:postgresql://localhost/postgres" ),
+                                                     System.getProperty( "bench.user", "postgres" ),
+                                                     System.getProperty( "bench.password", "" ),
+                                                     Database.PLATFORM_POSTGRES,
+                                                     Integer.getInteger( "bench.maxConnections", 20 ),
+                                                     null,
+                                                     null );
+
+        //
+        //    Every borrower waits behind the others, so give them all
+        //    long enough to get through.
+        //
+        info.getPoolConfig().setBorrowTimeout( TimeUnit.MINUTES.toMillis( 5 ) );
+
+        PoolBenchmark    benchmark = new PoolBenchmark( info,
+                                                        System.getProperty( "bench.sql", "SELECT 1" ),
+                                                        Integer.getInteger( "bench.threads", 10000 ),
+                                                        Integer.getInteger( "bench.queries", 3 ) );
+        int              rounds    = Integer.getInteger( "bench.rounds", 3 );
+
+        try
+        {
+            System.out.println( "Threads: " + ( benchmark.isVirtual() ? "virtual" : "platform" )
+                                + ", borrowers: " + benchmark._threads
+                                + ", queries each: " + benchmark._queries
+                                + ", MaxConnections: " + info.getMaxConnections() );
+
+            info.awaitWarmUp( TimeUnit.MINUTES.toMillis( 1 ) );
+
+            benchmark.run( "warm-up" );
+
+            for ( int ii = 1; ii <= rounds; ii++ )
+            {
+                benchmark.run( "round " + ii );
+            }
+        }
+        finally
+        {
+            ConnectionInfo.shutdownAll();
+        }
+    }
+
+
+    /**
+     *    Runs one round and prints its throughput and how long
+     *    borrowers waited for connections.
+     */
+    public void run( final String    label )
+        throws
+            Exception
+    {
+        ConnectionPoolMXBean    metrics  = _info.getPoolMetrics();
+        long                    timeouts = metrics.getBorrowTimeouts();
+        ExecutorService         executor = createExecutor();
+        List<Future<?>>         tasks    = new ArrayList<Future<?>>( _threads );
+
+        _failures.set( 0 );
+
+        long    start = System.nanoTime();
+
+        try
+        {
+            for ( int ii = 0; ii < _threads; ii++ )
+            {
+                tasks.add( executor.submit( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        borrowAndQuery();
+                    }
+                } ) );
+            }
+
+            for ( Future<?>    task : tasks )
+            {
+                task.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        double    seconds = ( System.nanoTime() - start ) / 1e9;
+        long      queries = (long) _threads * _queries;
+
+        System.out.println( String.format( "%-8s %8.0f queries/s  %6.2f s  borrow wait mean %.0f us, p99 %.0f us, max %.0f us  timeouts %d  failures %d",
+                                           label,
+                                           queries / seconds,
+                                           seconds,
+                                           metrics.getBorrowWaitTimeMean(),
+                                           metrics.getBorrowWaitTime99thPercentile(),
+                                           metrics.getBorrowWaitTimeMax(),
+                                           metrics.getBorrowTimeouts() - timeouts,
+                                           _failures.get() ) );
+    }
+
+
+    /**
+     *    What each borrower does: a few queries, each on a connection
+     *    borrowed and released the way application code does it.
+     */
+    private void borrowAndQuery()
+    {
+        for ( int ii = 0; ii < _queries; ii++ )
+        {
+            Database    db = new Database( _info );
+
+            try
+            {
+                RecordSet    rs = db.getRecordSet( _sql );
+
+                try
+                {
+                    while ( rs.next() )
+                    {
+                        //    Read it all.
+                    }
+                }
+                finally
+                {
+                    rs.closeSilently();
+                }
+            }
+            catch ( DatabaseException    ex )
+            {
+                _failures.incrementAndGet();
+            }
+            finally
+            {
+                db.release();
+            }
+        }
+    }
+
+
+    boolean isVirtual()
+    {
+        return ! Boolean.getBoolean( "bench.platform" ) && getVirtualExecutorFactory() != null;
+    }
+
+
+    /**
+     *    A thread per borrower: virtual if the runtime has them, found
+     *    reflectively since the project compiles for Java 11.
+     */
+    private ExecutorService createExecutor()
+        throws
+            Exception
+    {
+        if ( isVirtual() )
+        {
+            return (ExecutorService) getVirtualExecutorFactory().invoke( null );
+        }
+
+        //
+        //    Platform threads are too heavy for one per borrower, so
+        //    cap them at what a typical servlet container runs.
+        //
+        return Executors.newFixedThreadPool( Math.min( _threads, 200 ) );
+    }
+
+
+    private static Method getVirtualExecutorFactory()
+    {
+        try
+        {
+            return Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+        }
+        catch ( NoSuchMethodException    ex )
+        {
+            return null;
+        }
+    }
+}
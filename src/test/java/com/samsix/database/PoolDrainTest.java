@@ -0,0 +1,217 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    Draining and shutting down a pool with connections still leased.
+ */
+public class PoolDrainTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "drain", 2 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    public void testDrainWaitsForLeases()
+        throws
+            Exception
+    {
+        final ConnectionPack    pack = _info.getConnectionPack( 1000 );
+
+        Thread    borrower = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 100 );
+                }
+                catch ( InterruptedException    ex )
+                {
+                    //    Give it back now then.
+                }
+
+                _info.releaseConnectionPack( pack );
+            }
+        };
+
+        borrower.start();
+
+        assertTrue( "Lease came back in time", _info.drain( 5000 ) );
+
+        borrower.join();
+
+        assertEquals( 0, StubDriver.getOpenConnections( _info.getUrl() ) );
+    }
+
+
+    public void testDrainRefusesNewBorrows()
+        throws
+            Exception
+    {
+        ConnectionPack    pack = _info.getConnectionPack( 1000 );
+
+        Thread    drainer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                _info.drain( 5000 );
+            }
+        };
+
+        drainer.start();
+
+        //
+        //    Borrow from the draining pool, not a new one.
+        //
+        ConnectionPool    pool = pack.getPool();
+
+        while ( ! pool.isClosing() )
+        {
+            Thread.sleep( 5 );
+        }
+
+        long    start = System.currentTimeMillis();
+
+        try
+        {
+            pool.getConnectionPack( 1000 );
+            fail( "Borrowed from a draining pool" );
+        }
+        catch ( DatabaseException    ex )
+        {
+            assertTrue( "Borrow failed fast, not after its timeout",
+                        System.currentTimeMillis() - start < 500 );
+        }
+
+        _info.releaseConnectionPack( pack );
+        drainer.join();
+    }
+
+
+    public void testLeaseOutlivingDrainFails()
+        throws
+            Exception
+    {
+        Database    db = new Database( _info );
+
+        db.getRecordSet( "SELECT 1" ).closeSilently();
+
+        int    connects = StubDriver.getConnects();
+
+        assertFalse( "Lease still out at the deadline", _info.drain( 100 ) );
+
+        try
+        {
+            db.getRecordSet( "SELECT 1" );
+            fail( "Query ran after the pool was drained" );
+        }
+        catch ( DatabaseException    ex )
+        {
+            //    Expected.
+        }
+
+        assertEquals( "Connections opened after the drain", connects, StubDriver.getConnects() );
+        assertEquals( 0, StubDriver.getOpenConnections( _info.getUrl() ) );
+
+        db.release();
+    }
+
+
+    public void testShutdownFailsLeasedPacks()
+        throws
+            Exception
+    {
+        ConnectionPack    pack     = _info.getConnectionPack( 1000 );
+        int               connects = StubDriver.getConnects();
+
+        _info.shutdown();
+
+        try
+        {
+            pack.createStatement( false, "SELECT 1" );
+            fail( "Pack reconnected after shutdown" );
+        }
+        catch ( SQLException    ex )
+        {
+            //    Expected.
+        }
+
+        assertEquals( connects, StubDriver.getConnects() );
+
+        _info.releaseConnectionPack( pack );
+    }
+
+
+    public void testUsableAfterShutdown()
+        throws
+            Exception
+    {
+        ConnectionPack    pack = _info.getConnectionPack( 1000 );
+        ConnectionPool    old  = pack.getPool();
+
+        _info.releaseConnectionPack( pack );
+        _info.shutdown();
+
+        assertTrue( old.isClosed() );
+
+        pack = _info.getConnectionPack( 1000 );
+
+        assertNotNull( pack );
+        assertNotSame( old, pack.getPool() );
+
+        _info.releaseConnectionPack( pack );
+    }
+
+
+    public void testUsableAfterDrain()
+        throws
+            Exception
+    {
+        ConnectionPack    leaked = _info.getConnectionPack( 1000 );
+
+        assertFalse( _info.drain( 50 ) );
+
+        //
+        //    Coming back late to the old pool mustn't upset the new one.
+        //
+        ConnectionPack    pack = _info.getConnectionPack( 1000 );
+
+        _info.releaseConnectionPack( leaked );
+
+        assertEquals( 1, _info.getPoolMetrics().getActiveConnections() );
+
+        _info.releaseConnectionPack( pack );
+
+        assertEquals( 0, _info.getPoolMetrics().getActiveConnections() );
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    One borrower finding its connection lost drops every connection
+ *    opened before it: the idle ones straight away, leased ones as
+ *    they come back.
+ */
+public class PoolInvalidationTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "invalidate", 3 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    public void testLostConnectionDropsTheRest()
+        throws
+            Exception
+    {
+        ConnectionPack    first  = _info.getConnectionPack( 1000 );
+        ConnectionPack    second = _info.getConnectionPack( 1000 );
+        ConnectionPack    third  = _info.getConnectionPack( 1000 );
+
+        _info.releaseConnectionPack( second );
+        _info.releaseConnectionPack( third );
+
+        ConnectionPoolMXBean    metrics = _info.getPoolMetrics();
+
+        assertEquals( 3, metrics.getTotalConnections() );
+
+        StubDriver.restart( _info.getUrl() );
+
+        try
+        {
+            first.createStatement( false, "SELECT 1" ).execute( "SELECT 1" );
+            fail( "Ran on a lost connection" );
+        }
+        catch ( SQLException    ex )
+        {
+            assertEquals( "08003", ex.getSQLState() );
+        }
+
+        assertEquals( 1, metrics.getPoolInvalidations() );
+        assertEquals( "Idle connections from before kept", 1, metrics.getTotalConnections() );
+
+        _info.releaseConnectionPack( first );
+
+        assertEquals( "Lost connection went back in the pool", 0, metrics.getTotalConnections() );
+
+        int               connects = StubDriver.getConnects();
+        ConnectionPack    pack     = _info.getConnectionPack( 1000 );
+
+        pack.createStatement( false, "SELECT 1" ).execute( "SELECT 1" );
+
+        assertEquals( connects + 1, StubDriver.getConnects() );
+
+        _info.releaseConnectionPack( pack );
+    }
+
+
+    public void testInvalidatedOnce()
+        throws
+            Exception
+    {
+        ConnectionPack    first  = _info.getConnectionPack( 1000 );
+        ConnectionPack    second = _info.getConnectionPack( 1000 );
+
+        StubDriver.restart( _info.getUrl() );
+
+        //
+        //    Both find out, but they were opened in the same
+        //    generation.
+        //
+        for ( ConnectionPack    pack : new ConnectionPack[] { first, second } )
+        {
+            try
+            {
+                pack.getConnection().createStatement();
+                fail( "Ran on a lost connection" );
+            }
+            catch ( SQLException    ex )
+            {
+                //    Expected.
+            }
+        }
+
+        assertEquals( 1, _info.getPoolMetrics().getPoolInvalidations() );
+
+        _info.releaseConnectionPack( first );
+        _info.releaseConnectionPack( second );
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    A partition held to its Max, the others kept out of its unused
+ *    Min, and a borrower waiting on its partition served when that
+ *    partition gives one back.
+ */
+public class PoolPartitionTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+
+
+    @Override
+    protected void setUp()
+    {
+        _info = StubDriver.newConnectionInfo( "partition", 3 );
+        _info.getPoolConfig().addPartition( "interactive", 1, 0 );
+        _info.getPoolConfig().addPartition( "batch", 0, 1 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    public void testMaxCapsPartition()
+        throws
+            Exception
+    {
+        ConnectionPack    batch = _info.getConnectionPack( "batch", 1000 );
+
+        assertNull( "Went over the partition's Max", _info.getConnectionPack( "batch", 100 ) );
+
+        ConnectionPack    other = _info.getConnectionPack( 1000 );
+
+        assertNotNull( other );
+        assertEquals( Integer.valueOf( 1 ), _info.getPoolMetrics().getPartitionLeases().get( "batch" ) );
+
+        _info.releaseConnectionPack( batch );
+        _info.releaseConnectionPack( other );
+    }
+
+
+    public void testMinKeptFree()
+        throws
+            Exception
+    {
+        ConnectionPack    first  = _info.getConnectionPack( 1000 );
+        ConnectionPack    second = _info.getConnectionPack( 1000 );
+
+        assertNull( "Took the connection held back for interactive",
+                    _info.getConnectionPack( 100 ) );
+
+        ConnectionPack    interactive = _info.getConnectionPack( "interactive", 1000 );
+
+        assertNotNull( interactive );
+
+        _info.releaseConnectionPack( first );
+        _info.releaseConnectionPack( second );
+        _info.releaseConnectionPack( interactive );
+    }
+
+
+    public void testWaiterServedWhenPartitionFrees()
+        throws
+            Exception
+    {
+        ConnectionPack    held = _info.getConnectionPack( "batch", 1000 );
+
+        final AtomicReference<ConnectionPack>    served  = new AtomicReference<ConnectionPack>();
+        final CountDownLatch                     done    = new CountDownLatch( 1 );
+        Thread                                   waiter  = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    served.set( _info.getConnectionPack( "batch", 10000 ) );
+                }
+                catch ( DatabaseException    ex )
+                {
+                    //    Shows up as not served.
+                }
+
+                done.countDown();
+            }
+        };
+
+        waiter.start();
+
+        ConnectionPoolMXBean    metrics  = _info.getPoolMetrics();
+        long                    deadline = System.currentTimeMillis() + 5000;
+
+        while ( metrics.getWaitingThreads() == 0 )
+        {
+            assertTrue( "Never waited", System.currentTimeMillis() < deadline );
+            Thread.sleep( 5 );
+        }
+
+        //
+        //    Room in the pool isn't room in the partition.
+        //
+        ConnectionPack    other = _info.getConnectionPack( 1000 );
+
+        assertFalse( done.await( 100, TimeUnit.MILLISECONDS ) );
+
+        _info.releaseConnectionPack( held );
+
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        assertNotNull( served.get() );
+
+        _info.releaseConnectionPack( served.get() );
+        _info.releaseConnectionPack( other );
+    }
+}
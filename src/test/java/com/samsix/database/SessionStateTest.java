@@ -0,0 +1,167 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    What the pack's connection and statements let the pool see of a
+ *    borrower's session, and what it puts back when the pack is
+ *    returned.
+ */
+public class SessionStateTest
+    extends
+        TestCase
+{
+    private ConnectionInfo    _info;
+    private ConnectionPack    _pack;
+
+
+    @Override
+    protected void setUp()
+        throws
+            Exception
+    {
+        _info = StubDriver.newConnectionInfo( "session", 1 );
+        _pack = _info.getConnectionPack( 1000 );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        if ( _pack != null )
+        {
+            _info.releaseConnectionPack( _pack );
+        }
+
+        _info.shutdown();
+    }
+
+
+    public void testPackIdOfStatement()
+        throws
+            Exception
+    {
+        PreparedStatement    prepared = _pack.createPreparedResultStatement( false, "SELECT ?" );
+        Statement            borrowed = _pack.getConnection().createStatement();
+
+        assertEquals( _pack.getId(), SessionState.getPackId( prepared ) );
+        assertEquals( _pack.getId(), SessionState.getPackId( borrowed ) );
+
+        prepared.close();
+        borrowed.close();
+    }
+
+
+    public void testPlainQueryLeavesNothingToReset()
+        throws
+            Exception
+    {
+        Statement    statement = _pack.createStatement( false, "SELECT temperature FROM weather" );
+
+        statement.execute( "SELECT temperature FROM weather" );
+        statement.close();
+
+        assertEquals( "[SELECT temperature FROM weather]", releaseAndGetSql().toString() );
+    }
+
+
+    public void testSetOnPackStatementIsReset()
+        throws
+            Exception
+    {
+        //
+        //    Not the SQL it was made for.
+        //
+        Statement    statement = _pack.createStatement( false, "SELECT 1" );
+
+        statement.execute( "SET search_path TO other" );
+        statement.close();
+
+        assertTrue( releaseAndGetSql().contains( "RESET ALL;" ) );
+    }
+
+
+    public void testBatchIsWatched()
+        throws
+            Exception
+    {
+        Statement    statement = _pack.getConnection().createStatement();
+
+        statement.addBatch( "INSERT INTO t VALUES (1)" );
+        statement.addBatch( "SELECT pg_advisory_lock( 1 )" );
+        statement.executeBatch();
+        statement.close();
+
+        assertTrue( releaseAndGetSql().contains( "SELECT pg_advisory_unlock_all();" ) );
+    }
+
+
+    public void testAttributePutBack()
+        throws
+            Exception
+    {
+        Connection    connection = _pack.getConnection();
+
+        connection.setTransactionIsolation( Connection.TRANSACTION_SERIALIZABLE );
+        connection.setAutoCommit( false );
+
+        _info.releaseConnectionPack( _pack );
+
+        _pack = _info.getConnectionPack( 1000 );
+        connection = _pack.getConnection();
+
+        assertTrue( connection.getAutoCommit() );
+        assertEquals( Connection.TRANSACTION_READ_COMMITTED, connection.getTransactionIsolation() );
+    }
+
+
+    public void testResultSetLeadsBackToProxies()
+        throws
+            Exception
+    {
+        Connection    connection = _pack.getConnection();
+        Statement     statement  = _pack.createStatement( false, "SELECT 1" );
+        ResultSet     resultSet  = statement.executeQuery( "SELECT 1" );
+
+        assertSame( statement, resultSet.getStatement() );
+        assertSame( connection, resultSet.getStatement().getConnection() );
+
+        Statement    borrowed = connection.createStatement();
+
+        assertSame( connection, borrowed.executeQuery( "SELECT 1" ).getStatement().getConnection() );
+        assertSame( connection, connection.getMetaData().getConnection() );
+
+        statement.close();
+        borrowed.close();
+    }
+
+
+    /**
+     *    @return the SQL run on the pack's connection, from the start
+     *            of the test to the end of putting its session back
+     */
+    private List<String> releaseAndGetSql()
+    {
+        _info.releaseConnectionPack( _pack );
+        _pack = null;
+
+        return StubDriver.getSql( _info.getUrl() );
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+
+/**
+ *    PreparedStatements kept open across leases: reused when the same
+ *    SQL comes round again, never shared by two users at once, evicted
+ *    least recently used first, and dropped when the session's prepared
+ *    statements are deallocated.
+ */
+public class StatementCacheTest
+    extends
+        TestCase
+{
+    private ConnectionInfo          _info;
+    private ConnectionPoolMXBean    _metrics;
+
+
+    @Override
+    protected void setUp()
+        throws
+            Exception
+    {
+        _info = StubDriver.newConnectionInfo( "cache", 1 );
+        _info.getPoolConfig().setStatementCacheSize( 2 );
+        _metrics = _info.getPoolMetrics();
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        _info.shutdown();
+    }
+
+
+    public void testReusedAcrossLeases()
+        throws
+            Exception
+    {
+        prepareAndClose( "SELECT ?" );
+        prepareAndClose( "SELECT ?" );
+
+        assertEquals( 1, _metrics.getStatementCacheMisses() );
+        assertEquals( 1, _metrics.getStatementCacheHits() );
+    }
+
+
+    public void testInUseNotShared()
+        throws
+            Exception
+    {
+        ConnectionPack       pack   = _info.getConnectionPack( 1000 );
+        PreparedStatement    first  = pack.createPreparedResultStatement( false, "SELECT ?" );
+        PreparedStatement    second = pack.createPreparedResultStatement( false, "SELECT ?" );
+
+        assertNotSame( first, second );
+        assertEquals( 0, _metrics.getStatementCacheHits() );
+
+        second.close();
+        first.close();
+
+        _info.releaseConnectionPack( pack );
+
+        prepareAndClose( "SELECT ?" );
+
+        assertEquals( 1, _metrics.getStatementCacheHits() );
+    }
+
+
+    public void testClosedStandInStaysClosed()
+        throws
+            Exception
+    {
+        ConnectionPack       pack      = _info.getConnectionPack( 1000 );
+        PreparedStatement    statement = pack.createPreparedResultStatement( false, "SELECT ?" );
+
+        statement.close();
+
+        assertTrue( statement.isClosed() );
+
+        try
+        {
+            statement.executeQuery();
+            fail( "Used a statement after closing it" );
+        }
+        catch ( SQLException    ex )
+        {
+            //    Expected.
+        }
+
+        _info.releaseConnectionPack( pack );
+    }
+
+
+    public void testLeastRecentlyUsedEvicted()
+        throws
+            Exception
+    {
+        prepareAndClose( "SELECT 1" );
+        prepareAndClose( "SELECT 2" );
+        prepareAndClose( "SELECT 1" );
+        prepareAndClose( "SELECT 3" );
+
+        assertEquals( 1, _metrics.getStatementCacheEvictions() );
+
+        //
+        //    SELECT 2 went, SELECT 1 stayed.
+        //
+        prepareAndClose( "SELECT 1" );
+
+        assertEquals( 2, _metrics.getStatementCacheHits() );
+    }
+
+
+    public void testDroppedAfterDeallocate()
+        throws
+            Exception
+    {
+        prepareAndClose( "SELECT ?" );
+
+        ConnectionPack    pack      = _info.getConnectionPack( 1000 );
+        Statement         statement = pack.createStatement( false, "PREPARE mine AS SELECT 1" );
+
+        statement.execute( "PREPARE mine AS SELECT 1" );
+        statement.close();
+
+        //
+        //    Putting the session back runs DEALLOCATE ALL.
+        //
+        _info.releaseConnectionPack( pack );
+
+        prepareAndClose( "SELECT ?" );
+
+        assertEquals( 0, _metrics.getStatementCacheHits() );
+        assertEquals( 2, _metrics.getStatementCacheMisses() );
+    }
+
+
+    private void prepareAndClose( final String    sql )
+        throws
+            Exception
+    {
+        ConnectionPack       pack      = _info.getConnectionPack( 1000 );
+        PreparedStatement    statement = pack.createPreparedResultStatement( false, sql );
+
+        statement.executeQuery();
+        statement.close();
+
+        _info.releaseConnectionPack( pack );
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) 2001-2012 Sam Six.  All rights reserved.
+ *
+ * Company:      http://www.samsix.com
+ *
+ ***************************************************************************
+ */
+package com.samsix.database;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+/**
+ *    A JDBC driver for the pool's tests that needs no database.  Its
+ *    connections remember their auto-commit setting and whether
+ *    they're closed, and their statements run nothing: queries return
+ *    no rows and updates change none, but the SQL is remembered.  Once
+ *    a connection is closed its statements fail like a real driver's
+ *    do.
+ *    <p>
+ *    URLs look like <code>jdbc:stub:&lt;anything&gt;</code>; use a
+ *    different one in each test so no two share a pool.
+ */
+public class StubDriver
+    implements
+        Driver
+{
+    public static final String    DRIVER = StubDriver.class.getName();
+    public static final String    PREFIX = "jdbc:stub:";
+
+    private static final AtomicInteger    _urlSequence = new AtomicInteger();
+
+    //
+    //    Set to make every new connection fail as if the server were
+    //    unreachable.
+    //
+    private static volatile boolean    _down;
+
+    private static final AtomicInteger       _connects    = new AtomicInteger();
+    private static final List<Connection>    _connections = new CopyOnWriteArrayList<Connection>();
+
+    //
+    //    The SQL run on each URL's connections.
+    //
+    private static final Map<String,List<String>>    _sql = new ConcurrentHashMap<String,List<String>>();
+
+    static
+    {
+        try
+        {
+            DriverManager.registerDriver( new StubDriver() );
+        }
+        catch ( SQLException    ex )
+        {
+            throw new ExceptionInInitializerError( ex );
+        }
+    }
+
+
+    /**
+     *    @return a URL no other test has used
+     */
+    public static String newUrl( final String    name )
+    {
+        return PREFIX + name + "-" + _urlSequence.incrementAndGet();
+    }
+
+
+    /**
+     *    @return an info for a pool of its own on a fresh URL
+     */
+    public static ConnectionInfo newConnectionInfo( final String    name,
+                                                    final int       maxConnections )
+    {
+        return new ConnectionInfo( DRIVER,
+                                   newUrl( name ),
+                                   "test",
+                                   "",
+                                   Database.PLATFORM_POSTGRES,
+                                   maxConnections,
+                                   null,
+                                   null );
+    }
+
+
+    public static void setDown( final boolean    down )
+    {
+        _down = down;
+    }
+
+
+    /**
+     *    @return how many connections have been opened
+     */
+    public static int getConnects()
+    {
+        return _connects.get();
+    }
+
+
+    /**
+     *    @return how many connections to the URL are open
+     */
+    public static int getOpenConnections( final String    url )
+        throws
+            SQLException
+    {
+        int    open = 0;
+
+        for ( Connection    connection : _connections )
+        {
+            if ( ! connection.isClosed() && url.equals( connection.getMetaData().getURL() ) )
+            {
+                open++;
+            }
+        }
+
+        return open;
+    }
+
+
+    /**
+     *    Closes every connection to the URL behind the pool's back, as
+     *    a database restart would.
+     */
+    public static void restart( final String    url )
+        throws
+            SQLException
+    {
+        for ( Connection    connection : _connections )
+        {
+            if ( url.equals( connection.getMetaData().getURL() ) )
+            {
+                connection.close();
+            }
+        }
+    }
+
+
+    /**
+     *    @return the SQL run on connections to the URL so far, in order
+     */
+    public static List<String> getSql( final String    url )
+    {
+        List<String>    sql = _sql.get( url );
+
+        return sql == null ? Collections.<String>emptyList() : new ArrayList<String>( sql );
+    }
+
+
+    private static void ran( final String    url,
+                             final String    sql )
+    {
+        List<String>    ran = _sql.get( url );
+
+        if ( ran == null )
+        {
+            _sql.putIfAbsent( url, new CopyOnWriteArrayList<String>() );
+            ran = _sql.get( url );
+        }
+
+        ran.add( sql );
+    }
+
+
+    // ================================
+    //
+    //    Driver interface
+    //
+    // ================================
+
+    @Override
+    public Connection connect( final String        url,
+                               final Properties    info )
+        throws
+            SQLException
+    {
+        if ( ! acceptsURL( url ) )
+        {
+            return null;
+        }
+
+        if ( _down )
+        {
+            throw new SQLException( "Connection refused", "08001" );
+        }
+
+        _connects.incrementAndGet();
+
+        Connection    connection = (Connection) proxy( Connection.class, new StubConnection( url ) );
+
+        _connections.add( connection );
+
+        return connection;
+    }
+
+
+    @Override
+    public boolean acceptsURL( final String    url )
+    {
+        return url != null && url.startsWith( PREFIX );
+    }
+
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo( final String        url,
+                                                 final Properties    info )
+    {
+        return new DriverPropertyInfo[ 0 ];
+    }
+
+
+    @Override
+    public int getMajorVersion()
+    {
+        return 1;
+    }
+
+
+    @Override
+    public int getMinorVersion()
+    {
+        return 0;
+    }
+
+
+    @Override
+    public boolean jdbcCompliant()
+    {
+        return false;
+    }
+
+
+    @Override
+    public Logger getParentLogger()
+        throws
+            SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+
+    private static Object proxy( final Class<?>             type,
+                                 final InvocationHandler    handler )
+    {
+        return Proxy.newProxyInstance( StubDriver.class.getClassLoader(), new Class<?>[] { type }, handler );
+    }
+
+
+    /**
+     *    @return what a stub returns from a method it doesn't otherwise
+     *            handle
+     */
+    private static Object defaultValue( final Method    method )
+    {
+        Class<?>    type = method.getReturnType();
+
+        if ( type == boolean.class )
+        {
+            return false;
+        }
+        if ( type == int.class )
+        {
+            return 0;
+        }
+        if ( type == long.class )
+        {
+            return 0L;
+        }
+
+        return null;
+    }
+
+
+    // ================================
+    //
+    //    StubConnection class
+    //
+    // ================================
+
+    private static class StubConnection
+        implements
+            InvocationHandler
+    {
+        private final String      _url;
+        private volatile boolean  _closed;
+        private volatile boolean  _autoCommit = true;
+        private volatile int      _isolation  = Connection.TRANSACTION_READ_COMMITTED;
+
+
+        StubConnection( final String    url )
+        {
+            _url = url;
+        }
+
+
+        @Override
+        public Object invoke( final Object      proxy,
+                              final Method      method,
+                              final Object[]    args )
+            throws
+                Throwable
+        {
+            String    name = method.getName();
+
+            if ( "equals".equals( name ) )
+            {
+                return proxy == args[0];
+            }
+            if ( "hashCode".equals( name ) )
+            {
+                return System.identityHashCode( proxy );
+            }
+            if ( "toString".equals( name ) )
+            {
+                return "StubConnection[" + _url + "]";
+            }
+            if ( "close".equals( name ) )
+            {
+                _closed = true;
+                return null;
+            }
+            if ( "isClosed".equals( name ) )
+            {
+                return _closed;
+            }
+            if ( "isValid".equals( name ) )
+            {
+                return ! _closed && ! _down;
+            }
+            if ( "getMetaData".equals( name ) )
+            {
+                return proxy( java.sql.DatabaseMetaData.class, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke( final Object      metaData,
+                                          final Method      metaDataMethod,
+                                          final Object[]    metaDataArgs )
+                    {
+                        return "getURL".equals( metaDataMethod.getName() ) ? _url : defaultValue( metaDataMethod );
+                    }
+                } );
+            }
+
+            checkOpen();
+
+            if ( "getAutoCommit".equals( name ) )
+            {
+                return _autoCommit;
+            }
+            if ( "setAutoCommit".equals( name ) )
+            {
+                _autoCommit = (Boolean) args[0];
+                return null;
+            }
+            if ( "getTransactionIsolation".equals( name ) )
+            {
+                return _isolation;
+            }
+            if ( "setTransactionIsolation".equals( name ) )
+            {
+                _isolation = (Integer) args[0];
+                return null;
+            }
+            if ( "createStatement".equals( name ) || "prepareStatement".equals( name ) )
+            {
+                return proxy( PreparedStatement.class, new StubStatement( this ) );
+            }
+            if ( "unwrap".equals( name ) )
+            {
+                return proxy;
+            }
+
+            return defaultValue( method );
+        }
+
+
+        void checkOpen()
+            throws
+                SQLException
+        {
+            if ( _closed )
+            {
+                throw new SQLException( "This connection has been closed.", "08003" );
+            }
+        }
+    }
+
+
+    // ================================
+    //
+    //    StubStatement class
+    //
+    // ================================
+
+    private static class StubStatement
+        implements
+            InvocationHandler
+    {
+        private final StubConnection    _connection;
+        private volatile boolean        _closed;
+
+
+        StubStatement( final StubConnection    connection )
+        {
+            _connection = connection;
+        }
+
+
+        @Override
+        public Object invoke( final Object      proxy,
+                              final Method      method,
+                              final Object[]    args )
+            throws
+                Throwable
+        {
+            String    name = method.getName();
+
+            if ( "equals".equals( name ) )
+            {
+                return proxy == args[0];
+            }
+            if ( "hashCode".equals( name ) )
+            {
+                return System.identityHashCode( proxy );
+            }
+            if ( "toString".equals( name ) )
+            {
+                return "StubStatement";
+            }
+            if ( "close".equals( name ) )
+            {
+                _closed = true;
+                return null;
+            }
+            if ( "isClosed".equals( name ) )
+            {
+                return _closed;
+            }
+            if ( "cancel".equals( name ) )
+            {
+                return null;
+            }
+
+            _connection.checkOpen();
+
+            if ( _closed )
+            {
+                throw new SQLException( "This statement has been closed." );
+            }
+
+            if ( args != null
+                 && args.length > 0
+                 && args[0] instanceof String
+                 && ( name.startsWith( "execute" ) || "addBatch".equals( name ) ) )
+            {
+                ran( _connection._url, (String) args[0] );
+            }
+
+            if ( "executeQuery".equals( name ) || "getResultSet".equals( name ) )
+            {
+                return proxy( ResultSet.class, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke( final Object      resultSet,
+                                          final Method      resultSetMethod,
+                                          final Object[]    resultSetArgs )
+                    {
+                        return defaultValue( resultSetMethod );
+                    }
+                } );
+            }
+            if ( "execute".equals( name ) )
+            {
+                return true;
+            }
+            if ( "getUpdateCount".equals( name ) )
+            {
+                return -1;
+            }
+
+            return defaultValue( method );
+        }
+    }
+}